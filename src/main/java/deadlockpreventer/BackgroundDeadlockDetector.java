@@ -0,0 +1,94 @@
+package deadlockpreventer;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+import static log.utils.LogUtils.logDebug;
+
+/**
+ * Daemon thread which periodically scans a snapshot of wait-for graph of {@link DeadlockPreventer}
+ * and breaks found cycles by choosing a victim
+ * <p>
+ * It keeps a weak reference to the preventer, so the thread stops when the preventer isn't used anymore
+ */
+class BackgroundDeadlockDetector<T> extends Thread {
+    private final WeakReference<DeadlockPreventer<T>> deadlockPreventer;
+    private final long intervalMillis;
+
+    BackgroundDeadlockDetector(final DeadlockPreventer<T> deadlockPreventer, final long intervalMillis) {
+        super("deadlock-detector");
+        this.deadlockPreventer = new WeakReference<>(deadlockPreventer);
+        this.intervalMillis = intervalMillis;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            final DeadlockPreventer<T> preventer = deadlockPreventer.get();
+            if (preventer == null) {
+                return;
+            }
+
+            detect(preventer, preventer.snapshot());
+        }
+    }
+
+    /**
+     * Every thread waits at most one entity and every entity has one owner, so each thread has at most one outgoing edge
+     * and it's enough to follow the edges from each waiting thread until we meet a thread from the path again
+     * <p>
+     * Global thread waits all threads which hold entities
+     *
+     * @param preventer
+     * @param snapshot
+     */
+    static <T> void detect(final DeadlockPreventer<T> preventer, final DeadlockPreventer.Snapshot<T> snapshot) {
+        final Set<Thread> brokenThreads = new HashSet<>();
+
+        for (final Thread waitingThread : snapshot.waitingThreads.keySet()) {
+            if (brokenThreads.contains(waitingThread)) {
+                continue;
+            }
+
+            final List<Thread> cycle = findCycle(waitingThread, snapshot);
+            if (cycle == null || !Collections.disjoint(cycle, brokenThreads)) {
+                continue;
+            }
+
+            logDebug("Deadlock detected between threads " + cycle);
+            brokenThreads.addAll(cycle);
+            preventer.breakCycle(cycle, snapshot);
+        }
+    }
+
+    private static <T> List<Thread> findCycle(final Thread startThread, final DeadlockPreventer.Snapshot<T> snapshot) {
+        final List<Thread> path = new ArrayList<>();
+        Thread thread = startThread;
+
+        while (true) {
+            final int index = path.indexOf(thread);
+            if (index >= 0) {
+                return path.subList(index, path.size());
+            }
+            path.add(thread);
+
+            final T waitedEntity = snapshot.waitingThreads.get(thread);
+            if (waitedEntity == null) {
+                final boolean isWaitingGlobal = thread == snapshot.globalThread && snapshot.waitingThreads.containsKey(thread);
+                return isWaitingGlobal && path.size() > 1 && snapshot.lockingThreads.contains(startThread) ? path : null;
+            }
+
+            thread = snapshot.lockedEntities.get(waitedEntity);
+            if (thread == null) {
+                return null;
+            }
+        }
+    }
+}
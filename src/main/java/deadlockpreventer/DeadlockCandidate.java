@@ -0,0 +1,48 @@
+package deadlockpreventer;
+
+/**
+ * Information about a thread of wait-for cycle which can be aborted to break a deadlock
+ */
+public class DeadlockCandidate {
+    private final Thread thread;
+    private final int lockedEntities;
+    private final long transactionStart;
+    private final long waitingSince;
+
+    DeadlockCandidate(final Thread thread, final int lockedEntities, final long transactionStart, final long waitingSince) {
+        this.thread = thread;
+        this.lockedEntities = lockedEntities;
+        this.transactionStart = transactionStart;
+        this.waitingSince = waitingSince;
+    }
+
+    public Thread thread() {
+        return thread;
+    }
+
+    /**
+     * @return count of entities held by the thread
+     */
+    public int lockedEntities() {
+        return lockedEntities;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the thread locked its first currently held entity
+     */
+    public long transactionStart() {
+        return transactionStart;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the thread started waiting
+     */
+    public long waitingSince() {
+        return waitingSince;
+    }
+
+    @Override
+    public String toString() {
+        return thread + " locked entities " + lockedEntities;
+    }
+}
@@ -3,8 +3,22 @@ package deadlockpreventer;
 import deadlockpreventer.exceptions.DeadlockPreventedException;
 
 import java.util.*;
-
-public class DeadlockPreventer<T> {
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prevents deadlocks between threads which lock entities
+ * <p>
+ * By default a cycle is checked by a thread before waiting an entity and this thread is aborted.
+ * In background detection mode waiting is free and {@link BackgroundDeadlockDetector} periodically scans
+ * a snapshot of wait-for graph.
+ * <p>
+ * If {@link VictimPolicy} is set, a victim is chosen from all threads of the cycle, so it can be other than
+ * the caller thread. Such victim is interrupted, locker checks {@link #isCurrentThreadVictim()} when its waiting
+ * is interrupted and throws exception via {@link #throwIfVictim()}
+ *
+ * @param <T>
+ */
+public class DeadlockPreventer<T> implements DeadlockPreventionStrategy<T> {
     private final Map<T, Thread> lockedEntities;
     private final Map<Thread, T> waitingThreads;
 
@@ -14,22 +28,142 @@ public class DeadlockPreventer<T> {
     private final Map<Thread, Set<T>> threadLockedEntities;
     private Thread globalThread;
 
+    private final boolean isBackgroundDetection;
+
+    /**
+     * Null means that the thread which closes the cycle is aborted
+     */
+    private final VictimPolicy victimPolicy;
+
+    /**
+     * {@link System#nanoTime()} when a thread started waiting an entity,
+     * it's filled only if victims are chosen by {@link #victimPolicy}
+     */
+    private final Map<Thread, Long> waitingSince;
+
+    /**
+     * {@link System#nanoTime()} when a thread locked the first of its entities,
+     * it's filled only if victims are chosen by {@link #victimPolicy}
+     */
+    private final Map<Thread, Long> transactionStart;
+
+    /**
+     * Threads chosen by background detector which aren't notified yet
+     */
+    private final Map<Thread, DeadlockPreventedException> victims;
+
+    /**
+     * Victims which were interrupted by this preventer, only their interruption is cleared,
+     * so interruption of a victim by other code is kept
+     */
+    private final Set<Thread> interruptedVictims;
+
     public DeadlockPreventer() {
+        this(false, null);
+    }
+
+    /**
+     * Create preventer which checks a cycle before waiting, but aborts a victim chosen by victimPolicy
+     *
+     * @param victimPolicy
+     */
+    public DeadlockPreventer(final VictimPolicy victimPolicy) {
+        this(false, victimPolicy);
+    }
+
+    /**
+     * Create preventer in background detection mode which aborts the thread started waiting the last
+     *
+     * @param detectionInterval - period of wait-for graph scanning, so deadlock is broken not later than this interval
+     * @param unit
+     */
+    public DeadlockPreventer(final long detectionInterval, final TimeUnit unit) {
+        this(detectionInterval, unit, VictimPolicy.leastWaitTime());
+    }
+
+    /**
+     * Create preventer in background detection mode
+     *
+     * @param detectionInterval - period of wait-for graph scanning, so deadlock is broken not later than this interval
+     * @param unit
+     * @param victimPolicy
+     */
+    public DeadlockPreventer(final long detectionInterval, final TimeUnit unit, final VictimPolicy victimPolicy) {
+        this(true, victimPolicy);
+        new BackgroundDeadlockDetector<>(this, Math.max(1, unit.toMillis(detectionInterval))).start();
+    }
+
+    private DeadlockPreventer(final boolean isBackgroundDetection, final VictimPolicy victimPolicy) {
         this.lockedEntities = new HashMap<>();
         this.waitingThreads = new HashMap<>();
         this.threadLockedEntities = new HashMap<>();
+        this.isBackgroundDetection = isBackgroundDetection;
+        this.victimPolicy = victimPolicy;
+        this.waitingSince = new HashMap<>();
+        this.transactionStart = new HashMap<>();
+        this.victims = new HashMap<>();
+        this.interruptedVictims = new HashSet<>();
     }
 
     /**
      * Check deadlock and if all is good add thread to waiting threads
+     * In background detection mode only add thread to waiting threads
      *
      * @param entityId
      * @throws DeadlockPreventedException
      */
+    @Override
     public synchronized void beforeLocking(final T entityId) throws DeadlockPreventedException {
-        checkOnDeadlock(entityId);
+        final Thread currentThread = Thread.currentThread();
+
+        if (!isBackgroundDetection) {
+            checkOnDeadlock(entityId);
+        }
+
+        if (canAbortOtherThreads()) {
+            waitingSince.put(currentThread, System.nanoTime());
+        }
+        waitingThreads.put(currentThread, entityId);
+    }
+
+    /**
+     * @return true if deadlocks are detected by background thread
+     */
+    public boolean isBackgroundDetection() {
+        return isBackgroundDetection;
+    }
+
+    /**
+     * @return true if a thread other than the caller can be chosen as a victim,
+     * in this case a locker has to wait entities interruptibly
+     */
+    @Override
+    public boolean canAbortOtherThreads() {
+        return isBackgroundDetection || victimPolicy != null;
+    }
 
-        waitingThreads.put(Thread.currentThread(), entityId);
+    /**
+     * @return true if caller thread was chosen as a victim of deadlock by other thread
+     */
+    @Override
+    public synchronized boolean isCurrentThreadVictim() {
+        return victims.containsKey(Thread.currentThread());
+    }
+
+    /**
+     * Must be called by a locker if waiting of an entity was failed
+     *
+     * @throws DeadlockPreventedException if caller thread was chosen as a victim of deadlock
+     */
+    @Override
+    public synchronized void throwIfVictim() throws DeadlockPreventedException {
+        final Thread currentThread = Thread.currentThread();
+        final DeadlockPreventedException exception = victims.remove(currentThread);
+        if (exception != null) {
+            //Waiting was failed by the interruption, so it's already consumed
+            interruptedVictims.remove(currentThread);
+            throw exception;
+        }
     }
 
     /**
@@ -40,16 +174,18 @@ public class DeadlockPreventer<T> {
      * otherwise if thread doesn't holds any entity it will be wait global lock
      * @throws DeadlockPreventedException
      */
+    @Override
     public synchronized void beforeGlobalLocking() throws DeadlockPreventedException {
         final Thread currentGlobalThread = Thread.currentThread();
 
-        if (globalThread != null && globalThread != currentGlobalThread) {
-            if (lockAnyEntity()) {
-                final String message = globalDeadlockPreventedMessage(currentGlobalThread, globalThread);
-                throw new DeadlockPreventedException(message, currentGlobalThread, globalThread);
-            }
-        } else {
-            globalThread = currentGlobalThread;
+        //Reentrant global locking, all checks were passed by the outer one and nobody can wait entities of global thread
+        if (globalThread == currentGlobalThread) {
+            return;
+        }
+
+        if (globalThread != null && globalThread != currentGlobalThread && lockAnyEntity()) {
+            final String message = globalDeadlockPreventedMessage(currentGlobalThread, globalThread);
+            throw new DeadlockPreventedException(message, currentGlobalThread, globalThread);
         }
 
         //This algorithm can be improved by adding 2 hashmaps, but I think it isn't worth
@@ -57,24 +193,62 @@ public class DeadlockPreventer<T> {
         //I know that we can replace it to stream, but I need a full entry to get a locker thread
         //and it a lot of boilerplate code in streams when we use map entry
         //also I don't like Java streams because they are generate more garbage and less performance
+        List<Thread> blockedThreads = null;
         for (final Map.Entry<Thread, T> entry : waitingThreads.entrySet()) {
 
             final Thread lockedThread = lockedEntities.get(entry.getValue());
 
-            if (lockedThread == currentGlobalThread) {
+            if (lockedThread == currentGlobalThread && !victims.containsKey(entry.getKey())) {
                 final Thread failThread = entry.getKey();
-                final String message = globalDeadlockPreventedMessage(failThread, currentGlobalThread);
-                throw new DeadlockPreventedException(message, failThread, currentGlobalThread);
+                if (victimPolicy == null) {
+                    final String message = globalDeadlockPreventedMessage(failThread, currentGlobalThread);
+                    throw new DeadlockPreventedException(message, failThread, currentGlobalThread);
+                }
+
+                if (blockedThreads == null) {
+                    blockedThreads = new ArrayList<>();
+                }
+                blockedThreads.add(failThread);
             }
         }
 
+        if (blockedThreads != null) {
+            abortGlobalOrBlockedThreads(blockedThreads);
+        }
+
+        //Set global thread only when all checks are passed, otherwise it blocks other threads after exception
+        if (globalThread == null) {
+            globalThread = currentGlobalThread;
+        }
+
         //puts null as indicator that we wait all other threads
         waitingThreads.put(currentGlobalThread, null);
     }
 
+    /**
+     * Failed thread stops waiting other threads and resets global thread if it was the caller
+     *
+     * @param isLocked
+     */
+    @Override
+    public synchronized void afterGlobalLocking(final boolean isLocked) {
+        if (isLocked) {
+            return;
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        if (waitingThreads.containsKey(currentThread) && waitingThreads.get(currentThread) == null) {
+            waitingThreads.remove(currentThread);
+        }
+        if (globalThread == currentThread) {
+            globalThread = null;
+        }
+    }
+
     /**
      * Remove global thread from waiting threads and reset global thread variable
      */
+    @Override
     public synchronized void beforeGlobalUnlocking() {
         waitingThreads.remove(globalThread);
         globalThread = null;
@@ -86,17 +260,28 @@ public class DeadlockPreventer<T> {
      * @param entityId
      * @param isLocked
      */
+    @Override
     public synchronized void afterLocking(final T entityId, final boolean isLocked) {
         final Thread currentThread = Thread.currentThread();
 
         waitingThreads.remove(currentThread);
+        waitingSince.remove(currentThread);
         if (isLocked) {
+            //Thread acquired an entity before detector interrupted it, so the cycle was already broken.
+            //Only interruption delivered by the detector is cleared, interruption by other code is kept
+            if (victims.remove(currentThread) != null && interruptedVictims.remove(currentThread)) {
+                Thread.interrupted();
+            }
+
             lockedEntities.put(entityId, currentThread);
 
             Set<T> threadEntities = threadLockedEntities.get(currentThread);
 
             if (threadEntities == null) {
                 threadEntities = new HashSet<>();
+                if (canAbortOtherThreads()) {
+                    transactionStart.put(currentThread, System.nanoTime());
+                }
             }
 
             threadEntities.add(entityId);
@@ -105,6 +290,133 @@ public class DeadlockPreventer<T> {
         }
     }
 
+    /**
+     * @param entityId
+     * @return thread which holds entityId or null if entity isn't locked
+     */
+    public synchronized Thread lockerThread(final T entityId) {
+        return lockedEntities.get(entityId);
+    }
+
+    /**
+     * @return copy of wait-for graph for {@link BackgroundDeadlockDetector}
+     */
+    synchronized Snapshot<T> snapshot() {
+        return new Snapshot<>(new HashMap<>(lockedEntities), new HashMap<>(waitingThreads),
+                new HashSet<>(threadLockedEntities.keySet()), globalThread);
+    }
+
+    /**
+     * Choose a victim by {@link #victimPolicy} from threads of the cycle which still wait the same entities and abort it
+     *
+     * @param cycle
+     * @param snapshot - snapshot where the cycle was found
+     */
+    synchronized void breakCycle(final List<Thread> cycle, final Snapshot<T> snapshot) {
+        final long now = System.nanoTime();
+        final List<DeadlockCandidate> candidates = new ArrayList<>();
+
+        for (final Thread thread : cycle) {
+            final T waitedEntity = snapshot.waitingThreads.get(thread);
+
+            if (waitedEntity == null || waitingThreads.get(thread) != waitedEntity) {
+                continue;
+            }
+
+            if (victims.containsKey(thread)) {
+                return;
+            }
+
+            candidates.add(candidate(thread, now));
+        }
+
+        if (!candidates.isEmpty()) {
+            abort(victimPolicy.choose(candidates).thread());
+        }
+    }
+
+    /**
+     * Global thread holds entities which blockedThreads wait, so it or all of them have to be aborted
+     * The victim policy chooses between global thread and blocked threads
+     *
+     * @param blockedThreads
+     * @throws DeadlockPreventedException if global thread is a victim
+     */
+    private void abortGlobalOrBlockedThreads(final List<Thread> blockedThreads) throws DeadlockPreventedException {
+        final Thread currentThread = Thread.currentThread();
+        final long now = System.nanoTime();
+        final List<DeadlockCandidate> candidates = new ArrayList<>();
+
+        candidates.add(candidate(currentThread, now));
+        for (final Thread thread : blockedThreads) {
+            candidates.add(candidate(thread, now));
+        }
+
+        if (victimPolicy.choose(candidates).thread() == currentThread) {
+            final String message = globalDeadlockPreventedMessage(currentThread, blockedThreads.get(0));
+            throw new DeadlockPreventedException(message, currentThread, blockedThreads.get(0));
+        }
+
+        for (final Thread thread : blockedThreads) {
+            abort(thread);
+        }
+    }
+
+    /**
+     * Caller thread closes a cycle, choose a victim by {@link #victimPolicy} from the caller and waiting threads of the chain
+     *
+     * @param chain - threads from the owner of the caller's entity to the thread which closes the cycle
+     * @return true if other thread was aborted
+     */
+    private boolean abortOtherThread(final List<Thread> chain) {
+        final Thread currentThread = Thread.currentThread();
+        final long now = System.nanoTime();
+        final List<DeadlockCandidate> candidates = new ArrayList<>();
+
+        candidates.add(candidate(currentThread, now));
+        for (final Thread thread : chain) {
+            if (waitingThreads.get(thread) != null) {
+                candidates.add(candidate(thread, now));
+            }
+        }
+
+        final Thread victim = victimPolicy.choose(candidates).thread();
+        if (victim == currentThread) {
+            return false;
+        }
+
+        abort(victim);
+        return true;
+    }
+
+    /**
+     * Mark waiting thread as a victim and interrupt it
+     * Pending interruption wakes the victim anyway, so it isn't interrupted again and its interruption is kept.
+     * Interruption by other code between the check and {@link Thread#interrupt()} can't be told from ours
+     *
+     * @param victim
+     */
+    private void abort(final Thread victim) {
+        final T waitedEntity = waitingThreads.get(victim);
+        final Thread lockerThread = lockedEntities.get(waitedEntity);
+        final String message = deadlockPreventedMessage(victim, waitedEntity, lockerThread);
+
+        victims.put(victim, new DeadlockPreventedException(message, victim, lockerThread));
+        if (!victim.isInterrupted()) {
+            interruptedVictims.add(victim);
+            victim.interrupt();
+        }
+    }
+
+    private DeadlockCandidate candidate(final Thread thread, final long now) {
+        final Set<T> entities = threadLockedEntities.get(thread);
+        final Long start = transactionStart.get(thread);
+        final Long since = waitingSince.get(thread);
+
+        return new DeadlockCandidate(thread, entities == null ? 0 : entities.size(),
+                start == null ? now : start, since == null ? now : since);
+    }
+
     /**
      * Check if thread holds any entity
      * @return
@@ -118,6 +430,7 @@ public class DeadlockPreventer<T> {
      * if thread doesn't hold any more entities
      * @param entityId
      */
+    @Override
     public synchronized void beforeUnlocking(final T entityId) {
         final Thread currentThread = Thread.currentThread();
         final Set<T> threadEntities = threadLockedEntities.get(currentThread);
@@ -126,11 +439,24 @@ public class DeadlockPreventer<T> {
 
         if (threadEntities.isEmpty()) {
             threadLockedEntities.remove(currentThread);
+            transactionStart.remove(currentThread);
         }
 
         lockedEntities.remove(entityId);
     }
 
+    /**
+     * Same as {@link #beforeUnlocking(Object)} for every entity, but under one acquisition of the monitor
+     *
+     * @param entityIds
+     */
+    @Override
+    public synchronized void beforeUnlockingAll(final Collection<T> entityIds) {
+        for (final T entityId : entityIds) {
+            beforeUnlocking(entityId);
+        }
+    }
+
     /**
      * Check will locking of entityId will case of deadlock
      * <p>
@@ -138,13 +464,15 @@ public class DeadlockPreventer<T> {
      * Here we get which thread locked the entity
      * If this thread is waiting some entity - search continues
      * While it's get null entity or thread with which we start search
+     * Already aborted threads will release their entities, so the search stops on them
      *
      * @param entityId
-     * @throws DeadlockPreventedException if locking entityId will case of deadlock
+     * @throws DeadlockPreventedException if locking entityId will case of deadlock and caller thread is a victim
      */
     private void checkOnDeadlock(T entityId) throws DeadlockPreventedException {
         final T originEntity = entityId;
         final Thread currentThread = Thread.currentThread();
+        final List<Thread> chain = victimPolicy == null ? null : new ArrayList<>();
 
         while (lockedEntities.containsKey(entityId)) {
 
@@ -152,10 +480,22 @@ public class DeadlockPreventer<T> {
             entityId = waitingThreads.get(entityThread);
 
             if (entityThread == currentThread || entityThread == globalThread) {
+                if (chain != null && abortOtherThread(chain)) {
+                    return;
+                }
+
                 final Thread lockerThread = lockedEntities.get(originEntity);
                 final String message = deadlockPreventedMessage(currentThread, originEntity, lockerThread);
                 throw new DeadlockPreventedException(message, currentThread, lockerThread);
             }
+
+            if (victims.containsKey(entityThread)) {
+                return;
+            }
+
+            if (chain != null) {
+                chain.add(entityThread);
+            }
         }
     }
 
@@ -181,4 +521,22 @@ public class DeadlockPreventer<T> {
         return "Thread {" + failThread + "} unable to lock entity {" + originEntity + "} due case of deadlock." +
                 " Entity pending by {" + lockedThread + "}";
     }
+
+    /**
+     * Consistent copy of wait-for graph
+     */
+    static class Snapshot<T> {
+        final Map<T, Thread> lockedEntities;
+        final Map<Thread, T> waitingThreads;
+        final Set<Thread> lockingThreads;
+        final Thread globalThread;
+
+        private Snapshot(final Map<T, Thread> lockedEntities, final Map<Thread, T> waitingThreads,
+                         final Set<Thread> lockingThreads, final Thread globalThread) {
+            this.lockedEntities = lockedEntities;
+            this.waitingThreads = waitingThreads;
+            this.lockingThreads = lockingThreads;
+            this.globalThread = globalThread;
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package deadlockpreventer;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+
+import java.util.Collection;
+
+/**
+ * Callbacks which an entity locker invokes around waiting, acquiring and releasing of entities
+ * <p>
+ * {@link DeadlockPreventer} checks a cycle in wait-for graph, {@link TimestampDeadlockPreventer}
+ * decides by transaction timestamps of the requester and the owner only,
+ * {@link LockOrderPreventer} relies on the order of entities
+ *
+ * @param <T>
+ */
+public interface DeadlockPreventionStrategy<T> {
+    /**
+     * Called before every locking of an entity even if it's free or already held by caller thread
+     *
+     * @param entityId
+     * @throws DeadlockPreventedException if caller thread mustn't lock the entity
+     */
+    default void beforeLockRequest(final T entityId) throws DeadlockPreventedException {
+    }
+
+    /**
+     * Called before waiting an entity which is held by other thread
+     *
+     * @param entityId
+     * @throws DeadlockPreventedException if waiting can case of deadlock and caller thread must be aborted
+     */
+    void beforeLocking(T entityId) throws DeadlockPreventedException;
+
+    /**
+     * Called after each attempt to lock an entity
+     *
+     * @param entityId
+     * @param isLocked
+     */
+    void afterLocking(T entityId, boolean isLocked);
+
+    /**
+     * Called before the last unlock of an entity
+     *
+     * @param entityId
+     */
+    void beforeUnlocking(T entityId);
+
+    /**
+     * Called before the last unlock of all entities which caller thread releases at once
+     *
+     * @param entityIds
+     */
+    default void beforeUnlockingAll(final Collection<T> entityIds) {
+        for (final T entityId : entityIds) {
+            beforeUnlocking(entityId);
+        }
+    }
+
+    /**
+     * @throws DeadlockPreventedException if waiting of global lock can case of deadlock
+     */
+    void beforeGlobalLocking() throws DeadlockPreventedException;
+
+    void beforeGlobalUnlocking();
+
+    /**
+     * Called after each attempt to acquire global lock
+     * If it was failed, state registered by {@link #beforeGlobalLocking()} must be removed
+     * without touching a global thread which isn't the caller
+     *
+     * @param isLocked
+     */
+    default void afterGlobalLocking(final boolean isLocked) {
+    }
+
+    /**
+     * @return true if a thread other than the caller can be chosen as a victim,
+     * in this case a locker has to wait entities interruptibly
+     */
+    boolean canAbortOtherThreads();
+
+    /**
+     * @return true if caller thread was chosen as a victim of deadlock by other thread
+     */
+    boolean isCurrentThreadVictim();
+
+    /**
+     * Must be called by a locker if waiting of an entity was failed
+     *
+     * @throws DeadlockPreventedException if caller thread was chosen as a victim of deadlock
+     */
+    void throwIfVictim() throws DeadlockPreventedException;
+}
@@ -0,0 +1,149 @@
+package deadlockpreventer;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import log.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Deadlock is impossible if every thread locks entities in the same order, so there is nothing to detect
+ * <p>
+ * In debug mode every new entity is checked in O(1) against the last entity which caller thread holds and
+ * locking out of order fails fast. Global lock is ordered before all entities, so a thread which holds entities
+ * can't lock it. Without debug mode the order isn't checked and all callbacks do nothing
+ *
+ * @param <T>
+ */
+public class LockOrderPreventer<T> implements DeadlockPreventionStrategy<T> {
+    private final Comparator<? super T> lockOrder;
+    private final boolean isOrderChecked;
+
+    /**
+     * Entities held by a thread in lock order, so the last one is the greatest
+     */
+    private final ThreadLocal<List<T>> heldEntities;
+
+    public LockOrderPreventer(final Comparator<? super T> lockOrder) {
+        this(lockOrder, LogUtils.isDebugEnabled());
+    }
+
+    /**
+     * @param lockOrder
+     * @param isOrderChecked - check order even if debug mode is disabled
+     */
+    public LockOrderPreventer(final Comparator<? super T> lockOrder, final boolean isOrderChecked) {
+        this.lockOrder = lockOrder;
+        this.isOrderChecked = isOrderChecked;
+        this.heldEntities = ThreadLocal.withInitial(ArrayList::new);
+    }
+
+    /**
+     * @param entityId
+     * @throws DeadlockPreventedException if entityId isn't held and isn't greater than the last held entity
+     */
+    @Override
+    public void beforeLockRequest(final T entityId) throws DeadlockPreventedException {
+        if (!isOrderChecked) {
+            return;
+        }
+
+        final List<T> entities = heldEntities.get();
+        if (entities.isEmpty()) {
+            return;
+        }
+
+        final T lastEntity = entities.get(entities.size() - 1);
+        final int order = lockOrder.compare(entityId, lastEntity);
+        if (order >= 0 || Collections.binarySearch(entities, entityId, lockOrder) >= 0) {
+            return;
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        final String message = "Thread {" + currentThread + "} unable to lock entity {" + entityId + "} out of order." +
+                " Last locked entity {" + lastEntity + "}";
+        throw new DeadlockPreventedException(message, currentThread, currentThread);
+    }
+
+    @Override
+    public void beforeLocking(final T entityId) {
+    }
+
+    @Override
+    public void afterLocking(final T entityId, final boolean isLocked) {
+        if (!isOrderChecked || !isLocked) {
+            return;
+        }
+
+        final List<T> entities = heldEntities.get();
+        if (entities.isEmpty() || lockOrder.compare(entityId, entities.get(entities.size() - 1)) > 0) {
+            entities.add(entityId);
+            return;
+        }
+
+        //Entity is locked again after waiting of its condition, so it can be less than the last one
+        final int index = Collections.binarySearch(entities, entityId, lockOrder);
+        if (index < 0) {
+            entities.add(-index - 1, entityId);
+        }
+    }
+
+    /**
+     * Usually entities are unlocked in reverse order, so the last one is removed in O(1)
+     *
+     * @param entityId
+     */
+    @Override
+    public void beforeUnlocking(final T entityId) {
+        if (!isOrderChecked) {
+            return;
+        }
+
+        final List<T> entities = heldEntities.get();
+        final int last = entities.size() - 1;
+        if (last >= 0 && lockOrder.compare(entityId, entities.get(last)) == 0) {
+            entities.remove(last);
+            return;
+        }
+
+        final int index = Collections.binarySearch(entities, entityId, lockOrder);
+        if (index >= 0) {
+            entities.remove(index);
+        }
+    }
+
+    /**
+     * @throws DeadlockPreventedException if caller thread holds entities
+     */
+    @Override
+    public void beforeGlobalLocking() throws DeadlockPreventedException {
+        if (!isOrderChecked || heldEntities.get().isEmpty()) {
+            return;
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        final String message = "Thread {" + currentThread + "} unable to acquire global lock out of order." +
+                " Global lock must be locked before entities";
+        throw new DeadlockPreventedException(message, currentThread, currentThread);
+    }
+
+    @Override
+    public void beforeGlobalUnlocking() {
+    }
+
+    @Override
+    public boolean canAbortOtherThreads() {
+        return false;
+    }
+
+    @Override
+    public boolean isCurrentThreadVictim() {
+        return false;
+    }
+
+    @Override
+    public void throwIfVictim() {
+    }
+}
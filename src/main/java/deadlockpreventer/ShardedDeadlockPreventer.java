@@ -0,0 +1,120 @@
+package deadlockpreventer;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Coordinating layer of deadlock prevention for sharded lockers
+ * <p>
+ * Every partition keeps owners of its entities in its own {@link DeadlockPreventer}, so not contended locking
+ * touches only partition state. Waiting threads and the global thread are kept here
+ * because a wait-for cycle can go through several partitions.
+ * <p>
+ * This class is used only on contended and global paths
+ *
+ * @param <T>
+ */
+public class ShardedDeadlockPreventer<T> {
+    private final Function<T, DeadlockPreventer<T>> partitionPreventer;
+    private final Map<Thread, T> waitingThreads;
+    private Thread globalThread;
+
+    /**
+     * @param partitionPreventer - returns preventer of the partition which contains entity
+     */
+    public ShardedDeadlockPreventer(final Function<T, DeadlockPreventer<T>> partitionPreventer) {
+        this.partitionPreventer = partitionPreventer;
+        this.waitingThreads = new HashMap<>();
+    }
+
+    /**
+     * Same as {@link DeadlockPreventer#beforeLocking(Object)} but the search goes through all partitions
+     *
+     * @param entityId
+     * @throws DeadlockPreventedException
+     */
+    public synchronized void beforeLocking(final T entityId) throws DeadlockPreventedException {
+        final Thread currentThread = Thread.currentThread();
+
+        T waitedEntity = entityId;
+        while (waitedEntity != null) {
+            final Thread entityThread = lockerThread(waitedEntity);
+            if (entityThread == null) {
+                break;
+            }
+
+            if (entityThread == currentThread || entityThread == globalThread) {
+                final Thread lockerThread = lockerThread(entityId);
+                final String message = "Thread {" + currentThread + "} unable to lock entity {" + entityId + "} due case of deadlock." +
+                        " Entity pending by {" + lockerThread + "}";
+                throw new DeadlockPreventedException(message, currentThread, lockerThread);
+            }
+
+            waitedEntity = waitingThreads.get(entityThread);
+        }
+
+        waitingThreads.put(currentThread, entityId);
+    }
+
+    /**
+     * Remove caller thread from waiting threads
+     * It must be called before an acquired entity registered in partition preventer,
+     * otherwise the thread looks like waiting its own entity
+     */
+    public synchronized void afterWaiting() {
+        waitingThreads.remove(Thread.currentThread());
+    }
+
+    /**
+     * Called by the thread which already got exclusive right to be global thread, but didn't wait other threads yet
+     * If some thread waits an entity of the caller thread it will never complete, so we cancel global locking
+     *
+     * @throws DeadlockPreventedException
+     */
+    public synchronized void beforeGlobalLocking() throws DeadlockPreventedException {
+        final Thread currentThread = Thread.currentThread();
+
+        for (final Map.Entry<Thread, T> entry : waitingThreads.entrySet()) {
+            if (entry.getValue() != null && lockerThread(entry.getValue()) == currentThread) {
+                final Thread failThread = entry.getKey();
+                throw new DeadlockPreventedException(globalDeadlockPreventedMessage(failThread, currentThread),
+                        failThread, currentThread);
+            }
+        }
+
+        globalThread = currentThread;
+    }
+
+    /**
+     * Reset global thread
+     */
+    public synchronized void beforeGlobalUnlocking() {
+        globalThread = null;
+    }
+
+    /**
+     * @return thread which holds or acquires global lock
+     */
+    public synchronized Thread globalThread() {
+        return globalThread;
+    }
+
+    /**
+     * Helper method to create exception message
+     *
+     * @param failThread
+     * @param lockedThread
+     * @return
+     */
+    public static String globalDeadlockPreventedMessage(final Thread failThread, final Thread lockedThread) {
+        return "Thread {" + failThread + "} unable to acquire global lock due case of deadlock." +
+                " Entity pending by {" + lockedThread + "}";
+    }
+
+    private Thread lockerThread(final T entityId) {
+        return partitionPreventer.apply(entityId).lockerThread(entityId);
+    }
+}
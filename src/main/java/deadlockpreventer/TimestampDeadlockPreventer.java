@@ -0,0 +1,441 @@
+package deadlockpreventer;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Prevents deadlocks by transaction timestamps without wait-for graph
+ * <p>
+ * Transaction of a thread starts when it locks the first entity and ends when it unlocks the last one,
+ * older transaction has smaller timestamp. Only the requester and the owner of an entity are compared,
+ * so decision is O(1) and entity locking doesn't need a global monitor:
+ * <ul>
+ * <li>{@link Scheme#WAIT_DIE} - older requester waits, younger requester is aborted</li>
+ * <li>{@link Scheme#WOUND_WAIT} - older requester wounds the owner and waits, younger requester waits.
+ * Wounded owner is interrupted if it waits and aborted when it waits the next entity</li>
+ * </ul>
+ * Threads wait each other only in one direction of age, so a cycle is impossible.
+ * Thread which was aborted keeps its timestamp for the next transaction, so it becomes the oldest and can't starve.
+ * <p>
+ * Owner of an entity can change while a thread waits it, so a new owner compares itself with waiters of the entity
+ * and a waiter can be aborted after it started waiting. Unlike {@link DeadlockPreventer} a thread can be aborted
+ * without real deadlock
+ *
+ * @param <T>
+ */
+public class TimestampDeadlockPreventer<T> implements DeadlockPreventionStrategy<T> {
+    public enum Scheme {
+        WAIT_DIE,
+        WOUND_WAIT
+    }
+
+    private final Scheme scheme;
+
+    /**
+     * Transaction which holds an entity
+     */
+    private final Map<T, Transaction<T>> owners;
+
+    /**
+     * Transactions which wait an entity
+     */
+    private final Map<T, Set<Transaction<T>>> waiters;
+
+    private final ThreadLocal<Transaction<T>> transactions;
+    private volatile Transaction<T> globalTransaction;
+
+    public TimestampDeadlockPreventer() {
+        this(Scheme.WAIT_DIE);
+    }
+
+    public TimestampDeadlockPreventer(final Scheme scheme) {
+        this.scheme = scheme;
+        this.owners = new ConcurrentHashMap<>();
+        this.waiters = new ConcurrentHashMap<>();
+        this.transactions = ThreadLocal.withInitial(() -> new Transaction<>(Thread.currentThread()));
+    }
+
+    public Scheme scheme() {
+        return scheme;
+    }
+
+    /**
+     * Thread which doesn't hold any entity can't close a cycle, so it always waits,
+     * except the case when the owner is a global thread which waits all locking threads
+     *
+     * @param entityId
+     * @throws DeadlockPreventedException if caller thread must be aborted or it was aborted before
+     */
+    @Override
+    public void beforeLocking(final T entityId) throws DeadlockPreventedException {
+        final Transaction<T> current = transactions.get();
+
+        //Register before reading the owner and global transaction, they do it in reverse order
+        startWaiting(current, entityId);
+
+        final Transaction<T> owner = owners.get(entityId);
+        if (owner == null || owner == current) {
+            return;
+        }
+
+        if (owner == globalTransaction) {
+            abortCurrent(current, entityId, owner);
+        }
+
+        final DeadlockPreventedException abort = current.abort;
+        if (abort != null) {
+            stopWaitingAborted(current);
+            current.abort = null;
+            current.keepTimestamp = true;
+            throw abort;
+        }
+
+        if (current.lockedEntities == 0) {
+            return;
+        }
+
+        if (current.isOlderThan(owner)) {
+            if (scheme == Scheme.WOUND_WAIT) {
+                abort(owner, woundedMessage(owner.thread, current.thread), current.thread);
+            }
+        } else if (scheme == Scheme.WAIT_DIE) {
+            abortCurrent(current, entityId, owner);
+        }
+    }
+
+    /**
+     * Switch transaction from waiting to owning of the entity, the first entity starts transaction
+     * <p>
+     * New owner compares itself with threads which started waiting the entity before it was registered as owner
+     *
+     * @param entityId
+     * @param isLocked
+     */
+    @Override
+    public void afterLocking(final T entityId, final boolean isLocked) {
+        final Transaction<T> current = transactions.get();
+
+        //Thread acquired an entity before it noticed the interruption, it will be aborted on the next waiting.
+        //Failed waiting keeps the interruption, so the locker replaces it by the abort
+        if (current.waitedEntity != null && stopWaiting(current) && isLocked) {
+            Thread.interrupted();
+        }
+
+        if (!isLocked || owners.get(entityId) == current) {
+            return;
+        }
+
+        owners.put(entityId, current);
+        if (current.lockedEntities++ == 0) {
+            if (current.keepTimestamp) {
+                current.keepTimestamp = false;
+            } else {
+                current.timestamp = System.nanoTime();
+            }
+        }
+
+        final Set<Transaction<T>> entityWaiters = waiters.get(entityId);
+        if (entityWaiters != null) {
+            checkWaiters(current, entityId, entityWaiters);
+        }
+    }
+
+    /**
+     * The last entity ends transaction and cancels its abort
+     *
+     * @param entityId
+     */
+    @Override
+    public void beforeUnlocking(final T entityId) {
+        final Transaction<T> current = transactions.get();
+
+        owners.remove(entityId);
+        if (--current.lockedEntities == 0) {
+            current.abort = null;
+        }
+    }
+
+    /**
+     * Global thread waits all locking threads, so threads which wait its entities close a cycle.
+     * Under {@link Scheme#WOUND_WAIT} older global thread wounds them, otherwise global thread is aborted.
+     * <p>
+     * Global locking is rare, so here we use a monitor and iterate over all waiters
+     *
+     * @throws DeadlockPreventedException
+     */
+    @Override
+    public void beforeGlobalLocking() throws DeadlockPreventedException {
+        final Transaction<T> current = transactions.get();
+        final boolean isNewGlobal;
+
+        synchronized (this) {
+            final Transaction<T> global = globalTransaction;
+            if (global != null && global != current && current.lockedEntities > 0) {
+                final String message = globalDeadlockPreventedMessage(current.thread, global.thread);
+                throw new DeadlockPreventedException(message, current.thread, global.thread);
+            }
+
+            isNewGlobal = global == null;
+            if (isNewGlobal) {
+                globalTransaction = current;
+            }
+        }
+
+        if (current.lockedEntities == 0) {
+            return;
+        }
+
+        for (final Map.Entry<T, Set<Transaction<T>>> entry : waiters.entrySet()) {
+            if (owners.get(entry.getKey()) != current) {
+                continue;
+            }
+
+            for (final Transaction<T> waiting : entry.getValue()) {
+                if (waiting == current) {
+                    continue;
+                }
+
+                if (scheme == Scheme.WOUND_WAIT && current.isOlderThan(waiting)) {
+                    abort(waiting, woundedMessage(waiting.thread, current.thread), current.thread);
+                    continue;
+                }
+
+                if (isNewGlobal) {
+                    globalTransaction = null;
+                }
+                current.keepTimestamp = true;
+
+                final String message = globalDeadlockPreventedMessage(current.thread, waiting.thread);
+                throw new DeadlockPreventedException(message, current.thread, waiting.thread);
+            }
+        }
+    }
+
+    @Override
+    public void beforeGlobalUnlocking() {
+        globalTransaction = null;
+    }
+
+    @Override
+    public synchronized void afterGlobalLocking(final boolean isLocked) {
+        if (!isLocked && globalTransaction == transactions.get()) {
+            globalTransaction = null;
+        }
+    }
+
+    /**
+     * @return true, because a new owner of an entity can abort its waiters under both schemes
+     */
+    @Override
+    public boolean canAbortOtherThreads() {
+        return true;
+    }
+
+    @Override
+    public boolean isCurrentThreadVictim() {
+        return transactions.get().abort != null;
+    }
+
+    @Override
+    public void throwIfVictim() throws DeadlockPreventedException {
+        final Transaction<T> current = transactions.get();
+        final DeadlockPreventedException abort = current.abort;
+
+        if (abort != null) {
+            current.abort = null;
+            current.keepTimestamp = true;
+            throw abort;
+        }
+    }
+
+    /**
+     * The same decision as in {@link #beforeLocking(Object)}, but made by the owner for waiters
+     *
+     * @param owner
+     * @param entityId
+     * @param entityWaiters
+     */
+    private void checkWaiters(final Transaction<T> owner, final T entityId, final Set<Transaction<T>> entityWaiters) {
+        for (final Transaction<T> waiting : entityWaiters) {
+            if (waiting == owner || waiting.lockedEntities == 0) {
+                continue;
+            }
+
+            if (waiting.isOlderThan(owner)) {
+                if (scheme == Scheme.WOUND_WAIT) {
+                    abort(owner, woundedMessage(owner.thread, waiting.thread), waiting.thread);
+                }
+            } else if (scheme == Scheme.WAIT_DIE) {
+                abort(waiting, deadlockPreventedMessage(waiting.thread, entityId, owner.thread), owner.thread);
+            }
+        }
+    }
+
+    /**
+     * Mark transaction as aborted and interrupt it if it waits, otherwise it is aborted on the next waiting
+     *
+     * @param victim
+     * @param message
+     * @param lockerThread
+     */
+    private void abort(final Transaction<T> victim, final String message, final Thread lockerThread) {
+        if (victim.abort == null) {
+            victim.abort = new DeadlockPreventedException(message, victim.thread, lockerThread);
+        }
+
+        victim.interruptIfWaiting();
+    }
+
+    private void abortCurrent(final Transaction<T> current, final T entityId, final Transaction<T> owner)
+            throws DeadlockPreventedException {
+        stopWaitingAborted(current);
+        current.keepTimestamp = true;
+
+        final String message = deadlockPreventedMessage(current.thread, entityId, owner.thread);
+        throw new DeadlockPreventedException(message, current.thread, owner.thread);
+    }
+
+    private void startWaiting(final Transaction<T> current, final T entityId) {
+        current.waitedEntity = entityId;
+        current.waitState = Transaction.WAITING;
+        waiters.compute(entityId, (entity, entityWaiters) -> {
+            final Set<Transaction<T>> result = entityWaiters == null ? ConcurrentHashMap.newKeySet() : entityWaiters;
+            result.add(current);
+            return result;
+        });
+    }
+
+    /**
+     * @param current
+     * @return true if caller thread was interrupted by this preventer while it waited
+     */
+    private boolean stopWaiting(final Transaction<T> current) {
+        final T entityId = current.waitedEntity;
+        current.waitedEntity = null;
+        waiters.computeIfPresent(entityId, (entity, entityWaiters) -> {
+            entityWaiters.remove(current);
+            return entityWaiters.isEmpty() ? null : entityWaiters;
+        });
+        return current.stopWaiting();
+    }
+
+    /**
+     * Caller thread throws the abort instead of waiting, so interruption delivered for the same abort is cleared
+     *
+     * @param current
+     */
+    private void stopWaitingAborted(final Transaction<T> current) {
+        if (stopWaiting(current)) {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Helper method to create exception message
+     * @param failThread
+     * @param lockedThread
+     * @return
+     */
+    private String globalDeadlockPreventedMessage(final Thread failThread, final Thread lockedThread) {
+        return "Thread {" + failThread + "} unable to acquire global lock due case of deadlock." +
+                " Entity pending by {" + lockedThread + "}";
+    }
+
+    /**
+     * Helper method to create exception message
+     * @param failThread
+     * @param originEntity
+     * @param lockedThread
+     * @return
+     */
+    private String deadlockPreventedMessage(final Thread failThread, final T originEntity, final Thread lockedThread) {
+        return "Thread {" + failThread + "} unable to lock entity {" + originEntity + "} due case of deadlock." +
+                " Entity pending by {" + lockedThread + "}";
+    }
+
+    /**
+     * Helper method to create exception message
+     * @param failThread
+     * @param olderThread
+     * @return
+     */
+    private String woundedMessage(final Thread failThread, final Thread olderThread) {
+        return "Thread {" + failThread + "} was wounded by older thread {" + olderThread + "} due case of deadlock";
+    }
+
+    /**
+     * State of a thread, fields without volatile are changed and read only by the owner thread
+     * <p>
+     * Interruption is handed off by CAS of {@link #waitState}: other thread interrupts the owner only
+     * if it moved the state from {@link #WAITING}, and the owner which stops waiting waits such interruption
+     * to be delivered, so it can't escape to code after waiting
+     */
+    private static class Transaction<T> {
+        private static final int IDLE = 0;
+        private static final int WAITING = 1;
+        private static final int INTERRUPTING = 2;
+        private static final int INTERRUPTED = 3;
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Transaction> WAIT_STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Transaction.class, "waitState");
+
+        private final Thread thread;
+        private volatile long timestamp;
+        private volatile int lockedEntities;
+        private boolean keepTimestamp;
+        private volatile T waitedEntity;
+        private volatile DeadlockPreventedException abort;
+        private volatile int waitState;
+
+        private Transaction(final Thread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Called by other thread. Pending interruption isn't delivered by the preventer, so it isn't cleared later
+         */
+        private void interruptIfWaiting() {
+            if (WAIT_STATE.compareAndSet(this, WAITING, INTERRUPTING)) {
+                final boolean isDelivered = !thread.isInterrupted();
+                if (isDelivered) {
+                    thread.interrupt();
+                }
+                waitState = isDelivered ? INTERRUPTED : IDLE;
+            }
+        }
+
+        /**
+         * Called by the owner thread
+         *
+         * @return true if the owner was interrupted by {@link #interruptIfWaiting()}
+         */
+        private boolean stopWaiting() {
+            while (!WAIT_STATE.compareAndSet(this, WAITING, IDLE)) {
+                final int state = waitState;
+                if (state == INTERRUPTED) {
+                    waitState = IDLE;
+                    return true;
+                }
+                if (state == IDLE) {
+                    return false;
+                }
+                //Other thread is delivering interruption right now
+                Thread.yield();
+            }
+            return false;
+        }
+
+        /**
+         * Equal timestamps are ordered by thread id
+         */
+        private boolean isOlderThan(final Transaction<T> other) {
+            final long difference = timestamp - other.timestamp;
+            return difference < 0 || difference == 0 && thread.getId() < other.thread.getId();
+        }
+    }
+}
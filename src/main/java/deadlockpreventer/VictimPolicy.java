@@ -0,0 +1,68 @@
+package deadlockpreventer;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses which thread of a wait-for cycle gets {@link deadlockpreventer.exceptions.DeadlockPreventedException}
+ * <p>
+ * Aborted thread has to release its entities and retry, so a good policy minimizes wasted work
+ */
+@FunctionalInterface
+public interface VictimPolicy {
+
+    /**
+     * @param candidates - not empty list of threads which can be aborted
+     * @return the victim
+     */
+    DeadlockCandidate choose(List<DeadlockCandidate> candidates);
+
+    /**
+     * Abort a thread which holds the least count of entities
+     */
+    static VictimPolicy fewestLocks() {
+        return minimal(Comparator.comparingInt(DeadlockCandidate::lockedEntities));
+    }
+
+    /**
+     * Abort a thread which started its transaction the last
+     */
+    static VictimPolicy youngestTransaction() {
+        return minimal(Comparator.comparingLong((DeadlockCandidate candidate) -> candidate.transactionStart()).reversed());
+    }
+
+    /**
+     * Abort a thread with the lowest {@link Thread#getPriority()}
+     */
+    static VictimPolicy lowestPriority() {
+        return minimal(Comparator.comparingInt(candidate -> candidate.thread().getPriority()));
+    }
+
+    /**
+     * Abort a thread which started waiting the last
+     */
+    static VictimPolicy leastWaitTime() {
+        return minimal(Comparator.comparingLong((DeadlockCandidate candidate) -> candidate.waitingSince()).reversed());
+    }
+
+    /**
+     * Ties are resolved by {@link #leastWaitTime()} to keep the same victim as a thread which closes the cycle
+     *
+     * @param comparator
+     * @return policy which chooses minimal candidate
+     */
+    static VictimPolicy minimal(final Comparator<DeadlockCandidate> comparator) {
+        final Comparator<DeadlockCandidate> withTies = comparator
+                .thenComparing(Comparator.comparingLong(DeadlockCandidate::waitingSince).reversed());
+
+        return candidates -> {
+            DeadlockCandidate victim = candidates.get(0);
+            for (int i = 1; i < candidates.size(); i++) {
+                if (withTies.compare(candidates.get(i), victim) < 0) {
+                    victim = candidates.get(i);
+                }
+            }
+            return victim;
+        };
+    }
+}
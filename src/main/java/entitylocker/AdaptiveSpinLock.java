@@ -0,0 +1,104 @@
+package entitylocker;
+
+/**
+ * {@link EntityLock} which spins a bit before parking a caller thread in {@link #lock()}
+ * <p>
+ * Protected code usually is very short and parking costs a context switch per handoff, so if the entity is held
+ * for a short time it's cheaper to wait the owner in a busy loop.
+ * Spin budget is adaptive and based on the average hold time of this entity:
+ * if the entity is held longer than {@link #MAX_SPIN_NANOS} we don't spin at all
+ * <p>
+ * Hold time is measured by {@link System#nanoTime()} from {@link #lockedNanos()}, which is stamped only
+ * on the first hold, because spinning is useful for holds much shorter than resolution of {@link CoarseClock}
+ * <p>
+ * Also we stop spinning if the owner thread doesn't run (it's waiting, sleeping or blocked),
+ * because in this case it won't release the entity soon
+ * <p>
+ * P.S. Thread.onSpinWait() is available only since Java 9, so the loop is a plain busy loop
+ */
+class AdaptiveSpinLock extends EntityLock {
+    /**
+     * Spinning is useless on a single processor because the owner cannot run while we are spinning
+     */
+    private static final boolean MULTIPROCESSOR = Runtime.getRuntime().availableProcessors() > 1;
+
+    private static final long MAX_SPIN_NANOS = 50_000;
+
+    /**
+     * Initial hold time estimation. It allows spinning for new entities
+     */
+    private static final long INITIAL_HOLD_NANOS = 1_000;
+
+    /**
+     * Checking of owner state and time are expensive, so we do it once per this count of spins
+     */
+    private static final int CHECK_PERIOD_MASK = 0x3F;
+
+    /**
+     * Exponential moving average of hold time with weight 1/8
+     */
+    private volatile long averageHoldNanos;
+
+    AdaptiveSpinLock() {
+        super(true);
+        this.averageHoldNanos = INITIAL_HOLD_NANOS;
+    }
+
+    @Override
+    public void lock() {
+        if (!spinLock()) {
+            super.lock();
+        }
+    }
+
+    /**
+     * Time of the first hold is published by the hold count, so it's right for the owner which received a transfer too
+     */
+    @Override
+    public void unlock() {
+        if (getHoldCount() == 1) {
+            final long holdTime = System.nanoTime() - lockedNanos();
+            final long average = averageHoldNanos;
+            averageHoldNanos = average + ((holdTime - average) >> 3);
+        }
+        super.unlock();
+    }
+
+    /**
+     * Busy waiting of the entity
+     *
+     * @return true if lock acquired while spinning, false if a caller thread should be parked
+     */
+    private boolean spinLock() {
+        //Covers reentrant and not contended cases
+        if (super.tryLock()) {
+            return true;
+        }
+
+        final long spinBudget = averageHoldNanos << 1;
+        if (!MULTIPROCESSOR || spinBudget > MAX_SPIN_NANOS) {
+            return false;
+        }
+
+        final long start = System.nanoTime();
+        int spins = 0;
+        while (true) {
+            if (!isLocked() && super.tryLock()) {
+                return true;
+            }
+
+            if ((++spins & CHECK_PERIOD_MASK) == 0 && (isOwnerDescheduled() || System.nanoTime() - start > spinBudget)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Java doesn't allow to know if a thread is preempted by OS,
+     * so we consider a thread descheduled if it isn't in {@link Thread.State#RUNNABLE} state
+     */
+    private boolean isOwnerDescheduled() {
+        final Thread owner = getOwner();
+        return owner != null && owner.getState() != Thread.State.RUNNABLE;
+    }
+}
@@ -0,0 +1,42 @@
+package entitylocker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock for timestamps on the fast path: reading it is one volatile read instead of {@link System#nanoTime()}.
+ * A daemon thread samples {@link System#nanoTime()} every {@link #RESOLUTION_MILLIS}, so the time can be behind
+ * by this resolution, it's used only for introspection of hold times, e.g. {@link LockTableSnapshot}.
+ * Lock tuning measures holds shorter than the resolution, so {@link AdaptiveSpinLock} uses {@link System#nanoTime()}
+ */
+final class CoarseClock {
+    static final long RESOLUTION_MILLIS = 10;
+
+    private static volatile long nanoTime = System.nanoTime();
+
+    static {
+        final Thread ticker = new Thread(CoarseClock::tick, "coarse-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    /**
+     * @return the last sampled {@link System#nanoTime()}
+     */
+    static long nanoTime() {
+        return nanoTime;
+    }
+
+    private static void tick() {
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(RESOLUTION_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            nanoTime = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,642 @@
+package entitylocker;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static log.utils.LogUtils.logDebugCurrentThread;
+import static log.utils.LogUtils.logError;
+
+/**
+ * Entity locker for millions of held entities, for example during bulk imports
+ * <p>
+ * There is no lock object per entity. Held entities are stored in open addressing tables of segments,
+ * a slot keeps the key, the owner thread and the hold count in parallel arrays, that is 12 bytes per slot
+ * with compressed oops and from 16 to 32 bytes per held entity with load factor from 0.375 to 0.75.
+ * Free entities don't take any memory and deadlock prevention doesn't keep per entity state.
+ * <p>
+ * Threads wait entities on the monitor of a segment. Deadlocks are prevented by wait-die rule:
+ * thread which holds entities waits only an owner with younger transaction, otherwise it's aborted.
+ * The owner is read under the same monitor which changes it and a waiter checks it again after every wake up,
+ * so a thread never waits without the check.
+ * <p>
+ * Every thread which holds entities holds the read lock of {@link #gateLock} once, so the count of held entities
+ * isn't limited by read hold count of {@link ReentrantReadWriteLock} as in {@link MultiEntityLocker}.
+ * Global thread acquires {@link #globalMutex} and then the write lock of the gate.
+ * <p>
+ * This entity locker doesn't support null entities
+ *
+ * @param <T>
+ */
+public class CompactEntityLocker<T> implements EntityLocker<T> {
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int segmentMask;
+
+    private final EscalatorDetector escalatorDetector;
+    private final ReentrantLock globalMutex;
+    private final ReentrantReadWriteLock gateLock;
+
+    /**
+     * Transactions of threads which hold entities, waiter finds here the timestamp of the owner
+     */
+    private final Map<Thread, Transaction> transactions;
+    private final ThreadLocal<Transaction> currentTransaction;
+    private volatile Thread globalThread;
+
+    public CompactEntityLocker() {
+        this(Runtime.getRuntime().availableProcessors() * 16);
+    }
+
+    public CompactEntityLocker(final int segmentsCount) {
+        this(segmentsCount, 100);
+    }
+
+    /**
+     * @param segmentsCount        - rounded up to power of two
+     * @param minLocksBeforeGlobal
+     */
+    public CompactEntityLocker(final int segmentsCount, final int minLocksBeforeGlobal) {
+        final int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, segmentsCount) - 1);
+
+        this.segments = new Segment[1 << bits];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(MIN_SEGMENT_CAPACITY);
+        }
+        this.segmentShift = 32 - bits;
+        this.segmentMask = segments.length - 1;
+
+        this.escalatorDetector = new EscalatorDetector(minLocksBeforeGlobal);
+        this.globalMutex = new ReentrantLock();
+        this.gateLock = new ReentrantReadWriteLock();
+        this.transactions = new ConcurrentHashMap<>();
+        this.currentTransaction = ThreadLocal.withInitial(() -> new Transaction(Thread.currentThread()));
+    }
+
+    @Override
+    public void lock(final T entityId) throws DeadlockPreventedException {
+        lock(entityId, true, false, 0);
+    }
+
+    @Override
+    public boolean tryLock(final T entityId) throws DeadlockPreventedException {
+        return lock(entityId, false, false, 0);
+    }
+
+    @Override
+    public boolean tryLock(final T entityId, final long timeout, final TimeUnit unit) throws DeadlockPreventedException {
+        final long nanos = unit.toNanos(timeout);
+        return lock(entityId, true, isTimed(nanos), System.nanoTime() + nanos);
+    }
+
+    @Override
+    public void unlock(final T entityId) {
+        final Thread currentThread = Thread.currentThread();
+        final int hash = hash(entityId);
+        final Segment segment = segment(hash);
+
+        synchronized (segment) {
+            final int index = segment.indexOf(entityId, hash);
+
+            if (index < 0) {
+                final String message = "There is no locks for entity {" + entityId + "}";
+                logError(message);
+                throw new IllegalMonitorStateException(message);
+            }
+
+            if (segment.owners[index] != currentThread) {
+                final String message = currentThread + " cannot unlock entity - {" + entityId + "} because it's hold by other thread";
+                logError(message);
+                throw new IllegalAccessError(message);
+            }
+
+            if (--segment.holds[index] == 0) {
+                logDebugCurrentThread("It's last lock for entity {" + entityId + "} removing it");
+                segment.remove(index);
+
+                if (segment.waiters > 0) {
+                    segment.notifyAll();
+                }
+            }
+        }
+
+        final boolean isNeedDeescalation = escalatorDetector.decThreadEntityCounter();
+        if (escalatorDetector.currentThreadLockedEntities() == 0) {
+            leaveGate();
+        }
+
+        if (isNeedDeescalation) {
+            logDebugCurrentThread("deescalate global lock");
+            globalUnlock();
+        }
+    }
+
+    @Override
+    public boolean isLockedByCurrentThread(final T entityId) {
+        final int hash = hash(entityId);
+        final Segment segment = segment(hash);
+
+        synchronized (segment) {
+            final int index = segment.indexOf(entityId, hash);
+            if (index >= 0 && segment.owners[index] == Thread.currentThread()) {
+                return true;
+            }
+        }
+
+        return gateLock.isWriteLockedByCurrentThread();
+    }
+
+    @Override
+    public void globalLock() throws DeadlockPreventedException {
+        globalLock(true, false, 0);
+    }
+
+    @Override
+    public boolean tryGlobalLock() throws DeadlockPreventedException {
+        return globalLock(false, false, 0);
+    }
+
+    @Override
+    public boolean tryGlobalLock(final long timeout, final TimeUnit unit) throws DeadlockPreventedException {
+        final long nanos = unit.toNanos(timeout);
+        return globalLock(true, isTimed(nanos), System.nanoTime() + nanos);
+    }
+
+    @Override
+    public void globalUnlock() {
+        logDebugCurrentThread("release global lock");
+        if (gateLock.getWriteHoldCount() == 1) {
+            globalThread = null;
+        }
+        escalatorDetector.cancelEscalation();
+        gateLock.writeLock().unlock();
+        globalMutex.unlock();
+    }
+
+    @Override
+    public int currentSize() {
+        int size = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Timed escalation waits other threads until the deadline, if it's elapsed the entity is held anyway
+     * and escalation will be tried again on next locking
+     *
+     * @param entityId
+     * @param isWaiting - false for tryLock without timeout
+     * @param isTimed
+     * @param deadline  - {@link System#nanoTime()} when timed waiting fails
+     * @return
+     * @throws DeadlockPreventedException
+     */
+    private boolean lock(final T entityId, final boolean isWaiting, final boolean isTimed, final long deadline)
+            throws DeadlockPreventedException {
+        logDebugCurrentThread("try gain lock for entity {" + entityId + "}");
+
+        final Transaction transaction = currentTransaction.get();
+        final boolean isFirstEntity = escalatorDetector.currentThreadLockedEntities() == 0;
+
+        if (isFirstEntity) {
+            if (!enterGate(isWaiting, isTimed, deadline)) {
+                return false;
+            }
+            transaction.begin();
+            transactions.put(transaction.thread, transaction);
+        }
+
+        boolean isLockGranted = false;
+        try {
+            isLockGranted = lockEntity(entityId, transaction, isWaiting, isTimed, deadline);
+        } finally {
+            if (!isLockGranted && isFirstEntity) {
+                leaveGate();
+            }
+        }
+
+        if (!isLockGranted) {
+            logDebugCurrentThread("cannot gain lock for entity {" + entityId + "}");
+            return false;
+        }
+
+        logDebugCurrentThread("gain lock for entity {" + entityId + "}");
+        if (escalatorDetector.incThreadEntityCounter()) {
+            logDebugCurrentThread("start promotion to global lock due escalation");
+            if (!globalLock(true, isTimed, deadline)) {
+                logDebugCurrentThread("cannot promote to global lock before deadline");
+                escalatorDetector.cancelEscalation();
+            }
+        }
+        return true;
+    }
+
+    private boolean lockEntity(final T entityId, final Transaction transaction, final boolean isWaiting,
+                               final boolean isTimed, final long deadline) throws DeadlockPreventedException {
+        final int hash = hash(entityId);
+        final Segment segment = segment(hash);
+        boolean isInterrupted = false;
+
+        synchronized (segment) {
+            try {
+                while (true) {
+                    final int index = segment.indexOf(entityId, hash);
+
+                    if (index < 0) {
+                        segment.insert(entityId, hash, transaction.thread);
+                        return true;
+                    }
+
+                    final Thread owner = segment.owners[index];
+                    if (owner == transaction.thread) {
+                        segment.holds[index]++;
+                        return true;
+                    }
+
+                    final long remaining = deadline - System.nanoTime();
+                    if (!isWaiting || isTimed && remaining <= 0) {
+                        return false;
+                    }
+
+                    //Register before reading global thread, global locking does it in reverse order
+                    transaction.waitedEntity = entityId;
+                    checkWaitDie(entityId, transaction, owner);
+                    logDebugCurrentThread("waiting lock for entity {" + entityId + "}");
+
+                    segment.waiters++;
+                    try {
+                        if (isTimed) {
+                            TimeUnit.NANOSECONDS.timedWait(segment, remaining);
+                        } else {
+                            segment.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        isInterrupted = true;
+                        if (isTimed) {
+                            return false;
+                        }
+                    } finally {
+                        segment.waiters--;
+                    }
+                }
+            } finally {
+                transaction.waitedEntity = null;
+                if (isInterrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Thread which doesn't hold entities can't close a cycle, so it always waits,
+     * except the case when the owner is a global thread which waits all threads with entities
+     *
+     * @param entityId
+     * @param transaction
+     * @param owner
+     * @throws DeadlockPreventedException if caller thread is younger than the owner
+     */
+    private void checkWaitDie(final T entityId, final Transaction transaction, final Thread owner)
+            throws DeadlockPreventedException {
+        if (owner != globalThread) {
+            if (escalatorDetector.currentThreadLockedEntities() == 0) {
+                return;
+            }
+
+            final Transaction ownerTransaction = transactions.get(owner);
+            if (ownerTransaction == null || transaction.isOlderThan(ownerTransaction)) {
+                return;
+            }
+        }
+
+        transaction.keepTimestamp = true;
+
+        final String message = "Thread {" + transaction.thread + "} unable to lock entity {" + entityId + "} due case of deadlock." +
+                " Entity pending by {" + owner + "}";
+        throw new DeadlockPreventedException(message, transaction.thread, owner);
+    }
+
+    /**
+     * Steps to acquire global lock
+     * Firstly, check that no thread with entities requested it and no one waits entities of caller thread
+     * Secondly, acquire global mutex, so there is one thread which waits the gate
+     * After that release read lock of caller thread and wait write lock of the gate
+     *
+     * @param isWaiting
+     * @param isTimed
+     * @param deadline
+     * @return
+     * @throws DeadlockPreventedException
+     */
+    private boolean globalLock(final boolean isWaiting, final boolean isTimed, final long deadline)
+            throws DeadlockPreventedException {
+        final Thread currentThread = Thread.currentThread();
+        final boolean holdsEntities = escalatorDetector.currentThreadLockedEntities() > 0;
+        final boolean isNewGlobal = beforeGlobalLocking(currentThread, holdsEntities);
+
+        logDebugCurrentThread("waiting global lock");
+        if (!tryLock(globalMutex, isWaiting, isTimed, deadline)) {
+            cancelGlobalThread(isNewGlobal);
+            return false;
+        }
+
+        if (holdsEntities) {
+            gateLock.readLock().unlock();
+        }
+
+        logDebugCurrentThread("waiting other threads completion for acquiring global lock");
+        final boolean isLockGranted = tryLock(gateLock.writeLock(), isWaiting, isTimed, deadline);
+
+        if (holdsEntities) {
+            gateLock.readLock().lock();
+        }
+
+        if (!isLockGranted) {
+            globalMutex.unlock();
+            cancelGlobalThread(isNewGlobal);
+            return false;
+        }
+
+        logDebugCurrentThread("acquire global lock");
+        return true;
+    }
+
+    /**
+     * @param currentThread
+     * @param holdsEntities
+     * @return true if caller thread became global thread
+     * @throws DeadlockPreventedException
+     */
+    private boolean beforeGlobalLocking(final Thread currentThread, final boolean holdsEntities)
+            throws DeadlockPreventedException {
+        final boolean isNewGlobal;
+
+        synchronized (this) {
+            if (globalThread != null && globalThread != currentThread && holdsEntities) {
+                final Thread lockerThread = globalThread;
+                throw new DeadlockPreventedException(globalDeadlockPreventedMessage(currentThread, lockerThread),
+                        currentThread, lockerThread);
+            }
+
+            isNewGlobal = globalThread == null;
+            if (isNewGlobal) {
+                globalThread = currentThread;
+            }
+        }
+
+        if (!holdsEntities) {
+            return isNewGlobal;
+        }
+
+        //Global locking is rare, so here we iterate over all transactions
+        for (final Transaction transaction : transactions.values()) {
+            final Object waitedEntity = transaction.waitedEntity;
+
+            if (waitedEntity != null && transaction.thread != currentThread && ownerOf(waitedEntity) == currentThread) {
+                cancelGlobalThread(isNewGlobal);
+                currentTransaction.get().keepTimestamp = true;
+
+                throw new DeadlockPreventedException(globalDeadlockPreventedMessage(currentThread, transaction.thread),
+                        currentThread, transaction.thread);
+            }
+        }
+
+        return isNewGlobal;
+    }
+
+    private void cancelGlobalThread(final boolean isNewGlobal) {
+        if (isNewGlobal) {
+            globalThread = null;
+        }
+    }
+
+    /**
+     * Thread takes read lock of the gate once, when it locks the first entity
+     */
+    private boolean enterGate(final boolean isWaiting, final boolean isTimed, final long deadline) {
+        logDebugCurrentThread("check global lock");
+        return tryLock(gateLock.readLock(), isWaiting, isTimed, deadline);
+    }
+
+    private void leaveGate() {
+        transactions.remove(Thread.currentThread());
+        gateLock.readLock().unlock();
+    }
+
+    /**
+     * Too long timeout would overflow the deadline, so such waiting isn't timed
+     */
+    private static boolean isTimed(final long nanos) {
+        return nanos < Long.MAX_VALUE >> 1;
+    }
+
+    /**
+     * Helper function to exclude boilerplate code
+     */
+    private static boolean tryLock(final Lock lock, final boolean isWaiting,
+                                   final boolean isTimed, final long deadline) {
+        if (!isWaiting) {
+            return lock.tryLock();
+        }
+
+        if (!isTimed) {
+            lock.lock();
+            return true;
+        }
+
+        try {
+            return lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Thread ownerOf(final Object entityId) {
+        final int hash = hash(entityId);
+        final Segment segment = segment(hash);
+
+        synchronized (segment) {
+            final int index = segment.indexOf(entityId, hash);
+            return index < 0 ? null : segment.owners[index];
+        }
+    }
+
+    private Segment segment(final int hash) {
+        return segments[(hash >>> segmentShift) & segmentMask];
+    }
+
+    /**
+     * Spread bits of hash code, because top bits choose a segment and low bits choose a slot
+     */
+    private static int hash(final Object entityId) {
+        final int h = entityId.hashCode();
+        return (h ^ (h >>> 16)) * 0x9E3779B9;
+    }
+
+    /**
+     * Helper method to create exception message
+     * @param failThread
+     * @param lockedThread
+     * @return
+     */
+    private static String globalDeadlockPreventedMessage(final Thread failThread, final Thread lockedThread) {
+        return "Thread {" + failThread + "} unable to acquire global lock due case of deadlock." +
+                " Entity pending by {" + lockedThread + "}";
+    }
+
+    /**
+     * Open addressing table with linear probing, it's guarded by its own monitor
+     */
+    private static final class Segment {
+        private Object[] keys;
+        private Thread[] owners;
+        private int[] holds;
+        private int size;
+
+        /**
+         * Count of threads which wait on the monitor, unlock notifies them only if it isn't zero
+         */
+        private int waiters;
+
+        private Segment(final int capacity) {
+            allocate(capacity);
+        }
+
+        private int indexOf(final Object key, final int hash) {
+            final int mask = keys.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                final Object slotKey = keys[i];
+                if (slotKey == null) {
+                    return -1;
+                }
+                if (slotKey.equals(key)) {
+                    return i;
+                }
+            }
+        }
+
+        private void insert(final Object key, final int hash, final Thread owner) {
+            if (size + 1 > keys.length - (keys.length >> 2)) {
+                resize(keys.length << 1);
+            }
+
+            final int mask = keys.length - 1;
+            int i = hash & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+
+            keys[i] = key;
+            owners[i] = owner;
+            holds[i] = 1;
+            size++;
+        }
+
+        /**
+         * Backward shift deletion, so there are no tombstones and lookups stay short
+         *
+         * @param index
+         */
+        private void remove(final int index) {
+            final int mask = keys.length - 1;
+            int gap = index;
+
+            for (int i = (index + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+                final int ideal = hash(keys[i]) & mask;
+
+                //Move the key to the gap if the gap lies between its ideal slot and its current slot
+                if (((i - ideal) & mask) >= ((i - gap) & mask)) {
+                    keys[gap] = keys[i];
+                    owners[gap] = owners[i];
+                    holds[gap] = holds[i];
+                    gap = i;
+                }
+            }
+
+            keys[gap] = null;
+            owners[gap] = null;
+            holds[gap] = 0;
+            size--;
+
+            if (keys.length > MIN_SEGMENT_CAPACITY && size < keys.length >> 3) {
+                resize(keys.length >> 1);
+            }
+        }
+
+        private void resize(final int capacity) {
+            final Object[] oldKeys = keys;
+            final Thread[] oldOwners = owners;
+            final int[] oldHolds = holds;
+
+            allocate(capacity);
+
+            final int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == null) {
+                    continue;
+                }
+
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                owners[i] = oldOwners[j];
+                holds[i] = oldHolds[j];
+            }
+        }
+
+        private void allocate(final int capacity) {
+            keys = new Object[capacity];
+            owners = new Thread[capacity];
+            holds = new int[capacity];
+        }
+    }
+
+    /**
+     * Per thread state for wait-die rule, older transaction has smaller timestamp
+     */
+    private static final class Transaction {
+        private final Thread thread;
+        private volatile long timestamp;
+
+        /**
+         * Aborted thread keeps its timestamp for the next transaction, so it becomes the oldest and can't starve
+         */
+        private boolean keepTimestamp;
+        private volatile Object waitedEntity;
+
+        private Transaction(final Thread thread) {
+            this.thread = thread;
+        }
+
+        private void begin() {
+            if (keepTimestamp) {
+                keepTimestamp = false;
+            } else {
+                timestamp = System.nanoTime();
+            }
+        }
+
+        /**
+         * Equal timestamps are ordered by thread id
+         */
+        private boolean isOlderThan(final Transaction other) {
+            final long difference = timestamp - other.timestamp;
+            return difference < 0 || difference == 0 && thread.getId() < other.thread.getId();
+        }
+    }
+}
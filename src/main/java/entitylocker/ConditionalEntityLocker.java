@@ -0,0 +1,43 @@
+package entitylocker;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EntityLocker} with conditions of entities, a thread which holds an entity can wait until other thread signals it
+ *
+ * @param <T>
+ */
+public interface ConditionalEntityLocker<T> extends EntityLocker<T> {
+    /**
+     * Same as {@link java.util.concurrent.locks.Condition#await(long, TimeUnit)} for a condition of specified entity.
+     * Caller thread must hold the entity, while it waits all holds of the entity are released
+     * and they are restored before return
+     *
+     * @param entityId
+     * @param timeout
+     * @param unit
+     * @return false if the waiting time elapsed before signal otherwise true
+     * @throws InterruptedException       if caller thread is interrupted, the entity is held again in this case
+     * @throws DeadlockPreventedException if the entity cannot be locked again, it isn't held in this case
+     * @throws {@link java.lang.IllegalMonitorStateException} if caller thread doesn't hold the entity
+     */
+    boolean awaitCondition(T entityId, long timeout, TimeUnit unit) throws InterruptedException, DeadlockPreventedException;
+
+    /**
+     * Wake up one thread waiting in {@link #awaitCondition(T, long, TimeUnit)} for specified entity
+     *
+     * @param entityId
+     * @throws {@link java.lang.IllegalMonitorStateException} if caller thread doesn't hold the entity
+     */
+    void signal(T entityId);
+
+    /**
+     * Wake up all threads waiting in {@link #awaitCondition(T, long, TimeUnit)} for specified entity
+     *
+     * @param entityId
+     * @throws {@link java.lang.IllegalMonitorStateException} if caller thread doesn't hold the entity
+     */
+    void signalAll(T entityId);
+}
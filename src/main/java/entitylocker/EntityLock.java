@@ -0,0 +1,275 @@
+package entitylocker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Reentrant lock of one entity, it works the same as nonfair {@link java.util.concurrent.locks.ReentrantLock},
+ * but ownership can be transferred to other thread by {@link #transferTo(Thread)}
+ * and it has a condition for {@link MultiEntityLocker#awaitCondition(Object, long, TimeUnit)}
+ * <p>
+ * Condition is created on first waiting, so entities without waiters don't pay for it.
+ * Condition methods must be called by the owner thread, so their fields are guarded by the lock itself
+ */
+class EntityLock implements Lock {
+    private static final AtomicIntegerFieldUpdater<EntityLock> WAITERS =
+            AtomicIntegerFieldUpdater.newUpdater(EntityLock.class, "waiters");
+
+    private final Sync sync;
+
+    /**
+     * Threads which wait this lock in {@link MultiEntityLocker}, it's changed only on contended path
+     */
+    private volatile int waiters;
+
+    private Condition condition;
+
+    /**
+     * Threads which started waiting and didn't restore their holds yet.
+     * While it isn't zero the lock mustn't be removed from entity locks, otherwise a signaled thread would
+     * reacquire a lock which isn't associated with the entity anymore
+     */
+    private int conditionWaiters;
+
+    /**
+     * Thread which retains this lock in affinity mode of {@link MultiEntityLocker} after the last unlock,
+     * it's guarded by the lock itself
+     */
+    private Thread affinity;
+
+    EntityLock() {
+        this(false);
+    }
+
+    /**
+     * @param isPreciseHold - stamp the first hold by {@link System#nanoTime()} too, see {@link #lockedNanos()}
+     */
+    EntityLock(final boolean isPreciseHold) {
+        this.sync = new Sync(isPreciseHold);
+    }
+
+    @Override
+    public void lock() {
+        sync.acquire(1);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        sync.acquireInterruptibly(1);
+    }
+
+    @Override
+    public boolean tryLock() {
+        return sync.tryAcquire(1);
+    }
+
+    @Override
+    public boolean tryLock(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return sync.tryAcquireNanos(1, unit.toNanos(timeout));
+    }
+
+    @Override
+    public void unlock() {
+        sync.release(1);
+    }
+
+    @Override
+    public Condition newCondition() {
+        return sync.newCondition();
+    }
+
+    public boolean isHeldByCurrentThread() {
+        return sync.isHeldExclusively();
+    }
+
+    public int getHoldCount() {
+        return sync.isHeldExclusively() ? sync.holdCount() : 0;
+    }
+
+    public boolean isLocked() {
+        return sync.holdCount() != 0;
+    }
+
+    /**
+     * @return hold count of the owner thread, it can be read by any thread
+     */
+    int ownerHoldCount() {
+        return sync.holdCount();
+    }
+
+    /**
+     * @return {@link CoarseClock#nanoTime()} of the first hold, it's meaningful only while the lock is held
+     */
+    long acquiredNanos() {
+        return sync.acquiredNanos;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} of the first hold if the lock is created with precise holds, otherwise zero.
+     * It's published by the hold count as the owner, so the owner reads it even after a transfer
+     */
+    long lockedNanos() {
+        return sync.lockedNanos;
+    }
+
+    /**
+     * @return owner thread or null if the lock is free
+     */
+    protected Thread getOwner() {
+        return sync.owner();
+    }
+
+    /**
+     * Make targetThread the owner with all holds of caller thread
+     *
+     * @param targetThread
+     * @throws IllegalMonitorStateException if caller thread doesn't hold the lock
+     */
+    void transferTo(final Thread targetThread) {
+        if (!sync.isHeldExclusively()) {
+            throw new IllegalMonitorStateException();
+        }
+        sync.transferTo(targetThread);
+    }
+
+    /**
+     * @return count of waiters including caller thread
+     */
+    int startWaiting() {
+        return WAITERS.incrementAndGet(this);
+    }
+
+    void stopWaiting() {
+        WAITERS.decrementAndGet(this);
+    }
+
+    int waiters() {
+        return waiters;
+    }
+
+    Condition condition() {
+        if (condition == null) {
+            condition = newCondition();
+        }
+        return condition;
+    }
+
+    void startConditionWaiting() {
+        conditionWaiters++;
+    }
+
+    void stopConditionWaiting() {
+        conditionWaiters--;
+    }
+
+    boolean hasConditionWaiters() {
+        return conditionWaiters > 0;
+    }
+
+    Thread affinity() {
+        return affinity;
+    }
+
+    void setAffinity(final Thread affinity) {
+        this.affinity = affinity;
+    }
+
+    /**
+     * @param isAll - wake up all waiters or only one
+     */
+    void signal(final boolean isAll) {
+        if (condition == null) {
+            return;
+        }
+
+        if (isAll) {
+            condition.signalAll();
+        } else {
+            condition.signal();
+        }
+    }
+
+    /**
+     * State is a hold count. Owner thread isn't volatile, so it's always read after the state
+     * and written before the state, it makes a transferred ownership visible for the new owner
+     * <p>
+     * Acquisition times are written by the owner after the state, so other threads read them without guarantees,
+     * but the next owner reads them after the state written by {@link #transferTo(Thread)}
+     */
+    private static final class Sync extends AbstractQueuedSynchronizer {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean isPreciseHold;
+
+        private long acquiredNanos;
+
+        private long lockedNanos;
+
+        private Sync(final boolean isPreciseHold) {
+            this.isPreciseHold = isPreciseHold;
+        }
+
+        @Override
+        protected boolean tryAcquire(final int acquires) {
+            final Thread currentThread = Thread.currentThread();
+            final int holds = getState();
+
+            if (holds == 0) {
+                if (compareAndSetState(0, acquires)) {
+                    setExclusiveOwnerThread(currentThread);
+                    acquiredNanos = CoarseClock.nanoTime();
+                    if (isPreciseHold) {
+                        lockedNanos = System.nanoTime();
+                    }
+                    return true;
+                }
+            } else if (currentThread == getExclusiveOwnerThread()) {
+                setState(holds + acquires);
+                return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        protected boolean tryRelease(final int releases) {
+            if (!isHeldExclusively()) {
+                throw new IllegalMonitorStateException();
+            }
+
+            final int holds = getState() - releases;
+            final boolean isFree = holds == 0;
+            if (isFree) {
+                setExclusiveOwnerThread(null);
+            }
+            setState(holds);
+
+            return isFree;
+        }
+
+        @Override
+        protected boolean isHeldExclusively() {
+            return getState() != 0 && getExclusiveOwnerThread() == Thread.currentThread();
+        }
+
+        private void transferTo(final Thread targetThread) {
+            setExclusiveOwnerThread(targetThread);
+            setState(getState());
+        }
+
+        private int holdCount() {
+            return getState();
+        }
+
+        private Thread owner() {
+            return getState() == 0 ? null : getExclusiveOwnerThread();
+        }
+
+        private Condition newCondition() {
+            return new ConditionObject();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package entitylocker;
+
+import deadlockpreventer.DeadlockPreventer;
+import deadlockpreventer.DeadlockPreventionStrategy;
+import deadlockpreventer.LockOrderPreventer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lockers of different entity types, e.g. orders by Long ids and sessions by UUID ids, which behave as one locker:
+ * <p>
+ * They share one {@link GlobalGate}, so global lock or escalation of any of them blocks entities of all of them
+ * They share one deadlock prevention strategy, so a cycle through entities of different types is found
+ * They share one escalation budget, so escalation counts holds of all types
+ * <p>
+ * Escalation threshold and deadlock prevention strategy are the same for all types, because a shared budget and
+ * a shared wait-for graph need one policy. Options of entity tables are chosen per type, see {@link TypeOptions}
+ * <p>
+ * Transferred entities are kept by the shared gate, so any call of any of them in a target thread adopts entities
+ * of all types, each of them by the locker of its type
+ */
+public class EntityLockerRegistry {
+    private final GlobalGate gate;
+    private final DeadlockPreventionStrategy<Object> deadlockPreventer;
+    private final Map<String, MultiEntityLocker<?>> lockers;
+
+    public EntityLockerRegistry() {
+        this(100, new DeadlockPreventer<>());
+    }
+
+    /**
+     * @param minLocksBeforeGlobal - escalation threshold for holds of all types
+     * @param deadlockPreventer    - it receives entities together with their types, so it mustn't rely on order
+     *                             of entities as {@link LockOrderPreventer}, and it mustn't be shared with other lockers
+     */
+    public EntityLockerRegistry(final int minLocksBeforeGlobal, final DeadlockPreventionStrategy<Object> deadlockPreventer) {
+        if (deadlockPreventer instanceof LockOrderPreventer) {
+            throw new IllegalArgumentException("Lock order cannot be defined for entities of different types");
+        }
+
+        this.gate = new GlobalGate(minLocksBeforeGlobal);
+        this.deadlockPreventer = deadlockPreventer;
+        this.lockers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Same as {@link #register(String, TypeOptions)} with {@link TypeOptions#DEFAULT}
+     *
+     * @param type
+     * @param <T>
+     * @return locker of the type
+     */
+    public <T> MultiEntityLocker<T> register(final String type) {
+        return register(type, TypeOptions.DEFAULT);
+    }
+
+    /**
+     * @param type    - name of entity type, entities with equal ids of different types are different entities
+     * @param options
+     * @param <T>
+     * @return locker of the type
+     * @throws IllegalArgumentException if the type is already registered
+     */
+    public synchronized <T> MultiEntityLocker<T> register(final String type, final TypeOptions options) {
+        if (lockers.containsKey(type)) {
+            throw new IllegalArgumentException("Entity type " + type + " is already registered");
+        }
+
+        final MultiEntityLocker<T> locker = new MultiEntityLocker<>(gate, options.adaptiveSpinning,
+                new TypedDeadlockPrevention<>(type, deadlockPreventer), options.waiterLimits, options.affinity,
+                options.versionStripes);
+        lockers.put(type, locker);
+        return locker;
+    }
+
+    /**
+     * @param type
+     * @param <T>  - id type of the registered locker, it isn't checked
+     * @return locker of the type
+     * @throws IllegalArgumentException if the type isn't registered
+     */
+    @SuppressWarnings("unchecked")
+    public <T> MultiEntityLocker<T> locker(final String type) {
+        final MultiEntityLocker<?> locker = lockers.get(type);
+        if (locker == null) {
+            throw new IllegalArgumentException("Entity type " + type + " isn't registered");
+        }
+        return (MultiEntityLocker<T>) locker;
+    }
+
+    /**
+     * Options of a table of one entity type, see {@link MultiEntityLocker} constructors
+     */
+    public static final class TypeOptions {
+        public static final TypeOptions DEFAULT =
+                new TypeOptions(false, WaiterLimits.UNBOUNDED, false, MultiEntityLocker.DEFAULT_VERSION_STRIPES);
+
+        private final boolean adaptiveSpinning;
+        private final WaiterLimits waiterLimits;
+        private final boolean affinity;
+        private final int versionStripes;
+
+        /**
+         * @param adaptiveSpinning - spin before parking on contended entity
+         * @param waiterLimits     - limits of threads which wait entities of the type
+         * @param affinity         - retain locks of unlocked entities for their last owner thread
+         * @param versionStripes   - stripes of versions for optimistic reads, more stripes mean less false invalidations
+         */
+        public TypeOptions(final boolean adaptiveSpinning, final WaiterLimits waiterLimits, final boolean affinity,
+                           final int versionStripes) {
+            if (versionStripes <= 0) {
+                throw new IllegalArgumentException("Invalid count of version stripes " + versionStripes);
+            }
+
+            this.adaptiveSpinning = adaptiveSpinning;
+            this.waiterLimits = waiterLimits;
+            this.affinity = affinity;
+            this.versionStripes = versionStripes;
+        }
+    }
+}
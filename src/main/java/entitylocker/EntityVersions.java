@@ -0,0 +1,77 @@
+package entitylocker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static entitylocker.UnsafeAccess.UNSAFE;
+
+/**
+ * Striped versions of entities for optimistic reads, see {@link MultiEntityLocker#tryOptimisticRead(Object)}
+ * <p>
+ * Entities don't have own versions, because free entities don't have lock objects. Version of a stripe is increased
+ * when an entity of the stripe becomes locked, so a stamp can be invalidated by other entity of the same stripe,
+ * it costs only a fallback to a real lock. Readers only read versions, versions are padded to different cache lines
+ */
+class EntityVersions {
+    private static final int PADDING = 16;
+
+    private final AtomicLongArray versions;
+    private final int mask;
+
+    /**
+     * @param stripes - rounded up to power of two
+     */
+    EntityVersions(final int stripes) {
+        final int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, stripes) - 1);
+        this.mask = (1 << bits) - 1;
+        this.versions = new AtomicLongArray((mask + 1) * PADDING);
+
+        //Zero stamp means that optimistic read isn't possible
+        for (int i = 0; i <= mask; i++) {
+            versions.set(i * PADDING, 1);
+        }
+    }
+
+    /**
+     * @param entityId
+     * @return version of the stripe, it must be read before checking that the entity isn't locked
+     */
+    long stamp(final Object entityId) {
+        return versions.get(index(entityId));
+    }
+
+    /**
+     * Called after acquiring the first hold of an entity, but before the entity is changed
+     *
+     * @param entityId
+     */
+    void invalidate(final Object entityId) {
+        versions.incrementAndGet(index(entityId));
+    }
+
+    /**
+     * Called after acquiring global lock
+     */
+    void invalidateAll() {
+        for (int i = 0; i <= mask; i++) {
+            versions.incrementAndGet(i * PADDING);
+        }
+    }
+
+    /**
+     * Reads of the entity which were done before validation mustn't be reordered after it,
+     * volatile read doesn't guarantee it, so a load fence is used as in {@link java.util.concurrent.locks.StampedLock}
+     *
+     * @param entityId
+     * @param stamp
+     * @return true if no thread locked an entity of the stripe since the stamp
+     */
+    boolean validate(final Object entityId, final long stamp) {
+        UNSAFE.loadFence();
+        return versions.get(index(entityId)) == stamp;
+    }
+
+    private int index(final Object entityId) {
+        final int hash = entityId.hashCode();
+        return ((hash ^ hash >>> 16) & mask) * PADDING;
+    }
+}
@@ -42,6 +42,30 @@ class EscalatorDetector {
         return acquireEscalatedThread(isNeedEscalation(counter.count()));
     }
 
+    /**
+     * Count entity holds which were transferred to caller thread by other thread.
+     * Escalation isn't checked here, it will be checked on next locking
+     *
+     * @param holds
+     */
+    public void adoptThreadEntities(final int holds) {
+        final Thread currentThread = Thread.currentThread();
+        Counter counter = lockedEntitiesByThread.get(currentThread);
+
+        if (counter == null) {
+            counter = new Counter();
+            lockedEntitiesByThread.put(currentThread, counter);
+        } else {
+            counter.inc();
+        }
+
+        for (int i = 1; i < holds; ++i) {
+            counter.inc();
+        }
+
+        totalLocks.addAndGet(holds);
+    }
+
     private synchronized boolean acquireEscalatedThread(final boolean isNeedEscalation) {
         if (isNeedEscalation && escalatedThread == null) {
             escalatedThread = Thread.currentThread();
@@ -72,6 +96,30 @@ class EscalatorDetector {
         return deescalateThread(!isNeedEscalation(counter.count()));
     }
 
+    /**
+     * Same as {@link #decThreadEntityCounter()} called holds times, but escalation is checked once
+     *
+     * @param holds - count of holds released by caller thread, it must be positive
+     * @return true if need cancel escalation
+     */
+    public boolean decThreadEntityCounter(final int holds) {
+        final Thread currentThread = Thread.currentThread();
+
+        final Counter counter = lockedEntitiesByThread.get(currentThread);
+
+        for (int i = 0; i < holds; ++i) {
+            counter.dec();
+        }
+
+        if (counter.count() == 0) {
+            lockedEntitiesByThread.remove(currentThread);
+        }
+
+        totalLocks.addAndGet(-holds);
+
+        return deescalateThread(!isNeedEscalation(counter.count()));
+    }
+
     /**
      * Shows if we need deescalate escalated thread
      * @param isNeedDeescalation
@@ -89,6 +137,20 @@ class EscalatorDetector {
         escalatedThread = null;
     }
 
+    /**
+     * @return thread which is escalated to global lock or null
+     */
+    public synchronized Thread escalatedThread() {
+        return escalatedThread;
+    }
+
+    /**
+     * @return holds of all threads
+     */
+    public int totalLocks() {
+        return totalLocks.get();
+    }
+
     /**
      * @return count of entities locked by caller thread
      */
@@ -104,7 +166,9 @@ class EscalatorDetector {
      */
     private boolean isNeedEscalation(final int count) {
         final int allLocks = totalLocks.get();
-        LogUtils.logDebug("Total lock/Current Thread locks = " + allLocks + "/" + count);
+        if (LogUtils.isDebugEnabled()) {
+            LogUtils.logDebug("Total lock/Current Thread locks = " + allLocks + "/" + count);
+        }
         return count >= minLocksBeforeGlobal && (count > (allLocks >> 1));
     }
 }
@@ -0,0 +1,66 @@
+package entitylocker;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Locks of global lock and escalation counters of {@link MultiEntityLocker}, see the description of its fields.
+ * Usually every locker has its own gate, lockers of {@link EntityLockerRegistry} share one gate, so global lock
+ * of one of them blocks entities of all of them and escalation counts holds of all of them
+ */
+class GlobalGate {
+    final GlobalLock globalLock;
+    final ReentrantReadWriteLock nonGlobalLock;
+    final ReentrantReadWriteLock sharedGlobalLock;
+    final StampedLock transferLock;
+    final EscalatorDetector escalatorDetector;
+
+    /**
+     * Entities transferred to a thread which the thread didn't adopt yet, by target thread. The gate keeps them,
+     * because global lock of any locker waits them, so a call of any locker adopts transfers of all lockers
+     */
+    final Map<Thread, List<MultiEntityLocker.Transfer<?>>> transfers;
+
+    /**
+     * Versions of all lockers of the gate, they are invalidated by global lock of any of them
+     */
+    private final List<EntityVersions> entityVersions;
+
+    GlobalGate(final int minLocksBeforeGlobal) {
+        this.globalLock = new GlobalLock();
+        this.nonGlobalLock = new ReentrantReadWriteLock();
+        this.sharedGlobalLock = new ReentrantReadWriteLock();
+        this.transferLock = new StampedLock();
+        this.escalatorDetector = new EscalatorDetector(minLocksBeforeGlobal);
+        this.transfers = new ConcurrentHashMap<>();
+        this.entityVersions = new CopyOnWriteArrayList<>();
+    }
+
+    void register(final EntityVersions versions) {
+        entityVersions.add(versions);
+    }
+
+    /**
+     * Called after acquiring global lock
+     */
+    void invalidateAll() {
+        for (final EntityVersions versions : entityVersions) {
+            versions.invalidateAll();
+        }
+    }
+
+    /**
+     * Exposes the owner of the write lock for {@link MultiEntityLocker#snapshot()}
+     */
+    static final class GlobalLock extends ReentrantReadWriteLock {
+        private static final long serialVersionUID = 1L;
+
+        Thread owner() {
+            return getOwner();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package entitylocker;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+
+/**
+ * {@link EntityLocker} which waiting can be cancelled by interruption of caller thread
+ *
+ * @param <T>
+ */
+public interface InterruptibleEntityLocker<T> extends EntityLocker<T> {
+    /**
+     * Same as {@link #lock(T)} but waiting can be cancelled by interruption of caller thread.
+     * Cancelled thread stops waiting at once and it isn't considered as a waiter by deadlock prevention anymore
+     *
+     * @param entityId
+     * @throws InterruptedException       if caller thread is interrupted before or during waiting, the entity isn't held in this case
+     * @throws DeadlockPreventedException if locking entity will case of deadlock
+     */
+    void lockInterruptibly(T entityId) throws InterruptedException, DeadlockPreventedException;
+
+    /**
+     * Same as {@link #globalLock()} but waiting can be cancelled by interruption of caller thread.
+     * Cancelled global lock is released at once, so other threads can lock entities again
+     *
+     * @throws InterruptedException       if caller thread is interrupted before or during waiting
+     * @throws DeadlockPreventedException
+     */
+    void globalLockInterruptibly() throws InterruptedException, DeadlockPreventedException;
+}
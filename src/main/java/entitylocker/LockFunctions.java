@@ -0,0 +1,108 @@
+package entitylocker;
+
+import utils.function.BooleanReturnFunction;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Helper functions to exclude boilerplate code of lockers
+ */
+final class LockFunctions {
+
+    /**
+     * @throws java.lang.UnsupportedOperationException for reflection users
+     */
+    private LockFunctions() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return function which waits a lock without timeout
+     */
+    static BooleanReturnFunction<Lock> waitingLock() {
+        return lock -> {
+            lock.lock();
+            return true;
+        };
+    }
+
+    /**
+     * Timeout starts when the function is created, so all locks which are waited by the function share it
+     * and the whole operation doesn't wait longer than timeout
+     *
+     * @param timeout
+     * @param timeUnit
+     * @return function which waits a lock until deadline and returns false if it was interrupted,
+     * interruption is restored in this case
+     */
+    static BooleanReturnFunction<Lock> silentTryLockFunction(final long timeout, final TimeUnit timeUnit) {
+        return deadlineTryLockFunction(System.nanoTime() + timeUnit.toNanos(timeout));
+    }
+
+    /**
+     * Remaining time is computed by subtraction as in {@link java.util.concurrent.locks.AbstractQueuedSynchronizer},
+     * so overflowed deadline of a huge timeout works too
+     *
+     * @param deadline - {@link System#nanoTime()} when waiting fails
+     * @return function which waits a lock until deadline and returns false if it was interrupted,
+     * interruption is restored in this case
+     */
+    static BooleanReturnFunction<Lock> deadlineTryLockFunction(final long deadline) {
+        return lock -> {
+            try {
+                return lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return function which waits a lock without timeout and returns false if it was interrupted,
+     * interruption is restored in this case
+     */
+    static BooleanReturnFunction<Lock> interruptibleLock() {
+        return lock -> {
+            try {
+                lock.lockInterruptibly();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Same as {@link #waitingLock()} but waiting can be cancelled by interruption
+     * Interruption which doesn't cancel waiting is restored after acquiring
+     *
+     * @param isCancelled - checked after each interruption
+     * @return function which returns false if waiting was cancelled
+     */
+    static BooleanReturnFunction<Lock> cancellableLock(final BooleanSupplier isCancelled) {
+        return lock -> {
+            boolean isInterrupted = false;
+            try {
+                while (true) {
+                    try {
+                        lock.lockInterruptibly();
+                        return true;
+                    } catch (InterruptedException e) {
+                        if (isCancelled.getAsBoolean()) {
+                            return false;
+                        }
+                        isInterrupted = true;
+                    }
+                }
+            } finally {
+                if (isInterrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,207 @@
+package entitylocker;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Introspection of held entities for diagnostics, e.g. to see who holds what during an incident
+ * <p>
+ * Global state is read when the snapshot is created. Entities are read lazily while the snapshot is iterated,
+ * so it never copies the whole table and never blocks lockers, a large table can be paged by
+ * {@link Stream#skip(long)} and {@link Stream#limit(long)} of {@link #entries()}
+ * <p>
+ * The snapshot is weakly consistent as iteration of {@link java.util.concurrent.ConcurrentHashMap}:
+ * entities locked or unlocked during iteration may be reported or not, and fields of one entry are read one by one
+ * without stopping its owner, so they can belong to neighbouring moments
+ *
+ * @param <T>
+ */
+public class LockTableSnapshot<T> implements Iterable<LockTableSnapshot.Entry<T>> {
+    private final Map<T, EntityLock> entityLocks;
+    private final Thread globalThread;
+    private final int sharedGlobalHolders;
+    private final Thread escalatedThread;
+    private final int totalHolds;
+    private final int waiters;
+
+    LockTableSnapshot(final Map<T, EntityLock> entityLocks, final Thread globalThread, final int sharedGlobalHolders,
+                      final Thread escalatedThread, final int totalHolds, final int waiters) {
+        this.entityLocks = entityLocks;
+        this.globalThread = globalThread;
+        this.sharedGlobalHolders = sharedGlobalHolders;
+        this.escalatedThread = escalatedThread;
+        this.totalHolds = totalHolds;
+        this.waiters = waiters;
+    }
+
+    /**
+     * @return thread which holds global lock or null
+     */
+    public Thread globalThread() {
+        return globalThread;
+    }
+
+    /**
+     * @return count of shared global holds of all threads
+     */
+    public int sharedGlobalHolders() {
+        return sharedGlobalHolders;
+    }
+
+    /**
+     * @return thread which is escalated to global lock or null
+     */
+    public Thread escalatedThread() {
+        return escalatedThread;
+    }
+
+    /**
+     * @return holds of entities and ranges of all threads
+     */
+    public int totalHolds() {
+        return totalHolds;
+    }
+
+    /**
+     * @return threads which wait any entity
+     */
+    public int waiters() {
+        return waiters;
+    }
+
+    /**
+     * @return held entities, free entities are skipped
+     */
+    public Stream<Entry<T>> entries() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    @Override
+    public Iterator<Entry<T>> iterator() {
+        return new HeldEntities<>(entityLocks.entrySet().iterator());
+    }
+
+    @Override
+    public String toString() {
+        return "global thread " + globalThread + ", shared global holders " + sharedGlobalHolders +
+                ", escalated thread " + escalatedThread + ", total holds " + totalHolds + ", waiters " + waiters;
+    }
+
+    /**
+     * One held entity at the moment it was read
+     *
+     * @param <T>
+     */
+    public static final class Entry<T> {
+        private final T entityId;
+        private final Thread owner;
+        private final int holdCount;
+        private final long acquiredNanos;
+        private final long holdNanos;
+        private final int waiters;
+
+        private Entry(final T entityId, final Thread owner, final int holdCount, final long acquiredNanos,
+                      final long holdNanos, final int waiters) {
+            this.entityId = entityId;
+            this.owner = owner;
+            this.holdCount = holdCount;
+            this.acquiredNanos = acquiredNanos;
+            this.holdNanos = holdNanos;
+            this.waiters = waiters;
+        }
+
+        public T entityId() {
+            return entityId;
+        }
+
+        public Thread owner() {
+            return owner;
+        }
+
+        public int holdCount() {
+            return holdCount;
+        }
+
+        /**
+         * @param unit
+         * @return time since the first hold of the owner or of the thread which transferred it,
+         * it's measured by a coarse clock with resolution of some milliseconds
+         */
+        public long holdTime(final TimeUnit unit) {
+            return unit.convert(holdNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public int waiters() {
+            return waiters;
+        }
+
+        /**
+         * @return timestamp of the first hold, it identifies one hold of the entity
+         */
+        long acquiredNanos() {
+            return acquiredNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "entity {" + entityId + "} is held by " + owner + " " + holdCount + " times for " +
+                    holdTime(TimeUnit.MILLISECONDS) + " ms, waiters " + waiters;
+        }
+    }
+
+    /**
+     * Reads entries on demand and skips free locks, e.g. locks retained in affinity mode
+     *
+     * @param <T>
+     */
+    private static final class HeldEntities<T> implements Iterator<Entry<T>> {
+        private final Iterator<Map.Entry<T, EntityLock>> entityLocks;
+        private Entry<T> next;
+
+        private HeldEntities(final Iterator<Map.Entry<T, EntityLock>> entityLocks) {
+            this.entityLocks = entityLocks;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && entityLocks.hasNext()) {
+                next = read(entityLocks.next());
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entry<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            final Entry<T> entry = next;
+            next = null;
+            return entry;
+        }
+
+        /**
+         * Hold count is read first, because it's the state which publishes the owner
+         *
+         * @param mapEntry
+         * @return entry or null if the lock is free
+         */
+        private static <T> Entry<T> read(final Map.Entry<T, EntityLock> mapEntry) {
+            final EntityLock entityLock = mapEntry.getValue();
+            final int holdCount = entityLock.ownerHoldCount();
+            final Thread owner = entityLock.getOwner();
+            if (holdCount == 0 || owner == null) {
+                return null;
+            }
+
+            final long acquiredNanos = entityLock.acquiredNanos();
+            final long holdNanos = Math.max(0, CoarseClock.nanoTime() - acquiredNanos);
+            return new Entry<>(mapEntry.getKey(), owner, holdCount, acquiredNanos, holdNanos, entityLock.waiters());
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package entitylocker;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static log.utils.LogUtils.logDebugCurrentThread;
+import static log.utils.LogUtils.logError;
+
+/**
+ * Two-phase locking scope over an {@link EntityLocker}: a body locks entities through {@link Scope} and
+ * all of them are released together when the body returns or throws, so the body never unlocks them itself
+ * <p>
+ * If the body is aborted by {@link DeadlockPreventedException} its entities are released, so the other thread
+ * of the deadlock can continue, and the body is run again after a backoff of {@link RetryPolicy}.
+ * The body must be safe to run again, e.g. it changes entities only after all of them are locked
+ * <p>
+ * Entities which caller thread held before the transaction aren't released on retry,
+ * so a deadlock with them repeats until the retries are exhausted
+ * <p>
+ * One transaction can be shared by threads, {@link #metrics()} counts all of them
+ *
+ * @param <T>
+ */
+public class LockTransaction<T> {
+    private final EntityLocker<T> entityLocker;
+    private final RetryPolicy retryPolicy;
+    private final Metrics metrics;
+
+    public LockTransaction(final EntityLocker<T> entityLocker) {
+        this(entityLocker, new RetryPolicy(10, 1, 100, TimeUnit.MILLISECONDS));
+    }
+
+    public LockTransaction(final EntityLocker<T> entityLocker, final RetryPolicy retryPolicy) {
+        this.entityLocker = entityLocker;
+        this.retryPolicy = retryPolicy;
+        this.metrics = new Metrics();
+    }
+
+    /**
+     * @param body
+     * @param <R>
+     * @return result of the body
+     * @throws DeadlockPreventedException of the last attempt if retries are exhausted
+     * @throws InterruptedException       if the body or backoff is interrupted, the transaction isn't retried in this case
+     */
+    public <R> R execute(final Body<T, R> body) throws InterruptedException, DeadlockPreventedException {
+        for (int retry = 0; ; ++retry) {
+            final long start = System.nanoTime();
+            final Scope<T> scope = new Scope<>(entityLocker);
+
+            final DeadlockPreventedException exception;
+            try {
+                final R result = body.run(scope);
+                scope.finish();
+                metrics.commits.increment();
+                return result;
+            } catch (DeadlockPreventedException e) {
+                scope.finish();
+                exception = e;
+            } catch (InterruptedException | RuntimeException | Error e) {
+                scope.finish();
+                metrics.failures.increment();
+                throw e;
+            }
+
+            if (retry == retryPolicy.maxRetries()) {
+                logError("Transaction is aborted after " + retry + " retries: " + exception.getMessage());
+                metrics.failures.increment();
+                metrics.wastedNanos.add(System.nanoTime() - start);
+                throw exception;
+            }
+
+            logDebugCurrentThread("transaction is aborted due deadlock, retry {}", retry + 1);
+            try {
+                TimeUnit.NANOSECONDS.sleep(retryPolicy.backoffNanos(retry + 1));
+            } catch (InterruptedException e) {
+                metrics.failures.increment();
+                metrics.wastedNanos.add(System.nanoTime() - start);
+                throw e;
+            }
+            metrics.retries.increment();
+            metrics.wastedNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    @FunctionalInterface
+    public interface Body<T, R> {
+        R run(Scope<T> scope) throws InterruptedException, DeadlockPreventedException;
+    }
+
+    /**
+     * Locks of one attempt of a body, it can be used only by the thread which runs the body and only until it finishes
+     *
+     * @param <T>
+     */
+    public static final class Scope<T> {
+        private final EntityLocker<T> entityLocker;
+        private final List<T> heldEntities;
+        private boolean isFinished;
+
+        private Scope(final EntityLocker<T> entityLocker) {
+            this.entityLocker = entityLocker;
+            this.heldEntities = new ArrayList<>();
+        }
+
+        public void lock(final T entityId) throws DeadlockPreventedException {
+            checkActive();
+            entityLocker.lock(entityId);
+            heldEntities.add(entityId);
+        }
+
+        public boolean tryLock(final T entityId, final long timeout, final TimeUnit unit)
+                throws InterruptedException, DeadlockPreventedException {
+            checkActive();
+            if (!entityLocker.tryLock(entityId, timeout, unit)) {
+                return false;
+            }
+            heldEntities.add(entityId);
+            return true;
+        }
+
+        /**
+         * @return entities locked by this attempt including reentrant holds
+         */
+        public int heldCount() {
+            return heldEntities.size();
+        }
+
+        /**
+         * Release holds in reverse order
+         */
+        private void finish() {
+            isFinished = true;
+            for (int i = heldEntities.size() - 1; i >= 0; --i) {
+                entityLocker.unlock(heldEntities.get(i));
+            }
+            heldEntities.clear();
+        }
+
+        private void checkActive() {
+            if (isFinished) {
+                final String message = "Transaction scope is used after the transaction is finished";
+                logError(message);
+                throw new IllegalMonitorStateException(message);
+            }
+        }
+    }
+
+    /**
+     * Counters of all executions of the transaction, they are updated without locking
+     */
+    public static final class Metrics {
+        private final LongAdder commits = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder wastedNanos = new LongAdder();
+
+        private Metrics() {
+        }
+
+        public long commits() {
+            return commits.sum();
+        }
+
+        /**
+         * @return executions which threw an exception to the caller
+         */
+        public long failures() {
+            return failures.sum();
+        }
+
+        public long retries() {
+            return retries.sum();
+        }
+
+        /**
+         * @param unit
+         * @return time of aborted attempts and backoffs before retries
+         */
+        public long wastedTime(final TimeUnit unit) {
+            return unit.convert(wastedNanos.sum(), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return share of attempts which committed, it's 1 if there were no attempts
+         */
+        public double successRate() {
+            final long committed = commits.sum();
+            final long attempts = committed + failures.sum() + retries.sum();
+            return attempts == 0 ? 1 : (double) committed / attempts;
+        }
+
+        @Override
+        public String toString() {
+            return "commits " + commits() + ", failures " + failures() + ", retries " + retries() +
+                    ", wasted " + wastedTime(TimeUnit.MILLISECONDS) + " ms";
+        }
+    }
+}
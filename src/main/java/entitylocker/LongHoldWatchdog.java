@@ -0,0 +1,158 @@
+package entitylocker;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static log.utils.LogUtils.logError;
+
+/**
+ * Optional watchdog which finds entities held longer than a threshold, e.g. an entity which wasn't unlocked
+ * on an error path, and reports the entity, its waiters and the stack of its owner to a listener
+ * <p>
+ * Locking doesn't pay for it: hold times are taken from {@link MultiEntityLocker#snapshot()},
+ * which are stamped by {@link CoarseClock}. A daemon thread scans the snapshot twice per threshold,
+ * so a long hold is reported once when it's longer than threshold and shorter than 1.5 of it plus the clock resolution.
+ * Every hold is reported once even if it lasts for many scans
+ * <p>
+ * It keeps a weak reference to the locker, so the thread stops when the locker isn't used anymore
+ *
+ * @param <T>
+ */
+public class LongHoldWatchdog<T> implements AutoCloseable {
+    private final long thresholdNanos;
+    private final Listener<T> listener;
+    private final LongAdder longHolds;
+    private final Thread thread;
+
+    /**
+     * Long holds are logged as errors
+     *
+     * @param entityLocker
+     * @param threshold
+     * @param unit
+     */
+    public LongHoldWatchdog(final MultiEntityLocker<T> entityLocker, final long threshold, final TimeUnit unit) {
+        this(entityLocker, threshold, unit, (entry, ownerStack) ->
+                logError("Long hold: " + entry + " at " + Arrays.toString(ownerStack)));
+    }
+
+    /**
+     * @param entityLocker
+     * @param threshold
+     * @param unit
+     * @param listener     - it's called by the watchdog thread
+     */
+    public LongHoldWatchdog(final MultiEntityLocker<T> entityLocker, final long threshold, final TimeUnit unit,
+                            final Listener<T> listener) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Invalid long hold threshold " + threshold + " " + unit);
+        }
+
+        this.thresholdNanos = unit.toNanos(threshold);
+        this.listener = listener;
+        this.longHolds = new LongAdder();
+        this.thread = new Thread(new Scanner<>(entityLocker, this), "long-hold-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return holds which were reported since start
+     */
+    public long longHolds() {
+        return longHolds.sum();
+    }
+
+    /**
+     * Stop the watchdog thread, holds aren't reported after it
+     */
+    @Override
+    public void close() {
+        thread.interrupt();
+    }
+
+    @FunctionalInterface
+    public interface Listener<T> {
+        /**
+         * @param entry      - held entity with its owner and waiters
+         * @param ownerStack - stack of the owner when the hold was found, it's empty if the owner is terminated
+         */
+        void onLongHold(LockTableSnapshot.Entry<T> entry, StackTraceElement[] ownerStack);
+    }
+
+    /**
+     * Doesn't keep the locker between scans, so it can be collected
+     *
+     * @param <T>
+     */
+    private static final class Scanner<T> implements Runnable {
+        private final WeakReference<MultiEntityLocker<T>> entityLocker;
+        private final LongHoldWatchdog<T> watchdog;
+
+        /**
+         * Timestamps of reported holds by entity, a hold is removed when it's finished
+         */
+        private Map<T, Long> reportedHolds;
+
+        private Scanner(final MultiEntityLocker<T> entityLocker, final LongHoldWatchdog<T> watchdog) {
+            this.entityLocker = new WeakReference<>(entityLocker);
+            this.watchdog = watchdog;
+            this.reportedHolds = new HashMap<>();
+        }
+
+        @Override
+        public void run() {
+            final long intervalMillis = Math.max(CoarseClock.RESOLUTION_MILLIS, TimeUnit.NANOSECONDS.toMillis(watchdog.thresholdNanos / 2));
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                final MultiEntityLocker<T> locker = entityLocker.get();
+                if (locker == null) {
+                    return;
+                }
+
+                scan(locker.snapshot());
+            }
+        }
+
+        private void scan(final LockTableSnapshot<T> snapshot) {
+            final Map<T, Long> longHolds = new HashMap<>();
+
+            for (final LockTableSnapshot.Entry<T> entry : snapshot) {
+                if (entry.holdTime(TimeUnit.NANOSECONDS) < watchdog.thresholdNanos) {
+                    continue;
+                }
+
+                longHolds.put(entry.entityId(), entry.acquiredNanos());
+                final Long reportedHold = reportedHolds.get(entry.entityId());
+                if (reportedHold == null || reportedHold != entry.acquiredNanos()) {
+                    watchdog.longHolds.increment();
+                    report(entry);
+                }
+            }
+
+            reportedHolds = longHolds;
+        }
+
+        /**
+         * Failed listener doesn't stop the watchdog
+         *
+         * @param entry
+         */
+        private void report(final LockTableSnapshot.Entry<T> entry) {
+            try {
+                watchdog.listener.onLongHold(entry, entry.owner().getStackTrace());
+            } catch (RuntimeException e) {
+                logError("Long hold listener failed for " + entry + ": " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package entitylocker;
+
+import deadlockpreventer.DeadlockPreventer;
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import utils.counter.Counter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToLongFunction;
+
+import static log.utils.LogUtils.logDebugCurrentThread;
+import static log.utils.LogUtils.logError;
+
+/**
+ * Entity locker which is shared by processes of one host through a memory-mapped file, see {@link MappedLockTable}
+ * <p>
+ * Entity is identified between processes by a long key, so key function must give distinct keys to distinct entities
+ * and the same key to the same entity in every process, e.g. the numeric id itself.
+ * Uncontended locking is one CAS of the owner word of the entity in the mapping,
+ * holds of reentrant locking are counted by the thread itself.
+ * Waiters spin and then park with growing intervals, because there is no cross process wake up in Java.
+ * <p>
+ * Global lock works as in {@link ShardedEntityLocker}: every process counts its threads which hold entities,
+ * global thread sets the global owner word and waits until counters of alive processes are zero.
+ * <p>
+ * Locks of crashed processes are reclaimed by waiters when the heartbeat of the process doesn't change during lease.
+ * A live process which is paused longer than lease loses its entities too, so protected code should check
+ * {@link #isLockedByCurrentThread(Object)} before effects which other processes mustn't see twice.
+ * Deadlocks are prevented between threads of one process and with global thread,
+ * deadlocks between processes aren't detected, so callers should use {@link #tryLock(Object, long, TimeUnit)}.
+ * Escalation isn't supported.
+ *
+ * @param <T>
+ */
+public class MappedEntityLocker<T> implements EntityLocker<T>, Closeable {
+    public static final long DEFAULT_LEASE_MILLIS = 3000;
+
+    /**
+     * Waiter yields this count of times before parking
+     */
+    private static final int SPINS = 64;
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final MappedLockTable table;
+    private final ToLongFunction<T> keyFunction;
+    private final DeadlockPreventer<T> deadlockPreventer;
+
+    private final AtomicLong threadOrdinals;
+    private final ThreadLocal<Owner> owners;
+
+    private volatile Thread globalThread;
+
+    /**
+     * Changed only by global thread
+     */
+    private int globalHolds;
+
+    public MappedEntityLocker(final Path file, final int capacity, final ToLongFunction<T> keyFunction) throws IOException {
+        this(file, capacity, keyFunction, DEFAULT_LEASE_MILLIS);
+    }
+
+    /**
+     * @param file        - lock table file, it's created if it doesn't exist
+     * @param capacity    - max count of held entities, free entities are removed from a full table by global lock,
+     *                    so some headroom keeps probing short. It must be the same for all processes
+     * @param keyFunction - key of an entity between processes, -1 is reserved
+     * @param leaseMillis - locks of a process which didn't update its heartbeat longer can be reclaimed
+     * @throws IOException
+     */
+    public MappedEntityLocker(final Path file, final int capacity, final ToLongFunction<T> keyFunction,
+                              final long leaseMillis) throws IOException {
+        this.table = new MappedLockTable(file, capacity, leaseMillis);
+        this.keyFunction = keyFunction;
+        this.deadlockPreventer = new DeadlockPreventer<>();
+        this.threadOrdinals = new AtomicLong();
+        this.owners = ThreadLocal.withInitial(() -> new Owner(table.ownerOf(threadOrdinals.incrementAndGet())));
+    }
+
+    @Override
+    public void lock(final T entityId) throws DeadlockPreventedException {
+        lock(entityId, true, false, 0);
+    }
+
+    @Override
+    public boolean tryLock(final T entityId) throws DeadlockPreventedException {
+        return lock(entityId, false, false, 0);
+    }
+
+    @Override
+    public boolean tryLock(final T entityId, final long timeout, final TimeUnit unit) throws DeadlockPreventedException {
+        return lock(entityId, true, true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    @Override
+    public void unlock(final T entityId) {
+        final long key = keyFunction.applyAsLong(entityId);
+        final Owner owner = owners.get();
+        final Counter holds = owner.holds.get(key);
+
+        if (holds == null) {
+            final long slot = table.findSlot(key);
+            if (slot < 0 || table.owner(slot) == 0) {
+                final String message = "There is no locks for entity {" + entityId + "}";
+                logError(message);
+                throw new IllegalMonitorStateException(message);
+            }
+
+            final String message = Thread.currentThread() + " cannot unlock entity - {" + entityId + "} because it's hold by other thread";
+            logError(message);
+            throw new IllegalAccessError(message);
+        }
+
+        if (holds.count() > 1) {
+            holds.dec();
+            return;
+        }
+
+        logDebugCurrentThread("It's last lock for entity {" + entityId + "} releasing it");
+        deadlockPreventer.beforeUnlocking(entityId);
+        owner.holds.remove(key);
+        final boolean isReleased = table.casOwner(table.findSlot(key), owner.word, 0);
+
+        if (owner.holds.isEmpty()) {
+            table.decActiveThreads();
+        }
+
+        if (!isReleased) {
+            final String message = "Entity {" + entityId + "} was reclaimed by other process because heartbeat was late more than lease";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+    }
+
+    /**
+     * Owner word is checked in the table, so it's false for an entity which was reclaimed by other process
+     * because this process was paused longer than lease
+     */
+    @Override
+    public boolean isLockedByCurrentThread(final T entityId) {
+        if (globalThread == Thread.currentThread()) {
+            return true;
+        }
+
+        final long key = keyFunction.applyAsLong(entityId);
+        final Owner owner = owners.get();
+        if (!owner.holds.containsKey(key)) {
+            return false;
+        }
+
+        final long slot = table.findSlot(key);
+        return slot >= 0 && table.owner(slot) == owner.word;
+    }
+
+    @Override
+    public void globalLock() throws DeadlockPreventedException {
+        globalLock(true, false, 0);
+    }
+
+    @Override
+    public boolean tryGlobalLock() throws DeadlockPreventedException {
+        return globalLock(false, false, 0);
+    }
+
+    @Override
+    public boolean tryGlobalLock(final long timeout, final TimeUnit unit) throws DeadlockPreventedException {
+        return globalLock(true, true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * Outer unlock compacts the table, nobody else uses it at this moment
+     */
+    @Override
+    public void globalUnlock() {
+        if (globalThread != Thread.currentThread()) {
+            final String message = Thread.currentThread() + " doesn't hold global lock";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+
+        logDebugCurrentThread("release global lock");
+        if (--globalHolds > 0) {
+            return;
+        }
+
+        final long owner = owners.get().word;
+        table.compact(owner);
+        globalThread = null;
+        table.casGlobalOwner(owner, 0);
+    }
+
+    /**
+     * @return count of entities which are held by all processes
+     */
+    @Override
+    public int currentSize() {
+        return table.lockedEntities();
+    }
+
+    /**
+     * Release process slot of the table, entities which are still held by this process can be reclaimed at once
+     */
+    @Override
+    public void close() throws IOException {
+        table.close();
+    }
+
+    /**
+     * @param entityId
+     * @param isWaiting - false for tryLock without timeout
+     * @param isTimed
+     * @param deadline  - {@link System#nanoTime()} when timed waiting fails
+     * @return
+     * @throws DeadlockPreventedException
+     */
+    private boolean lock(final T entityId, final boolean isWaiting, final boolean isTimed, final long deadline)
+            throws DeadlockPreventedException {
+        logDebugCurrentThread("try gain lock for entity {" + entityId + "}");
+
+        final long key = keyFunction.applyAsLong(entityId);
+        final Owner owner = owners.get();
+        final Counter holds = owner.holds.get(key);
+
+        if (holds != null) {
+            holds.inc();
+            return true;
+        }
+
+        final boolean isFirstEntity = owner.holds.isEmpty();
+        if (isFirstEntity && !enterGate(owner, isWaiting, isTimed, deadline)) {
+            return false;
+        }
+
+        if (!lockSlot(entityId, key, owner, isFirstEntity, isWaiting, isTimed, deadline)) {
+            logDebugCurrentThread("cannot gain lock for entity {" + entityId + "}");
+            return false;
+        }
+
+        owner.holds.put(key, new Counter());
+        logDebugCurrentThread("gain lock for entity {" + entityId + "}");
+        return true;
+    }
+
+    /**
+     * Caller thread is in the gate, if the entity isn't locked it leaves the gate for the first entity
+     *
+     * @param entityId
+     * @param key
+     * @param owner
+     * @param isFirstEntity
+     * @param isWaiting
+     * @param isTimed
+     * @param deadline
+     * @return
+     * @throws DeadlockPreventedException
+     */
+    private boolean lockSlot(final T entityId, final long key, final Owner owner, final boolean isFirstEntity,
+                             final boolean isWaiting, final boolean isTimed, final long deadline) throws DeadlockPreventedException {
+        long slot = table.slotOf(key);
+        boolean isInGate = isFirstEntity;
+        boolean isLockGranted = false;
+        boolean isWaitingRegistered = false;
+        boolean isInterrupted = false;
+        try {
+            if (slot < 0) {
+                //Thread without entities is counted by the gate, so it leaves the gate while global lock waits
+                if (isFirstEntity) {
+                    table.decActiveThreads();
+                    isInGate = false;
+                }
+                if (!compactFullTable(isWaiting, isTimed, deadline)) {
+                    return false;
+                }
+                if (isFirstEntity) {
+                    if (!enterGate(owner, isWaiting, isTimed, deadline)) {
+                        return false;
+                    }
+                    isInGate = true;
+                }
+
+                slot = table.slotOf(key);
+                if (slot < 0) {
+                    throw tableIsFull();
+                }
+            }
+
+            for (int attempt = 0; ; attempt++) {
+                if (tryAcquire(entityId, slot, owner)) {
+                    isLockGranted = true;
+                    return true;
+                }
+
+                if (!isWaiting) {
+                    return false;
+                }
+
+                if (!isWaitingRegistered) {
+                    deadlockPreventer.beforeLocking(entityId);
+                    isWaitingRegistered = true;
+                    logDebugCurrentThread("waiting lock for entity {" + entityId + "}");
+                }
+
+                //Global thread waits threads which hold entities, so they can't wait its entities
+                final long globalOwner = table.globalOwner();
+                if (globalOwner != 0 && globalOwner != owner.word && table.owner(slot) == globalOwner) {
+                    if (!isFirstEntity) {
+                        final Thread currentThread = Thread.currentThread();
+                        final String message = "Thread {" + currentThread + "} unable to lock entity {" + entityId
+                                + "} due case of deadlock. Entity is held by global lock owner which waits this thread";
+                        throw new DeadlockPreventedException(message, currentThread, globalThread);
+                    }
+
+                    //Thread without entities waits global unlock out of the gate, the table can be compacted meanwhile
+                    table.decActiveThreads();
+                    isInGate = false;
+                    if (!enterGate(owner, true, isTimed, deadline)) {
+                        return false;
+                    }
+                    isInGate = true;
+                    slot = table.slotOf(key);
+                    if (slot < 0) {
+                        throw tableIsFull();
+                    }
+                    continue;
+                }
+
+                if (isTimed && deadline - System.nanoTime() <= 0) {
+                    return false;
+                }
+
+                park(attempt, isTimed, deadline);
+                if (Thread.interrupted()) {
+                    isInterrupted = true;
+                    if (isTimed) {
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            if (isLockGranted || isWaitingRegistered) {
+                deadlockPreventer.afterLocking(entityId, isLockGranted);
+            }
+            if (!isLockGranted && isInGate) {
+                table.decActiveThreads();
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Free slots are removed only under global lock, so caller thread acquires global lock to compact the table
+     *
+     * @return false if global lock wasn't acquired before deadline
+     * @throws IllegalStateException if caller thread holds global lock, the table is compacted only by its unlock
+     */
+    private boolean compactFullTable(final boolean isWaiting, final boolean isTimed, final long deadline)
+            throws DeadlockPreventedException {
+        if (globalThread == Thread.currentThread()) {
+            throw tableIsFull();
+        }
+
+        logDebugCurrentThread("lock table is full, compact it by global lock");
+        if (!globalLock(isWaiting, isTimed, deadline)) {
+            return false;
+        }
+        globalUnlock();
+        return true;
+    }
+
+    private static IllegalStateException tableIsFull() {
+        final String message = "Lock table is full, all its slots are held or it's used under global lock";
+        logError(message);
+        return new IllegalStateException(message);
+    }
+
+    /**
+     * @return true if the entity was free or its owner is dead
+     */
+    private boolean tryAcquire(final T entityId, final long slot, final Owner owner) {
+        final long lockOwner = table.owner(slot);
+        if (lockOwner == 0) {
+            return table.casOwner(slot, 0, owner.word);
+        }
+
+        if (!table.isAlive(lockOwner) && table.casOwner(slot, lockOwner, owner.word)) {
+            logError("Entity {" + entityId + "} is reclaimed from dead owner " + Long.toHexString(lockOwner));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mark caller thread as active if global lock isn't held by other owner, otherwise wait global unlock
+     *
+     * @return false if global lock wasn't released before deadline
+     */
+    private boolean enterGate(final Owner owner, final boolean isWaiting, final boolean isTimed, final long deadline) {
+        boolean isInterrupted = false;
+        try {
+            for (int attempt = 0; ; attempt++) {
+                table.incActiveThreads();
+                final long globalOwner = table.globalOwner();
+                if (globalOwner == 0 || globalOwner == owner.word) {
+                    return true;
+                }
+                table.decActiveThreads();
+
+                if (releaseIfDead(globalOwner)) {
+                    continue;
+                }
+
+                if (!isWaiting || isTimed && deadline - System.nanoTime() <= 0) {
+                    return false;
+                }
+
+                if (attempt == 0) {
+                    logDebugCurrentThread("waiting global unlock");
+                }
+                park(attempt, isTimed, deadline);
+                if (Thread.interrupted()) {
+                    isInterrupted = true;
+                    if (isTimed) {
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Steps to acquire global lock
+     * Thread which holds entities can't wait other global owner because the owner waits its entities
+     * Then we set global owner word, so new threads don't pass the gate, and wait all active threads
+     *
+     * @param isWaiting
+     * @param isTimed
+     * @param deadline
+     * @return
+     * @throws DeadlockPreventedException
+     */
+    private boolean globalLock(final boolean isWaiting, final boolean isTimed, final long deadline) throws DeadlockPreventedException {
+        final Thread currentThread = Thread.currentThread();
+        if (globalThread == currentThread) {
+            globalHolds++;
+            return true;
+        }
+
+        final Owner owner = owners.get();
+        final boolean isHoldEntities = !owner.holds.isEmpty();
+
+        logDebugCurrentThread("waiting global lock");
+        boolean isInterrupted = false;
+        try {
+            for (int attempt = 0; ; attempt++) {
+                final long globalOwner = table.globalOwner();
+                if (globalOwner == 0 && table.casGlobalOwner(0, owner.word)) {
+                    break;
+                }
+                if (globalOwner == 0 || releaseIfDead(globalOwner)) {
+                    continue;
+                }
+
+                if (isHoldEntities) {
+                    final String message = "Thread {" + currentThread + "} unable to acquire global lock due case of deadlock."
+                            + " It holds entities and global lock is held by other owner";
+                    throw new DeadlockPreventedException(message, currentThread, globalThread);
+                }
+
+                if (!isWaiting || isTimed && deadline - System.nanoTime() <= 0) {
+                    return false;
+                }
+
+                park(attempt, isTimed, deadline);
+                if (Thread.interrupted()) {
+                    isInterrupted = true;
+                    if (isTimed) {
+                        return false;
+                    }
+                }
+            }
+
+            globalThread = currentThread;
+            globalHolds = 1;
+
+            logDebugCurrentThread("waiting other threads completion for acquiring global lock");
+            final long ownActiveThread = isHoldEntities ? 1 : 0;
+            for (int attempt = 0; table.activeThreads() > ownActiveThread; attempt++) {
+                final boolean isExpired = !isWaiting || isTimed && deadline - System.nanoTime() <= 0;
+                if (!isExpired) {
+                    park(attempt, isTimed, deadline);
+                    isInterrupted |= Thread.interrupted();
+                }
+
+                if (isExpired || isTimed && isInterrupted) {
+                    logDebugCurrentThread("cancel global lock");
+                    globalThread = null;
+                    globalHolds = 0;
+                    table.casGlobalOwner(owner.word, 0);
+                    return false;
+                }
+            }
+
+            logDebugCurrentThread("acquire global lock");
+            return true;
+        } finally {
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @param globalOwner
+     * @return true if global owner was dead and global lock was released
+     */
+    private boolean releaseIfDead(final long globalOwner) {
+        if (!table.isAlive(globalOwner) && table.casGlobalOwner(globalOwner, 0)) {
+            logError("Global lock is released from dead owner " + Long.toHexString(globalOwner));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Yield first and then park with growing intervals, but not after deadline
+     */
+    private static void park(final int attempt, final boolean isTimed, final long deadline) {
+        if (attempt < SPINS) {
+            Thread.yield();
+            return;
+        }
+
+        long parkNanos = Math.min(MIN_PARK_NANOS << Math.min(attempt - SPINS, 20), MAX_PARK_NANOS);
+        if (isTimed) {
+            parkNanos = Math.min(parkNanos, deadline - System.nanoTime());
+        }
+        LockSupport.parkNanos(parkNanos);
+    }
+
+    /**
+     * Owner word and held keys of a thread, keys are counted here because owner word doesn't have a hold count
+     */
+    private static final class Owner {
+        private final long word;
+        private final Map<Long, Counter> holds;
+
+        private Owner(final long word) {
+            this.word = word;
+            this.holds = new HashMap<>();
+        }
+    }
+}
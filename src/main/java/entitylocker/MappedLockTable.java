@@ -0,0 +1,503 @@
+package entitylocker;
+
+import sun.misc.Unsafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static entitylocker.UnsafeAccess.UNSAFE;
+import static log.utils.LogUtils.logDebug;
+import static log.utils.LogUtils.logError;
+
+/**
+ * Lock table of {@link MappedEntityLocker} in a memory-mapped file which is shared by processes of one host
+ * <p>
+ * Layout of the file, all fields are longs:
+ * header - capacity of the table and owner of global lock,
+ * process slots - session tag, heartbeat counter and count of threads which hold entities,
+ * lock slots - inverted key and owner, zero owner means free entity.
+ * <p>
+ * Fields are changed by CAS of {@link Unsafe} directly in the mapping, because {@link java.lang.invoke.VarHandle}
+ * isn't available in Java 8 and {@link MappedByteBuffer} doesn't have atomic operations.
+ * <p>
+ * Owner word is made of process index, session tag and thread ordinal, so it's unique between processes.
+ * Owner is alive while its process slot has the same session tag and its heartbeat counter changes,
+ * locks of dead owners can be reclaimed by CAS. The table doesn't store times: every process measures
+ * how long a counter doesn't change by its own {@link System#nanoTime()}, so clocks of processes aren't compared
+ * and steps of wall clock don't expire a live lease or prolong a dead one. A process which is seen for the first time
+ * is alive for one lease, so a crashed process is reclaimed not earlier than lease after other process looked at it.
+ * <p>
+ * Lease assumes that a live process isn't paused longer than lease, e.g. by GC or a debugger. Paused process loses
+ * its entities without fencing, it finds out only when it checks or releases them
+ * <p>
+ * Keys aren't removed on unlocking, because other processes can probe the table at the same time and
+ * a key and its owner can't be changed by one CAS. Free slots are removed by {@link #compact(long)} under global lock
+ * when nobody else uses the table, it happens on every global unlock and when the table is full,
+ * so probing becomes longer while the table fills up between them
+ */
+final class MappedLockTable implements Closeable {
+    private static final long ADDRESS_OFFSET = addressOffset();
+
+    static final int PROCESS_SLOTS = 64;
+
+    private static final long CAPACITY_OFFSET = 0;
+    private static final long GLOBAL_OWNER_OFFSET = 8;
+    private static final long HEADER_SIZE = 64;
+
+    private static final long SESSION = 0;
+    private static final long HEARTBEAT = 8;
+    private static final long ACTIVE_THREADS = 16;
+    private static final long PROCESS_SLOT_SIZE = 64;
+
+    private static final long KEY = 0;
+    private static final long OWNER = 8;
+    private static final long LOCK_SLOT_SIZE = 16;
+
+    private static final long LOCK_SLOTS_OFFSET = HEADER_SIZE + PROCESS_SLOTS * PROCESS_SLOT_SIZE;
+
+    private static final int TAG_BITS = 24;
+    private static final long TAG_MASK = (1L << TAG_BITS) - 1;
+
+    private final FileChannel channel;
+
+    /**
+     * Mapping must be reachable while {@link #address} is used, otherwise it can be unmapped
+     */
+    private final MappedByteBuffer buffer;
+    private final long address;
+    private final int capacity;
+    private final long leaseMillis;
+    private final long leaseNanos;
+
+    /**
+     * The last heartbeat counter of every process slot which this process saw and when it saw it changed
+     */
+    private final AtomicReferenceArray<Observation> observations;
+
+    private final int processIndex;
+    private final long sessionTag;
+    private final Heartbeat heartbeat;
+    private volatile boolean isClosed;
+
+    /**
+     * @param file        - created if it doesn't exist
+     * @param capacity    - count of lock slots, it must be the same for all processes of the file
+     * @param leaseMillis - owner which didn't update its heartbeat longer is considered dead
+     * @throws IOException
+     * @throws IllegalStateException if the file was created with other capacity or all process slots are used,
+     *                               slots of crashed processes are found by waiting one lease
+     */
+    MappedLockTable(final Path file, final int capacity, final long leaseMillis) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive but was " + capacity);
+        }
+        if (leaseMillis <= 0) {
+            throw new IllegalArgumentException("Lease must be positive but was " + leaseMillis);
+        }
+
+        this.capacity = capacity;
+        this.leaseMillis = leaseMillis;
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        this.observations = new AtomicReferenceArray<>(PROCESS_SLOTS);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            //Mapping beyond the end extends the file with zeros, so a new file is an empty table
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, LOCK_SLOTS_OFFSET + capacity * LOCK_SLOT_SIZE);
+            this.address = UNSAFE.getLong(buffer, ADDRESS_OFFSET);
+
+            if (!cas(CAPACITY_OFFSET, 0, capacity) && get(CAPACITY_OFFSET) != capacity) {
+                throw new IllegalStateException("Lock table " + file + " was created with capacity "
+                        + get(CAPACITY_OFFSET) + " but not " + capacity);
+            }
+
+            this.sessionTag = ThreadLocalRandom.current().nextLong(1, TAG_MASK + 1);
+            this.processIndex = registerProcess();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        this.heartbeat = new Heartbeat(this, leaseMillis / 3);
+        heartbeat.start();
+    }
+
+    /**
+     * @param threadOrdinal - unique in the process
+     * @return owner word of a thread of this process
+     */
+    long ownerOf(final long threadOrdinal) {
+        return (long) (processIndex + 1) << 2 * TAG_BITS | sessionTag << TAG_BITS | threadOrdinal & TAG_MASK;
+    }
+
+    boolean isOwnProcess(final long owner) {
+        return processOf(owner) == processIndex && (owner >>> TAG_BITS & TAG_MASK) == sessionTag;
+    }
+
+    /**
+     * @param owner
+     * @return true if the process of the owner is alive
+     */
+    boolean isAlive(final long owner) {
+        if (isOwnProcess(owner)) {
+            return true;
+        }
+
+        final int index = processOf(owner);
+        return get(processSlot(index) + SESSION) == (owner >>> TAG_BITS & TAG_MASK) && isBeating(index, System.nanoTime());
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Find the slot of the key or insert the key to a free one
+     *
+     * @param key
+     * @return offset of lock slot or -1 if the table is full, it must be compacted in this case
+     */
+    long slotOf(final long key) {
+        return probe(key, true);
+    }
+
+    /**
+     * @param key
+     * @return offset of lock slot or -1 if the key isn't in the table
+     */
+    long findSlot(final long key) {
+        return probe(key, false);
+    }
+
+    /**
+     * Linear probing, keys are stored inverted because zero key means free slot
+     *
+     * @param key
+     * @param isInsert
+     * @return offset of lock slot or -1 if it isn't found
+     */
+    private long probe(final long key, final boolean isInsert) {
+        if (key == -1) {
+            throw new IllegalArgumentException("Key -1 is reserved for free slots of lock table");
+        }
+
+        final long storedKey = ~key;
+        int index = homeIndex(key);
+
+        for (int i = 0; i < capacity; i++) {
+            final long slot = lockSlot(index);
+            final long slotKey = get(slot + KEY);
+
+            if (slotKey == storedKey) {
+                return slot;
+            }
+            if (slotKey == 0) {
+                if (!isInsert) {
+                    return -1;
+                }
+                if (cas(slot + KEY, 0, storedKey) || get(slot + KEY) == storedKey) {
+                    return slot;
+                }
+            }
+
+            index = nextIndex(index);
+        }
+
+        return -1;
+    }
+
+    long owner(final long slot) {
+        return get(slot + OWNER);
+    }
+
+    boolean casOwner(final long slot, final long expected, final long owner) {
+        return cas(slot + OWNER, expected, owner);
+    }
+
+    long globalOwner() {
+        return get(GLOBAL_OWNER_OFFSET);
+    }
+
+    boolean casGlobalOwner(final long expected, final long owner) {
+        return cas(GLOBAL_OWNER_OFFSET, expected, owner);
+    }
+
+    void incActiveThreads() {
+        UNSAFE.getAndAddLong(null, address + processSlot(processIndex) + ACTIVE_THREADS, 1);
+    }
+
+    void decActiveThreads() {
+        UNSAFE.getAndAddLong(null, address + processSlot(processIndex) + ACTIVE_THREADS, -1);
+    }
+
+    /**
+     * @return count of threads of alive processes which hold entities or pass the gate to lock them
+     */
+    long activeThreads() {
+        final long now = System.nanoTime();
+        long active = 0;
+        for (int i = 0; i < PROCESS_SLOTS; i++) {
+            final long processSlot = processSlot(i);
+            if (get(processSlot + SESSION) != 0 && (i == processIndex || isBeating(i, now))) {
+                active += get(processSlot + ACTIVE_THREADS);
+            }
+        }
+        return active;
+    }
+
+    /**
+     * @return count of entities which are held by any process
+     */
+    int lockedEntities() {
+        int locked = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (get(lockSlot(i) + OWNER) != 0) {
+                locked++;
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * Remove keys of free entities and of entities of dead owners in place.
+     * Must be called only by global thread after drain, when nobody else probes the table
+     *
+     * @param globalOwner - owner of global lock which keeps its entities
+     */
+    void compact(final long globalOwner) {
+        int held = 0;
+        for (int i = 0; i < capacity; ) {
+            final long slot = lockSlot(i);
+            final long owner = get(slot + OWNER);
+
+            if (get(slot + KEY) == 0) {
+                i++;
+            } else if (owner != 0 && (owner == globalOwner || isAlive(owner))) {
+                held++;
+                i++;
+            } else {
+                //Other key can be shifted to the removed slot, so the slot is checked again
+                remove(i);
+            }
+        }
+        logDebug("Lock table is compacted, " + held + " entities are held");
+    }
+
+    /**
+     * Backward shift deletion of linear probing: keys after the removed slot are shifted back to it
+     * unless their home slot is between, so every key stays reachable from its home without tombstones
+     *
+     * @param index - index of removed slot
+     */
+    private void remove(final int index) {
+        int free = index;
+        int next = index;
+        for (int i = 1; i < capacity; i++) {
+            next = nextIndex(next);
+            final long nextSlot = lockSlot(next);
+            final long storedKey = get(nextSlot + KEY);
+            if (storedKey == 0) {
+                break;
+            }
+
+            final int home = homeIndex(~storedKey);
+            final boolean isHomeBetween = free <= next ? free < home && home <= next : free < home || home <= next;
+            if (!isHomeBetween) {
+                final long freeSlot = lockSlot(free);
+                put(freeSlot + KEY, storedKey);
+                put(freeSlot + OWNER, get(nextSlot + OWNER));
+                free = next;
+            }
+        }
+
+        final long freeSlot = lockSlot(free);
+        put(freeSlot + OWNER, 0);
+        put(freeSlot + KEY, 0);
+    }
+
+    /**
+     * Release process slot, entities which are still held by this process become reclaimable at once
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+
+        isClosed = true;
+        heartbeat.interrupt();
+        cas(processSlot(processIndex) + SESSION, sessionTag, 0);
+        channel.close();
+    }
+
+    /**
+     * Slot is free if its session is zero or its heartbeat counter doesn't change during lease,
+     * the last one means the process crashed
+     *
+     * @return index of process slot
+     */
+    private int registerProcess() {
+        final long[] beats = new long[PROCESS_SLOTS];
+        for (int i = 0; i < PROCESS_SLOTS; i++) {
+            beats[i] = get(processSlot(i) + HEARTBEAT);
+            if (get(processSlot(i) + SESSION) == 0 && takeProcessSlot(i, 0)) {
+                return i;
+            }
+        }
+
+        try {
+            TimeUnit.MILLISECONDS.sleep(leaseMillis + 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (int i = 0; i < PROCESS_SLOTS; i++) {
+            final long processSlot = processSlot(i);
+            final long session = get(processSlot + SESSION);
+            if ((session == 0 || get(processSlot + HEARTBEAT) == beats[i]) && takeProcessSlot(i, session)) {
+                return i;
+            }
+        }
+
+        final String message = "All " + PROCESS_SLOTS + " process slots of lock table are used";
+        logError(message);
+        throw new IllegalStateException(message);
+    }
+
+    /**
+     * Heartbeat counter isn't reset, so other processes see that the slot is alive again
+     */
+    private boolean takeProcessSlot(final int index, final long session) {
+        final long processSlot = processSlot(index);
+        if (!cas(processSlot + SESSION, session, sessionTag)) {
+            return false;
+        }
+
+        put(processSlot + ACTIVE_THREADS, 0);
+        put(processSlot + HEARTBEAT, get(processSlot + HEARTBEAT) + 1);
+        logDebug("Process is registered in lock table with index " + index);
+        return true;
+    }
+
+    /**
+     * Races of threads can replace the last observation by an older one, it only prolongs the lease a bit
+     *
+     * @param index    - index of process slot
+     * @param nanoTime - {@link System#nanoTime()} of caller thread
+     * @return false if heartbeat counter of the process didn't change longer than lease
+     */
+    private boolean isBeating(final int index, final long nanoTime) {
+        final long beat = get(processSlot(index) + HEARTBEAT);
+        final Observation observation = observations.get(index);
+        if (observation == null || observation.beat != beat) {
+            observations.set(index, new Observation(beat, nanoTime));
+            return true;
+        }
+        return nanoTime - observation.nanoTime <= leaseNanos;
+    }
+
+    /**
+     * @return false if the process was considered dead and its slot was taken by other process
+     */
+    private boolean beat() {
+        final long processSlot = processSlot(processIndex);
+        if (get(processSlot + SESSION) != sessionTag) {
+            logError("Process slot " + processIndex + " of lock table was reclaimed, heartbeat was late more than lease");
+            return false;
+        }
+
+        put(processSlot + HEARTBEAT, get(processSlot + HEARTBEAT) + 1);
+        return true;
+    }
+
+    private int homeIndex(final long key) {
+        return Math.floorMod(Long.hashCode(key * 0x9E3779B97F4A7C15L), capacity);
+    }
+
+    private int nextIndex(final int index) {
+        return index + 1 == capacity ? 0 : index + 1;
+    }
+
+    private static long lockSlot(final int index) {
+        return LOCK_SLOTS_OFFSET + index * LOCK_SLOT_SIZE;
+    }
+
+    private static int processOf(final long owner) {
+        return (int) (owner >>> 2 * TAG_BITS) - 1;
+    }
+
+    private static long processSlot(final int index) {
+        return HEADER_SIZE + index * PROCESS_SLOT_SIZE;
+    }
+
+    private long get(final long offset) {
+        return UNSAFE.getLongVolatile(null, address + offset);
+    }
+
+    private void put(final long offset, final long value) {
+        UNSAFE.putLongVolatile(null, address + offset, value);
+    }
+
+    private boolean cas(final long offset, final long expected, final long value) {
+        return UNSAFE.compareAndSwapLong(null, address + offset, expected, value);
+    }
+
+    private static long addressOffset() {
+        try {
+            return UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final class Observation {
+        private final long beat;
+        private final long nanoTime;
+
+        private Observation(final long beat, final long nanoTime) {
+            this.beat = beat;
+            this.nanoTime = nanoTime;
+        }
+    }
+
+    /**
+     * Daemon thread which updates heartbeat of the process, it keeps a weak reference to the table
+     * so the thread stops when the table isn't used anymore
+     */
+    private static class Heartbeat extends Thread {
+        private final WeakReference<MappedLockTable> table;
+        private final long intervalMillis;
+
+        private Heartbeat(final MappedLockTable table, final long intervalMillis) {
+            super("lock-table-heartbeat");
+            this.table = new WeakReference<>(table);
+            this.intervalMillis = Math.max(1, intervalMillis);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                final MappedLockTable lockTable = table.get();
+                if (lockTable == null || lockTable.isClosed || !lockTable.beat()) {
+                    return;
+                }
+            }
+        }
+    }
+}
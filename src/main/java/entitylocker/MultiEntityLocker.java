@@ -1,18 +1,33 @@
 package entitylocker;
 
 import deadlockpreventer.DeadlockPreventer;
+import deadlockpreventer.DeadlockPreventionStrategy;
+import deadlockpreventer.LockOrderPreventer;
 import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.exceptions.LockRejectedException;
 import utils.function.BooleanReturnFunction;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.Consumer;
-import java.util.function.Supplier;
 
+import static entitylocker.LockFunctions.cancellableLock;
+import static entitylocker.LockFunctions.interruptibleLock;
+import static entitylocker.LockFunctions.silentTryLockFunction;
+import static entitylocker.LockFunctions.waitingLock;
+import static log.utils.LogUtils.isDebugEnabled;
 import static log.utils.LogUtils.logDebugCurrentThread;
 import static log.utils.LogUtils.logError;
 
@@ -26,11 +41,32 @@ import static log.utils.LogUtils.logError;
  *
  * @param <T>
  */
-public class MultiEntityLocker<T> implements EntityLocker<T> {
-    private final Map<T, ReentrantLock> entityLocks;
-    private final DeadlockPreventer<T> deadlockPreventer;
+public class MultiEntityLocker<T>
+        implements InterruptibleEntityLocker<T>, ConditionalEntityLocker<T>, RangeEntityLocker<T> {
+    /**
+     * Count of entities which one thread retains in affinity mode
+     */
+    private static final int AFFINITY_HANDLES = 16;
+
+    static final int DEFAULT_VERSION_STRIPES = Runtime.getRuntime().availableProcessors() * 4;
+
+    private final Map<T, EntityLock> entityLocks;
+    private final DeadlockPreventionStrategy<T> deadlockPreventer;
     private final EscalatorDetector escalatorDetector;
 
+    /**
+     * If true entity locks spin before parking a thread
+     * @see AdaptiveSpinLock
+     */
+    private final boolean adaptiveSpinning;
+
+    private final WaiterLimits waiterLimits;
+
+    /**
+     * Threads which wait any entity, it's changed only on contended path
+     */
+    private final AtomicInteger totalWaiters;
+
     /**
      * The main idea of implementing global lock and escalation is using double read write locks
      * Explanation:
@@ -44,9 +80,17 @@ public class MultiEntityLocker<T> implements EntityLocker<T> {
      *
      * P.S I think it's good to move implementation of global lock to separate class, but I found a solution very late
      */
-    private final ReentrantReadWriteLock globalLock;
+    private final GlobalGate.GlobalLock globalLock;
     private final ReentrantReadWriteLock nonGlobalLock;
 
+    /**
+     * Read lock is held by threads of shared global lock. The first of them waits completion of other threads
+     * by write lock of nonGlobalLock, after that a thread which locks its first entity sees the read lock and waits
+     * the write lock of this lock until all shared global threads leave.
+     * Global thread holds the write lock, so shared and exclusive global locks exclude each other
+     */
+    private final ReentrantReadWriteLock sharedGlobalLock;
+
     /**
      * This field used in {@link #unlockReadLock()} and {@link #restoreReadLock()}
      * <p>
@@ -55,39 +99,244 @@ public class MultiEntityLocker<T> implements EntityLocker<T> {
      */
     private int globalLocks;
 
+    /**
+     * Holds of a transferred entity aren't backed by read locks of nonGlobalLock until the new owner adopts them,
+     * because read locks of {@link ReentrantReadWriteLock} are bound to a thread. Instead of it every transferred entity
+     * holds a read lock of this lock, which can be released by any thread.
+     * Global thread acquires its write lock before nonGlobalLock, so it waits until all transfers are adopted
+     */
+    private final StampedLock transferLock;
+
+    /**
+     * Entities transferred to a thread which the thread didn't adopt yet, they are kept by the gate
+     */
+    private final Map<Thread, List<Transfer<?>>> transfers;
+
+    private final EntityVersions entityVersions;
+
+    /**
+     * Owner of the locks above, it's shared with other lockers of {@link EntityLockerRegistry}
+     */
+    private final GlobalGate gate;
+
+    /**
+     * Ranges hold one read lock of nonGlobalLock and one escalation counter as an entity,
+     * locking an entity checks ranges after acquiring the entity lock and a range waits entities after reserving,
+     * so one of them always sees the other
+     */
+    private final RangeLocks<T> rangeLocks;
+
+    /**
+     * Waits an entity until caller thread is chosen as a victim, it's created once because method reference allocates
+     */
+    private final BooleanReturnFunction<Lock> victimCancellableLock;
+
+    /**
+     * Null if affinity mode is off. Otherwise the last unlock doesn't remove a lock from the table,
+     * it's retained for the thread, so next locking by this thread finds the same lock and doesn't create a new one.
+     * Every thread retains up to {@link #AFFINITY_HANDLES} entities, the oldest one is removed when a new one comes.
+     * Other thread which locks a retained entity takes its affinity
+     */
+    private final ThreadLocal<AffinityHandles<T>> affinityHandles;
+
+    /**
+     * Rings of all threads which retained entities, a ring of a terminated thread is evicted when other thread
+     * creates its ring, so retained locks are bounded by live threads of thread-per-task executors
+     */
+    private final Queue<AffinityHandles<T>> affinityOwners;
+
+    /**
+     * Entities held by a thread with their locks, an entity is added by its first hold and removed by its last unlock
+     * or transfer, so {@link #unlockAllHeldByCurrentThread()} doesn't scan the table. Only the owner thread uses it
+     */
+    private final ThreadLocal<Map<T, EntityLock>> heldEntities;
+
     public MultiEntityLocker() {
         this(100);
     }
 
     public MultiEntityLocker(final int minLocksBeforeGlobal) {
+        this(minLocksBeforeGlobal, false);
+    }
+
+    /**
+     * @param minLocksBeforeGlobal
+     * @param adaptiveSpinning - spin before parking on contended entity, it's useful for very short protected code
+     */
+    public MultiEntityLocker(final int minLocksBeforeGlobal, final boolean adaptiveSpinning) {
+        this(minLocksBeforeGlobal, adaptiveSpinning, new DeadlockPreventer<>());
+    }
+
+    /**
+     * Ordered lock mode: caller guarantees that every thread locks entities in lockOrder, so deadlock detection
+     * is skipped, in debug mode locking out of order fails fast with {@link DeadlockPreventedException}
+     * <p>
+     * Escalation is disabled, because escalated thread would wait global lock while it holds entities
+     *
+     * @param lockOrder
+     * @param adaptiveSpinning
+     * @see LockOrderPreventer
+     */
+    public MultiEntityLocker(final Comparator<? super T> lockOrder, final boolean adaptiveSpinning) {
+        this(new GlobalGate(Integer.MAX_VALUE), adaptiveSpinning, new LockOrderPreventer<>(lockOrder), WaiterLimits.UNBOUNDED,
+                false, DEFAULT_VERSION_STRIPES, lockOrder);
+    }
+
+    /**
+     * @param minLocksBeforeGlobal
+     * @param adaptiveSpinning
+     * @param deadlockPreventer    - preventer with required detection mode or {@link deadlockpreventer.TimestampDeadlockPreventer},
+     *                             it mustn't be shared with other lockers
+     */
+    public MultiEntityLocker(final int minLocksBeforeGlobal, final boolean adaptiveSpinning, final DeadlockPreventionStrategy<T> deadlockPreventer) {
+        this(minLocksBeforeGlobal, adaptiveSpinning, deadlockPreventer, WaiterLimits.UNBOUNDED);
+    }
+
+    /**
+     * Ranges are ordered naturally, so range locking requires comparable entity ids
+     *
+     * @param minLocksBeforeGlobal
+     * @param adaptiveSpinning
+     * @param deadlockPreventer
+     * @param waiterLimits         - limits of threads which wait entities
+     */
+    public MultiEntityLocker(final int minLocksBeforeGlobal, final boolean adaptiveSpinning,
+                             final DeadlockPreventionStrategy<T> deadlockPreventer, final WaiterLimits waiterLimits) {
+        this(minLocksBeforeGlobal, adaptiveSpinning, deadlockPreventer, waiterLimits, false);
+    }
+
+    /**
+     * Affinity mode is useful if the same thread locks the same entities again and again, e.g. a partitioned consumer.
+     * Up to {@value #AFFINITY_HANDLES} unlocked entities per thread keep their locks, so {@link #currentSize()}
+     * has to check every lock in this mode
+     *
+     * @param minLocksBeforeGlobal
+     * @param adaptiveSpinning
+     * @param deadlockPreventer
+     * @param waiterLimits
+     * @param affinity             - retain locks of unlocked entities for their last owner thread
+     */
+    public MultiEntityLocker(final int minLocksBeforeGlobal, final boolean adaptiveSpinning,
+                             final DeadlockPreventionStrategy<T> deadlockPreventer, final WaiterLimits waiterLimits,
+                             final boolean affinity) {
+        this(new GlobalGate(minLocksBeforeGlobal), adaptiveSpinning, deadlockPreventer, waiterLimits, affinity,
+                DEFAULT_VERSION_STRIPES, naturalOrder());
+    }
+
+    /**
+     * Locker of {@link EntityLockerRegistry} which shares the gate with other lockers
+     *
+     * @param gate
+     * @param adaptiveSpinning
+     * @param deadlockPreventer - it's shared with other lockers of the gate
+     * @param waiterLimits
+     * @param affinity
+     * @param versionStripes    - stripes of entity versions for optimistic reads
+     */
+    MultiEntityLocker(final GlobalGate gate, final boolean adaptiveSpinning,
+                      final DeadlockPreventionStrategy<T> deadlockPreventer, final WaiterLimits waiterLimits,
+                      final boolean affinity, final int versionStripes) {
+        this(gate, adaptiveSpinning, deadlockPreventer, waiterLimits, affinity, versionStripes, naturalOrder());
+    }
+
+    private MultiEntityLocker(final GlobalGate gate, final boolean adaptiveSpinning,
+                              final DeadlockPreventionStrategy<T> deadlockPreventer, final WaiterLimits waiterLimits,
+                              final boolean affinity, final int versionStripes, final Comparator<? super T> rangeOrder) {
+        this.adaptiveSpinning = adaptiveSpinning;
+        this.waiterLimits = waiterLimits;
+        this.totalWaiters = new AtomicInteger();
         this.entityLocks = new ConcurrentHashMap<>();
-        this.deadlockPreventer = new DeadlockPreventer<>();
-        this.escalatorDetector = new EscalatorDetector(minLocksBeforeGlobal);
-        globalLock = new ReentrantReadWriteLock();
-        nonGlobalLock = new ReentrantReadWriteLock();
+        this.deadlockPreventer = deadlockPreventer;
+        this.gate = gate;
+        this.escalatorDetector = gate.escalatorDetector;
+        globalLock = gate.globalLock;
+        nonGlobalLock = gate.nonGlobalLock;
+        sharedGlobalLock = gate.sharedGlobalLock;
+        transferLock = gate.transferLock;
+        transfers = gate.transfers;
+        entityVersions = new EntityVersions(versionStripes);
+        gate.register(entityVersions);
+        victimCancellableLock = cancellableLock(deadlockPreventer::isCurrentThreadVictim);
+        rangeLocks = new RangeLocks<>(rangeOrder);
+        affinityHandles = affinity ? ThreadLocal.withInitial(this::newAffinityHandles) : null;
+        affinityOwners = affinity ? new ConcurrentLinkedQueue<>() : null;
+        heldEntities = ThreadLocal.withInitial(HashMap::new);
     }
 
     @Override
     public void lock(final T entityId) throws DeadlockPreventedException {
-        lock(entityId, waitingLock());
+        if (!deadlockPreventer.canAbortOtherThreads()) {
+            lock(entityId, waitingLock());
+            return;
+        }
+
+        //Deadlock preventer interrupts a victim, so waiting must be interruptible
+        if (!lock(entityId, victimCancellableLock)) {
+            deadlockPreventer.throwIfVictim();
+        }
+    }
+
+    @Override
+    public void lockInterruptibly(final T entityId) throws InterruptedException, DeadlockPreventedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        if (!lock(entityId, interruptibleLock())) {
+            throwIfVictim();
+            Thread.interrupted();
+            throw new InterruptedException();
+        }
     }
 
+    /**
+     * Never throws {@link LockRejectedException} because it doesn't wait
+     */
     @Override
     public boolean tryLock(final T entityId) throws DeadlockPreventedException {
-        return lock(entityId, Lock::tryLock);
+        try {
+            return lock(entityId, Lock::tryLock);
+        } catch (LockRejectedException e) {
+            return false;
+        }
     }
 
 
+    /**
+     * Reentrant locking doesn't wait, so it doesn't create a deadline function and escalation caused by it
+     * is only tried without waiting, it will be tried again on next locking
+     */
     @Override
     public boolean tryLock(final T entityId, final long timeout, final TimeUnit timeUnit) throws DeadlockPreventedException {
-        return lock(entityId, silentTryLockFunction(timeout, timeUnit));
+        if (isHeldByCurrentThread(entityId)) {
+            return lock(entityId, Lock::tryLock, Lock::tryLock);
+        }
+
+        final boolean isLockGranted;
+        try {
+            final BooleanReturnFunction<Lock> lockFunction = silentTryLockFunction(timeout, timeUnit);
+            isLockGranted = lock(entityId, lockFunction, lockFunction);
+        } catch (LockRejectedException e) {
+            if (waiterLimits.rejectionMode() == WaiterLimits.RejectionMode.TRY_LOCK_FALSE) {
+                return false;
+            }
+            throw e;
+        }
+
+        if (!isLockGranted) {
+            throwIfVictim();
+        }
+        return isLockGranted;
     }
 
     @Override
     public void unlock(final T entityId) {
-        final ReentrantLock entityLock = entityLocks.get(entityId);
+        adoptTransferredEntities();
 
-        if (entityLock == null) {
+        final EntityLock entityLock = entityLocks.get(entityId);
+
+        //Lock of a free entity can be in the table in affinity mode
+        if (entityLock == null || !entityLock.isLocked()) {
             final String message = "There is no locks for entity {" + entityId + "}";
             logError(message);
             throw new IllegalMonitorStateException(message);
@@ -101,10 +350,10 @@ public class MultiEntityLocker<T> implements EntityLocker<T> {
         }
 
         if (entityLock.getHoldCount() == 1) {
-            logDebugCurrentThread("It's last lock for entity {" + entityId + "} removing it");
             deadlockPreventer.beforeUnlocking(entityId);
-            entityLocks.remove(entityId);
-        } else {
+            heldEntities.get().remove(entityId);
+            releaseLastHold(entityId, entityLock);
+        } else if (isDebugEnabled()) {
             logDebugCurrentThread("unlock entity {" + entityId + "} current hold count is " + (entityLock.getHoldCount() - 1));
         }
 
@@ -119,240 +368,1184 @@ public class MultiEntityLocker<T> implements EntityLocker<T> {
 
     @Override
     public boolean isLockedByCurrentThread(final T entityId) {
-        final ReentrantLock entityLock = entityLocks.get(entityId);
+        if (isHeldByCurrentThread(entityId) || globalLock.isWriteLockedByCurrentThread()) {
+            return true;
+        }
 
-        return entityLock != null && entityLock.isHeldByCurrentThread() || globalLock.isWriteLockedByCurrentThread();
+        final RangeLocks.Range<T> range = rangeLocks.covering(entityId);
+        return range != null && range.owner == Thread.currentThread();
     }
 
+    /**
+     * The first hold of a range scans the whole lock table, see {@link #drainRange(RangeLocks.Range, BooleanReturnFunction)},
+     * so ranges suit tables of moderate size or rare range locking
+     */
     @Override
-    public void globalLock() throws DeadlockPreventedException {
-        globalLock(waitingLock());
-    }
+    public void lockRange(final T from, final T to) throws DeadlockPreventedException {
+        if (!deadlockPreventer.canAbortOtherThreads()) {
+            lockRange(from, to, waitingLock(), waitingLock());
+            return;
+        }
 
-    @Override
-    public boolean tryGlobalLock() throws DeadlockPreventedException {
-        return globalLock(Lock::tryLock);
+        if (!lockRange(from, to, victimCancellableLock, waitingLock())) {
+            deadlockPreventer.throwIfVictim();
+        }
     }
 
     @Override
-    public boolean tryGlobalLock(final long timeout, final TimeUnit unit) throws DeadlockPreventedException {
-        deadlockPreventer.beforeGlobalLocking();
+    public boolean tryLockRange(final T from, final T to, final long timeout, final TimeUnit unit) throws DeadlockPreventedException {
+        final BooleanReturnFunction<Lock> lockFunction = silentTryLockFunction(timeout, unit);
+        final boolean isLockGranted = lockRange(from, to, lockFunction, lockFunction);
 
-        final long nanos = unit.toNanos(timeout);
-
-        //I know that is bad to use System.nanoTime(), but we need guaranteed that we wait approximate expected time
-        //If we will try locking both locks with given timeout it's 2 times greater
-        //But maybe it's just wrong implementation using double read write locks
-        final long start = System.nanoTime();
-        if (!silentTryLockWithNanos(this.globalLock::writeLock, nanos)) {
-            return false;
+        if (!isLockGranted) {
+            throwIfVictim();
         }
-        final long end = System.nanoTime();
+        return isLockGranted;
+    }
 
-        unlockReadLock();
+    @Override
+    public void unlockRange(final T from, final T to) {
+        adoptTransferredEntities();
 
-        final boolean isLockGranted = silentTryLockWithNanos(nonGlobalLock::writeLock, nanos - (end - start));
+        final RangeLocks.Range<T> range = rangeLocks.get(from, to);
 
-        restoreReadLock();
+        if (range == null) {
+            final String message = "There is no locks for range {" + from + ", " + to + "}";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
 
-        return isLockGranted;
-    }
+        final Thread currentThread = Thread.currentThread();
+        if (range.owner != currentThread) {
+            final String message = currentThread + " cannot unlock range - {" + from + ", " + to + "} because it's hold by other thread";
+            logError(message);
+            throw new IllegalAccessError(message);
+        }
 
-    @Override
-    public void globalUnlock() {
-        logDebugCurrentThread("release global lock");
-        globalLocks = 0;
-        deadlockPreventer.beforeGlobalUnlocking();
-        escalatorDetector.cancelEscalation();
-        nonGlobalLock.writeLock().unlock();
-        globalLock.writeLock().unlock();
-    }
+        if (rangeLocks.release(range)) {
+            logDebugCurrentThread("release range " + range);
+        }
+        nonGlobalLock.readLock().unlock();
 
-    @Override
-    public int currentSize() {
-        return entityLocks.size();
+        if (escalatorDetector.decThreadEntityCounter()) {
+            logDebugCurrentThread("deescalate global lock");
+            globalUnlock();
+        }
     }
 
     /**
-     * Steps to acquire non global lock
-     * When we call non global locking
-     * firstly, we need lock global read lock to prevent parallel global locking
+     * Release all holds of all entities held by caller thread at once, e.g. at the end of a request.
+     * Ranges and global lock aren't released
      * <p>
-     * if we have a thread which locked any entity before global lock we pass it
-     * because we need to wait other threads executions.
-     * If we will have a deadlock situation we have 2 cases here:
-     * If fail thread was a global lock - we cancel global locking
-     * otherwise user who try to lock an entity which locked by global lock should be unlocked
+     * Entities of caller thread are kept per thread by their first holds, so it takes time of caller thread holds
+     * and doesn't depend on the size of the table. Deadlock preventer and escalation counters
+     * are updated once for all entities
      *
-     * @param entityId
-     * @param lockFunction
-     * @return
-     * @throws DeadlockPreventedException
+     * @return entities which were released, each of them once, it's empty if caller thread held nothing
      */
-    private boolean lock(final T entityId, final BooleanReturnFunction<Lock> lockFunction) throws DeadlockPreventedException {
-        logDebugCurrentThread("try gain lock for entity {" + entityId + "}");
-        logDebugCurrentThread("check global lock");
+    public List<T> unlockAllHeldByCurrentThread() {
+        adoptTransferredEntities();
 
-        if (escalatorDetector.currentThreadLockedEntities() == 0) {
-            if (!lockFunction.apply(globalLock.readLock())) {
-                return false;
-            }
+        final Map<T, EntityLock> held = heldEntities.get();
+        final List<T> entityIds = new ArrayList<>(held.size());
+        final List<EntityLock> heldLocks = new ArrayList<>(held.size());
+        for (final Map.Entry<T, EntityLock> entry : held.entrySet()) {
+            entityIds.add(entry.getKey());
+            heldLocks.add(entry.getValue());
+        }
 
-            //Here we lock both to guaranteed that no one else will locked global write lock
-            nonGlobalLock.readLock().lock();
-            globalLock.readLock().unlock();
-        } else {
-            nonGlobalLock.readLock().lock();
+        if (entityIds.isEmpty()) {
+            return entityIds;
         }
+        held.clear();
 
-        final ReentrantLock entityLock;
-        try {
-            entityLock = getEntityLock(entityId);
-        } catch (DeadlockPreventedException e) {
-            nonGlobalLock.readLock().unlock();
-            throw e;
+        deadlockPreventer.beforeUnlockingAll(entityIds);
+
+        int holds = 0;
+        for (int i = 0; i < entityIds.size(); ++i) {
+            final EntityLock entityLock = heldLocks.get(i);
+            final int holdCount = entityLock.getHoldCount();
+
+            releaseLastHold(entityIds.get(i), entityLock);
+            for (int j = 0; j < holdCount; ++j) {
+                nonGlobalLock.readLock().unlock();
+                entityLock.unlock();
+            }
+            holds += holdCount;
         }
+        logDebugCurrentThread("unlock all held entities {}", entityIds);
 
-        if (entityLock.isLocked() && !entityLock.isHeldByCurrentThread()) {
-            logDebugCurrentThread("waiting lock for entity {" + entityId + "}");
+        if (escalatorDetector.decThreadEntityCounter(holds)) {
+            logDebugCurrentThread("deescalate global lock");
+            globalUnlock();
         }
+        return entityIds;
+    }
 
-        final boolean isLockGranted = lockFunction.apply(entityLock);
+    @Override
+    public void globalLock() throws DeadlockPreventedException {
+        globalLock(waitingLock());
+    }
 
-        if (isLockGranted) {
-            logDebugCurrentThread("gain lock for entity {" + entityId + "}");
-        } else {
-            logDebugCurrentThread("cannot gain lock for entity {" + entityId + "}");
+    @Override
+    public void globalLockInterruptibly() throws InterruptedException, DeadlockPreventedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
         }
 
-        //Using putIfAbsent here because we can get a lock which other thread can remove in unlock() method
-        entityLocks.putIfAbsent(entityId, entityLock);
-
-        afterLocking(entityId, isLockGranted);
+        if (!globalLock(interruptibleLock())) {
+            throwIfVictim();
+            Thread.interrupted();
+            throw new InterruptedException();
+        }
+    }
 
-        return isLockGranted;
+    @Override
+    public boolean tryGlobalLock() throws DeadlockPreventedException {
+        return globalLock(Lock::tryLock);
     }
 
     /**
-     * Steps to acquire global lock
-     * When we call global locking
-     * Firstly, we need to check deadlock
-     * Secondly - try to acquire global write lock - if it's succeed then try promote read lock from non global lock
-     * to write lock and after that we have fully granted global lock
-     *
-     * @param lockFunction
-     * @return
-     * @throws DeadlockPreventedException
+     * Global write lock, transfers and other threads completion are waited until one deadline,
+     * otherwise the whole waiting could be some times greater than timeout
      */
-    private boolean globalLock(final BooleanReturnFunction<Lock> lockFunction) throws DeadlockPreventedException {
-        deadlockPreventer.beforeGlobalLocking();
-
-        logDebugCurrentThread("waiting global lock");
-        if (!lockFunction.apply(globalLock.writeLock())) {
-            return false;
+    @Override
+    public boolean tryGlobalLock(final long timeout, final TimeUnit unit) throws DeadlockPreventedException {
+        if (globalLock.isWriteLockedByCurrentThread()) {
+            return globalLock(Lock::tryLock);
         }
+        return globalLock(silentTryLockFunction(timeout, unit));
+    }
 
-        unlockReadLock();
-
-        logDebugCurrentThread("waiting other threads completion for acquiring global lock");
-        final boolean isLockGranted = lockFunction.apply(nonGlobalLock.writeLock());
-        logDebugCurrentThread("acquire global lock");
-
-        restoreReadLock();
-
-        return isLockGranted;
+    @Override
+    public void globalUnlock() {
+        logDebugCurrentThread("release global lock");
+        globalLocks = 0;
+        escalatorDetector.cancelEscalation();
+        nonGlobalLock.writeLock().unlock();
+        if (globalLock.getWriteHoldCount() == 1) {
+            //Caller thread stays global thread for deadlock preventer until the outer global lock is released
+            deadlockPreventer.beforeGlobalUnlocking();
+            transferLock.asWriteLock().unlock();
+            sharedGlobalLock.writeLock().unlock();
+        }
+        globalLock.writeLock().unlock();
     }
 
     /**
-     * Helper function to exclude boilerplate code
+     * Acquire global lock in shared mode, e.g. for a consistent snapshot of all entities.
+     * It waits until other threads release their entities and while it's held nobody can lock any entity
+     * or acquire global lock, but other threads can acquire shared global lock at the same time.
+     * Caller thread cannot lock entities under it
      *
-     * @param lock
-     * @param timeout
-     * @return
+     * @throws {@link java.lang.IllegalMonitorStateException} if caller thread holds entities or global lock
      */
-    private boolean silentTryLockWithNanos(final Supplier<Lock> lock, final long timeout) {
-        try {
-            return lock.get().tryLock(timeout, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            return false;
-        }
+    public void globalSharedLock() {
+        globalSharedLock(waitingLock());
     }
 
     /**
-     * Helper function to exclude boilerplate code
+     * Same as {@link #globalSharedLock()} with timeout
+     * <p>
+     * Shared global lock, transfers and other threads completion are waited until one deadline
      *
      * @param timeout
-     * @param timeUnit
-     * @return
+     * @param unit
+     * @return true if lock success and false otherwise
      */
-    private BooleanReturnFunction<Lock> silentTryLockFunction(final long timeout, final TimeUnit timeUnit) {
-        return lock -> {
-            try {
-                return lock.tryLock(timeout, timeUnit);
-            } catch (InterruptedException e) {
-                return false;
-            }
-        };
+    public boolean tryGlobalSharedLock(final long timeout, final TimeUnit unit) {
+        return globalSharedLock(silentTryLockFunction(timeout, unit));
     }
 
-
     /**
-     * Add locked entity to deadlock preventer and check does the thread needs escalation
+     * Release shared global lock
+     *
+     * @throws {@link java.lang.IllegalMonitorStateException} if caller thread doesn't hold shared global lock
      */
-    private void afterLocking(final T entityId, final boolean isLockGranted) throws DeadlockPreventedException {
-        deadlockPreventer.afterLocking(entityId, isLockGranted);
-        callEscalationIfNeeds(isLockGranted);
+    public void globalSharedUnlock() {
+        if (sharedGlobalLock.getReadHoldCount() == 0) {
+            final String message = Thread.currentThread() + " doesn't hold shared global lock";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+
+        logDebugCurrentThread("release shared global lock");
+        sharedGlobalLock.readLock().unlock();
     }
 
-    /**
-     * If some thread locks to many entities promote it lock to global lock
-     */
-    private void callEscalationIfNeeds(final boolean isLockGranted) throws DeadlockPreventedException {
-        if (isLockGranted && escalatorDetector.incThreadEntityCounter()) {
-            logDebugCurrentThread("start promotion to global lock due escalation");
-            globalLock();
+    @Override
+    public int currentSize() {
+        if (affinityHandles == null) {
+            return entityLocks.size();
         }
+
+        int size = 0;
+        for (final EntityLock entityLock : entityLocks.values()) {
+            if (entityLock.isLocked()) {
+                size++;
+            }
+        }
+        return size;
     }
 
     /**
-     * @param entityId
-     * @return get {@link java.util.concurrent.locks.ReentrantLock} associated with entityId
+     * @return count of free locks which are retained in the table in affinity mode, it's zero if affinity mode is off
      */
-    private ReentrantLock getEntityLock(final T entityId) throws DeadlockPreventedException {
-        final ReentrantLock existingLock = existingLock(entityId);
+    public int retainedCount() {
+        if (affinityHandles == null) {
+            return 0;
+        }
+
+        int retained = 0;
+        for (final EntityLock entityLock : entityLocks.values()) {
+            if (!entityLock.isLocked()) {
+                retained++;
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * Weakly consistent introspection of held entities and global state which doesn't stop lockers
+     *
+     * @return snapshot, its entities are read while it's iterated
+     */
+    public LockTableSnapshot<T> snapshot() {
+        return new LockTableSnapshot<>(entityLocks, globalLock.owner(), sharedGlobalLock.getReadLockCount(),
+                escalatorDetector.escalatedThread(), escalatorDetector.totalLocks(), totalWaiters.get());
+    }
+
+    /**
+     * Callers can use it to shed load before waiting a hot entity
+     *
+     * @param entityId
+     * @return count of threads which wait specified entity at the moment
+     */
+    public int waitersCount(final T entityId) {
+        final EntityLock entityLock = entityLocks.get(entityId);
+        return entityLock == null ? 0 : entityLock.waiters();
+    }
+
+    /**
+     * @return count of threads which wait any entity at the moment
+     */
+    public int waitersCount() {
+        return totalWaiters.get();
+    }
+
+    /**
+     * Optimistic read of the entity without locking, it must be validated by {@link #validate(Object, long)}
+     * <p>
+     * Only reads the version of the entity, its lock and global lock, so readers of hot entities don't write shared memory
+     *
+     * @param entityId
+     * @return stamp of the entity or zero if the entity or global lock is held
+     */
+    public long tryOptimisticRead(final T entityId) {
+        final long stamp = entityVersions.stamp(entityId);
+        final EntityLock entityLock = entityLocks.get(entityId);
+
+        if (globalLock.isWriteLocked() || entityLock != null && entityLock.isLocked() || rangeLocks.covering(entityId) != null) {
+            return 0;
+        }
+        return stamp;
+    }
+
+    /**
+     * @param entityId
+     * @param stamp    - returned by {@link #tryOptimisticRead(Object)}
+     * @return true if the entity wasn't locked since the stamp was returned, otherwise read must be repeated under lock
+     */
+    public boolean validate(final T entityId, final long stamp) {
+        return stamp != 0 && entityVersions.validate(entityId, stamp);
+    }
+
+    /**
+     * While caller thread waits, other threads must be able to lock the entity and global lock,
+     * so besides the entity lock it releases read locks of nonGlobalLock, escalation counters and
+     * the entity in deadlock preventer, which were acquired for the entity
+     * <p>
+     * Waiting under global lock isn't allowed, because nobody can lock the entity to signal
+     */
+    @Override
+    public boolean awaitCondition(final T entityId, final long timeout, final TimeUnit unit)
+            throws InterruptedException, DeadlockPreventedException {
+        final EntityLock entityLock = heldLock(entityId);
+
+        if (globalLock.isWriteLockedByCurrentThread()) {
+            final String message = Thread.currentThread() + " cannot wait condition of entity {" + entityId + "} under global lock";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+
+        final int holdCount = entityLock.getHoldCount();
+        releaseHolds(entityId, holdCount);
+        entityLock.startConditionWaiting();
+
+        logDebugCurrentThread("waiting condition of entity {}", entityId);
+        boolean isSignalled = false;
+        boolean isInterrupted = false;
+        try {
+            isSignalled = entityLock.condition().await(timeout, unit);
+        } catch (InterruptedException e) {
+            //The entity lock is already held again, so restore holds before throwing
+            isInterrupted = true;
+            Thread.currentThread().interrupt();
+        }
+
+        entityLock.stopConditionWaiting();
+        restoreHolds(entityId, entityLock, holdCount);
+
+        if (isInterrupted && Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        logDebugCurrentThread("stop waiting condition of entity {" + entityId + "}, signalled " + isSignalled);
+        return isSignalled;
+    }
+
+    @Override
+    public void signal(final T entityId) {
+        heldLock(entityId).signal(false);
+    }
+
+    @Override
+    public void signalAll(final T entityId) {
+        heldLock(entityId).signal(true);
+    }
+
+    /**
+     * Transfer all holds of specified entity to target thread without unlocking, after that only target thread
+     * can unlock the entity. Caller thread must pass the entity to target thread with happens-before relation,
+     * e.g. through an executor or a concurrent queue
+     * <p>
+     * Caller thread releases its read locks of nonGlobalLock, escalation counters and the entity in deadlock preventer,
+     * target thread adopts them on its next call of this locker or other locker of its gate, e.g. {@link #unlock(Object)}.
+     * Until that the entity holds a read lock of {@link #transferLock}
+     *
+     * @param entityId
+     * @param targetThread
+     * @return false if the entity cannot be transferred now because other thread acquires global lock,
+     * caller thread still holds the entity in this case
+     * @throws {@link java.lang.IllegalMonitorStateException} if caller thread doesn't hold the entity or holds global lock
+     */
+    public boolean transfer(final T entityId, final Thread targetThread) {
+        final EntityLock entityLock = heldLock(entityId);
+
+        if (targetThread == Thread.currentThread()) {
+            return true;
+        }
+
+        if (globalLock.isWriteLockedByCurrentThread()) {
+            final String message = Thread.currentThread() + " cannot transfer entity {" + entityId + "} under global lock";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+
+        if (!transferLock.asReadLock().tryLock()) {
+            logDebugCurrentThread("other thread acquires global lock, cannot transfer entity {}", entityId);
+            return false;
+        }
+
+        final int holdCount = entityLock.getHoldCount();
+        releaseHolds(entityId, holdCount);
+        heldEntities.get().remove(entityId);
+
+        //Transfer must be visible before the target becomes an owner, otherwise it could unlock the entity without adoption
+        transfers.compute(targetThread, (thread, entities) -> {
+            final List<Transfer<?>> targetEntities = entities == null ? new ArrayList<>() : entities;
+            targetEntities.add(new Transfer<>(this, entityId, holdCount));
+            return targetEntities;
+        });
+        entityLock.transferTo(targetThread);
+
+        logDebugCurrentThread("transfer entity {" + entityId + "} to " + targetThread);
+        return true;
+    }
+
+    /**
+     * @param entityId
+     * @return true if caller thread holds the entity itself, global lock isn't taken into account
+     */
+    private boolean isHeldByCurrentThread(final T entityId) {
+        final EntityLock entityLock = entityLocks.get(entityId);
+
+        return entityLock != null && entityLock.isHeldByCurrentThread();
+    }
+
+    /**
+     * Steps to acquire non global lock
+     * When we call non global locking
+     * firstly, we need lock global read lock to prevent parallel global locking
+     * <p>
+     * if we have a thread which locked any entity before global lock we pass it
+     * because we need to wait other threads executions.
+     * If we will have a deadlock situation we have 2 cases here:
+     * If fail thread was a global lock - we cancel global locking
+     * otherwise user who try to lock an entity which locked by global lock should be unlocked
+     *
+     * @param entityId
+     * @param lockFunction
+     * @return
+     * @throws DeadlockPreventedException
+     */
+    private boolean lock(final T entityId, final BooleanReturnFunction<Lock> lockFunction) throws DeadlockPreventedException {
+        return lock(entityId, lockFunction, waitingLock());
+    }
+
+    /**
+     * @param entityId
+     * @param lockFunction
+     * @param escalationFunction - waits global lock if the entity causes escalation
+     * @return
+     * @throws DeadlockPreventedException
+     */
+    private boolean lock(final T entityId, final BooleanReturnFunction<Lock> lockFunction,
+                         final BooleanReturnFunction<Lock> escalationFunction) throws DeadlockPreventedException {
+        logDebugCurrentThread("try gain lock for entity {}", entityId);
+        adoptTransferredEntities();
+        deadlockPreventer.beforeLockRequest(entityId);
+
+        logDebugCurrentThread("check global lock");
+
+        if (!lockNonGlobalRead(lockFunction)) {
+            return false;
+        }
+
+        EntityLock entityLock;
+        boolean isLockGranted;
+        while (true) {
+            entityLock = existingLock(entityId);
+
+            //Deadlock check is done only after failed attempt, otherwise the lock can be acquired by other thread
+            //between the check and waiting, and we would wait without the check
+            isLockGranted = entityLock.tryLock() || waitEntityLock(entityId, entityLock, lockFunction);
+
+            if (!isLockGranted || isActualLock(entityId, entityLock)) {
+                break;
+            }
+
+            //Previous owner removed this lock in unlock() method and other thread already created a new one
+            logDebugCurrentThread("lock for entity {} was replaced, retry", entityId);
+            entityLock.unlock();
+        }
+
+        if (isLockGranted && entityLock.getHoldCount() == 1) {
+            final RangeLocks.Range<T> range = rangeOfOtherThread(entityId);
+            if (range != null) {
+                logDebugCurrentThread("entity {} belongs to range " + range, entityId);
+                removeIfNoConditionWaiters(entityId, entityLock);
+                entityLock.unlock();
+                nonGlobalLock.readLock().unlock();
+                deadlockPreventer.afterLocking(entityId, false);
+
+                return waitRange(range, lockFunction, "entity {" + entityId + "}") && lock(entityId, lockFunction, escalationFunction);
+            }
+        }
+
+        if (isLockGranted) {
+            logDebugCurrentThread("gain lock for entity {}", entityId);
+            if (entityLock.getHoldCount() == 1) {
+                entityVersions.invalidate(entityId);
+                heldEntities.get().put(entityId, entityLock);
+            }
+        } else {
+            logDebugCurrentThread("cannot gain lock for entity {}", entityId);
+            nonGlobalLock.readLock().unlock();
+        }
+
+        afterLocking(entityId, isLockGranted, escalationFunction);
+
+        return isLockGranted;
+    }
+
+    /**
+     * Range is reserved first, so new lockers of its entities wait it, and then it waits entities locked before
+     *
+     * @param from
+     * @param to
+     * @param lockFunction
+     * @param escalationFunction
+     * @return
+     * @throws DeadlockPreventedException
+     */
+    private boolean lockRange(final T from, final T to, final BooleanReturnFunction<Lock> lockFunction,
+                              final BooleanReturnFunction<Lock> escalationFunction) throws DeadlockPreventedException {
+        rangeLocks.checkBounds(from, to);
+        logDebugCurrentThread("try gain lock for range {" + from + ", " + to + "}");
+        adoptTransferredEntities();
+
+        RangeLocks.Range<T> range;
+        while (true) {
+            if (!lockNonGlobalRead(lockFunction)) {
+                return false;
+            }
+
+            try {
+                range = rangeLocks.reserve(from, to);
+            } catch (IllegalArgumentException e) {
+                nonGlobalLock.readLock().unlock();
+                throw e;
+            }
+
+            if (range.owner == Thread.currentThread()) {
+                break;
+            }
+
+            nonGlobalLock.readLock().unlock();
+            if (!waitRange(range, lockFunction, "range {" + from + ", " + to + "}")) {
+                return false;
+            }
+        }
+
+        if (range.isFirstHold()) {
+            final boolean isDrained;
+            try {
+                isDrained = drainRange(range, lockFunction);
+            } catch (DeadlockPreventedException e) {
+                rangeLocks.release(range);
+                nonGlobalLock.readLock().unlock();
+                throw e;
+            }
+
+            if (!isDrained) {
+                logDebugCurrentThread("cannot gain lock for range " + range);
+                rangeLocks.release(range);
+                nonGlobalLock.readLock().unlock();
+                return false;
+            }
+            entityVersions.invalidateAll();
+        }
+
+        logDebugCurrentThread("gain lock for range " + range);
+        callEscalationIfNeeds(true, escalationFunction);
+        return true;
+    }
+
+    /**
+     * Wait entities of the range which other threads locked before it was reserved, they are waited one by one
+     * and deadlock preventer checks it as waiting of the entity
+     * <p>
+     * Entities are found by one scan of the lock table, so the first hold of a range takes time of all entities
+     * of the table, including retained locks of affinity mode. Point locking doesn't keep an ordered index for it,
+     * because ids of a locker without ranges needn't be comparable
+     *
+     * @param range
+     * @param lockFunction
+     * @return false if waiting was failed
+     * @throws DeadlockPreventedException
+     */
+    private boolean drainRange(final RangeLocks.Range<T> range, final BooleanReturnFunction<Lock> lockFunction)
+            throws DeadlockPreventedException {
+        for (final Map.Entry<T, EntityLock> entry : entityLocks.entrySet()) {
+            final T entityId = entry.getKey();
+            final EntityLock entityLock = entry.getValue();
+
+            if (!rangeLocks.contains(range, entityId) || !entityLock.isLocked() || entityLock.isHeldByCurrentThread()) {
+                continue;
+            }
 
-        if (existingLock.isLocked() && !existingLock.isHeldByCurrentThread()) {
             deadlockPreventer.beforeLocking(entityId);
+            logDebugCurrentThread("range waits entity {}", entityId);
+            final boolean isLocked = lockFunction.apply(entityLock);
+            deadlockPreventer.afterLocking(entityId, false);
+
+            if (!isLocked) {
+                return false;
+            }
+            entityLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Thread which holds entities cannot wait a range, because owner of the range can wait its entities
+     * and deadlock preventer doesn't see such cycle
+     *
+     * @param range        - range of other thread
+     * @param lockFunction
+     * @param request      - what caller thread locks, for exception message
+     * @return false if waiting was failed
+     * @throws DeadlockPreventedException if caller thread holds entities
+     */
+    private boolean waitRange(final RangeLocks.Range<T> range, final BooleanReturnFunction<Lock> lockFunction,
+                              final String request) throws DeadlockPreventedException {
+        final Thread currentThread = Thread.currentThread();
+
+        if (escalatorDetector.currentThreadLockedEntities() > 0) {
+            final String message = "Thread {" + currentThread + "} unable to lock " + request + " due case of deadlock." +
+                    " Range pending by {" + range.owner + "}";
+            throw new DeadlockPreventedException(message, currentThread, range.owner);
+        }
+
+        logDebugCurrentThread("waiting range " + range);
+        if (!lockFunction.apply(range.lock)) {
+            return false;
         }
 
-        return existingLock;
+        range.lock.unlock();
+        return true;
     }
 
     /**
-     * Restore all read locks which was unlocked due lock promotion
+     * @param entityId
+     * @return range of other thread which contains the entity or null
      */
-    private void restoreReadLock() {
-        nonGlobalReadLockEvaluator(Lock::lock);
+    private RangeLocks.Range<T> rangeOfOtherThread(final T entityId) {
+        final RangeLocks.Range<T> range = rangeLocks.covering(entityId);
+        return range == null || range.owner == Thread.currentThread() ? null : range;
     }
 
     /**
-     * Unlock all read lock from thread for promotion it to global lock
+     * Acquire a read lock of nonGlobalLock, if caller thread doesn't hold entities global lock is waited before it
+     *
+     * @param lockFunction
+     * @return false if waiting of global lock was failed
      */
-    private void unlockReadLock() {
-        globalLocks = escalatorDetector.currentThreadLockedEntities();
-        nonGlobalReadLockEvaluator(Lock::unlock);
+    private boolean lockNonGlobalRead(final BooleanReturnFunction<Lock> lockFunction) {
+        if (escalatorDetector.currentThreadLockedEntities() > 0) {
+            nonGlobalLock.readLock().lock();
+            return true;
+        }
+
+        while (true) {
+            if (!lockFunction.apply(globalLock.readLock())) {
+                return false;
+            }
+
+            //Here we lock both to guaranteed that no one else will locked global write lock
+            nonGlobalLock.readLock().lock();
+            globalLock.readLock().unlock();
+
+            //The read lock is acquired before the check, so shared global thread either waits it or is seen here
+            if (sharedGlobalLock.getReadLockCount() == 0) {
+                return true;
+            }
+
+            nonGlobalLock.readLock().unlock();
+            if (sharedGlobalLock.getReadHoldCount() > 0) {
+                final String message = Thread.currentThread() + " cannot lock entities under shared global lock";
+                logError(message);
+                throw new IllegalMonitorStateException(message);
+            }
+
+            logDebugCurrentThread("waiting shared global unlock");
+            if (!lockFunction.apply(sharedGlobalLock.writeLock())) {
+                return false;
+            }
+            sharedGlobalLock.writeLock().unlock();
+        }
     }
 
     /**
-     * Helper function to exclude boilerplate code
+     * Reentrant shared global lock doesn't wait anything. The outer one waits adoption of all transferred entities
+     * and completion of other threads, but it doesn't hold their locks, so other shared global threads can do the same
      *
+     * @param lockFunction
+     * @return false if waiting was failed
+     */
+    private boolean globalSharedLock(final BooleanReturnFunction<Lock> lockFunction) {
+        adoptTransferredEntities();
+        if (escalatorDetector.currentThreadLockedEntities() > 0 || globalLock.isWriteLockedByCurrentThread()) {
+            final String message = Thread.currentThread() + " cannot acquire shared global lock while it holds entities or global lock";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+
+        logDebugCurrentThread("waiting shared global lock");
+        if (!lockFunction.apply(sharedGlobalLock.readLock())) {
+            return false;
+        }
+
+        if (sharedGlobalLock.getReadHoldCount() == 1) {
+            logDebugCurrentThread("waiting other threads completion for acquiring shared global lock");
+            if (!lockFunction.apply(transferLock.asWriteLock())) {
+                sharedGlobalLock.readLock().unlock();
+                return false;
+            }
+
+            final boolean isCompleted = lockFunction.apply(nonGlobalLock.writeLock());
+            transferLock.asWriteLock().unlock();
+            if (!isCompleted) {
+                sharedGlobalLock.readLock().unlock();
+                return false;
+            }
+            nonGlobalLock.writeLock().unlock();
+        }
+
+        logDebugCurrentThread("acquire shared global lock");
+        return true;
+    }
+
+    /**
+     * Steps to acquire global lock
+     * When we call global locking
+     * Firstly, we need to check deadlock
+     * Secondly - try to acquire global write lock - if it's succeed then try promote read lock from non global lock
+     * to write lock and after that we have fully granted global lock
+     *
+     * @param lockFunction
      * @return
+     * @throws DeadlockPreventedException
      */
-    private BooleanReturnFunction<Lock> waitingLock() {
-        return lock -> {
-            lock.lock();
+    private boolean globalLock(final BooleanReturnFunction<Lock> lockFunction) throws DeadlockPreventedException {
+        if (sharedGlobalLock.getReadHoldCount() > 0) {
+            final String message = Thread.currentThread() + " cannot acquire global lock under shared global lock";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+
+        adoptTransferredEntities();
+        deadlockPreventer.beforeGlobalLocking();
+
+        logDebugCurrentThread("waiting global lock");
+        if (!lockFunction.apply(globalLock.writeLock())) {
+            deadlockPreventer.afterGlobalLocking(false);
+            return false;
+        }
+
+        if (globalLock.getWriteHoldCount() == 1 && !lockSharedGlobalWrite(lockFunction)) {
+            cancelGlobalLock();
+            return false;
+        }
+
+        unlockReadLock();
+
+        logDebugCurrentThread("waiting other threads completion for acquiring global lock");
+        final boolean isLockGranted = lockNonGlobal(lockFunction);
+
+        restoreReadLock();
+
+        if (isLockGranted) {
+            logDebugCurrentThread("acquire global lock");
+            if (globalLock.getWriteHoldCount() == 1) {
+                gate.invalidateAll();
+            }
+        } else {
+            cancelGlobalLock();
+        }
+        return isLockGranted;
+    }
+
+    /**
+     * Release global write lock if other threads weren't completed, so other threads can lock entities again
+     */
+    private void cancelGlobalLock() {
+        logDebugCurrentThread("cancel global lock");
+        deadlockPreventer.afterGlobalLocking(false);
+        if (globalLock.getWriteHoldCount() == 1 && sharedGlobalLock.isWriteLockedByCurrentThread()) {
+            sharedGlobalLock.writeLock().unlock();
+        }
+        globalLock.writeLock().unlock();
+    }
+
+    /**
+     * Wait until all shared global threads leave. If caller thread holds entities, the first shared global thread
+     * can wait them, so caller thread doesn't wait and the global lock is prevented
+     *
+     * @param lockFunction
+     * @return true if write lock of sharedGlobalLock is acquired
+     * @throws DeadlockPreventedException if caller thread holds entities and shared global lock is held
+     */
+    private boolean lockSharedGlobalWrite(final BooleanReturnFunction<Lock> lockFunction) throws DeadlockPreventedException {
+        if (escalatorDetector.currentThreadLockedEntities() == 0) {
+            return lockFunction.apply(sharedGlobalLock.writeLock());
+        }
+
+        if (sharedGlobalLock.writeLock().tryLock()) {
+            return true;
+        }
+
+        cancelGlobalLock();
+        final Thread currentThread = Thread.currentThread();
+        final String message = currentThread + " holds entities, so it cannot wait shared global lock for global locking";
+        throw new DeadlockPreventedException(message, currentThread, null);
+    }
+
+    /**
+     * Wait adoption of all transferred entities and then completion of other threads
+     * Transferred entities are waited only by outer global lock, because {@link StampedLock} isn't reentrant
+     *
+     * @param lockFunction
+     * @return true if write lock of nonGlobalLock is acquired
+     */
+    private boolean lockNonGlobal(final BooleanReturnFunction<Lock> lockFunction) {
+        final boolean isOuterGlobalLock = globalLock.getWriteHoldCount() == 1;
+        if (isOuterGlobalLock && !lockFunction.apply(transferLock.asWriteLock())) {
+            return false;
+        }
+
+        if (lockFunction.apply(nonGlobalLock.writeLock())) {
             return true;
-        };
+        }
+
+        if (isOuterGlobalLock) {
+            transferLock.asWriteLock().unlock();
+        }
+        return false;
+    }
+
+    /**
+     * Take holds of entities which were transferred to caller thread as if caller thread locked them itself.
+     * Entities of all lockers of the gate are adopted, each of them by its own locker, otherwise global lock
+     * of one locker would wait transfers which only other locker adopts
+     */
+    private void adoptTransferredEntities() {
+        if (transfers.isEmpty()) {
+            return;
+        }
+
+        final List<Transfer<?>> adopted = transfers.remove(Thread.currentThread());
+        if (adopted == null) {
+            return;
+        }
+
+        for (final Transfer<?> transfer : adopted) {
+            transfer.adopt();
+        }
+    }
+
+    /**
+     * Read lock of nonGlobalLock can't be blocked here: global thread doesn't lock it while the transfer holds
+     * a read lock of {@link #transferLock}
+     *
+     * @param transfer - transfer of an entity of this locker
+     */
+    private void adopt(final Transfer<T> transfer) {
+        for (int i = 0; i < transfer.holdCount; ++i) {
+            nonGlobalLock.readLock().lock();
+        }
+        transferLock.asReadLock().unlock();
+
+        escalatorDetector.adoptThreadEntities(transfer.holdCount);
+        deadlockPreventer.afterLocking(transfer.entityId, true);
+        heldEntities.get().put(transfer.entityId, entityLocks.get(transfer.entityId));
+        logDebugCurrentThread("adopt transferred entity {}", transfer.entityId);
+    }
+
+    /**
+     * Waiting was failed, caller thread can be interrupted by deadlock preventer which chose it as a victim,
+     * such interruption is replaced by {@link DeadlockPreventedException}, other interruptions are kept
+     *
+     * @throws DeadlockPreventedException if caller thread was chosen as a victim of deadlock
+     */
+    private void throwIfVictim() throws DeadlockPreventedException {
+        if (deadlockPreventer.isCurrentThreadVictim()) {
+            Thread.interrupted();
+            deadlockPreventer.throwIfVictim();
+        }
+    }
+
+
+    /**
+     * Add locked entity to deadlock preventer and check does the thread needs escalation
+     */
+    private void afterLocking(final T entityId, final boolean isLockGranted,
+                              final BooleanReturnFunction<Lock> escalationFunction) throws DeadlockPreventedException {
+        deadlockPreventer.afterLocking(entityId, isLockGranted);
+        callEscalationIfNeeds(isLockGranted, escalationFunction);
+    }
+
+    /**
+     * If some thread locks to many entities promote it lock to global lock
+     * Timed locking promotes until its deadline, if it's elapsed the entity is held anyway
+     * and escalation will be tried again on next locking
+     *
+     * @param isLockGranted
+     * @param escalationFunction
+     * @throws DeadlockPreventedException
+     */
+    private void callEscalationIfNeeds(final boolean isLockGranted,
+                                       final BooleanReturnFunction<Lock> escalationFunction) throws DeadlockPreventedException {
+        if (isLockGranted && escalatorDetector.incThreadEntityCounter()) {
+            logDebugCurrentThread("start promotion to global lock due escalation");
+            if (!globalLock(escalationFunction)) {
+                logDebugCurrentThread("cannot promote to global lock before deadline");
+                escalatorDetector.cancelEscalation();
+            }
+        }
+    }
+
+    /**
+     * Check waiter limits and deadlock and wait entity lock which is held by other thread
+     *
+     * @param entityId
+     * @param entityLock
+     * @param lockFunction
+     * @return
+     * @throws DeadlockPreventedException
+     * @throws LockRejectedException if waiter limits are exceeded
+     */
+    private boolean waitEntityLock(final T entityId, final EntityLock entityLock,
+                                   final BooleanReturnFunction<Lock> lockFunction) throws DeadlockPreventedException {
+        startWaiting(entityId, entityLock);
+        try {
+            try {
+                deadlockPreventer.beforeLocking(entityId);
+            } catch (DeadlockPreventedException e) {
+                nonGlobalLock.readLock().unlock();
+                throw e;
+            }
+
+            logDebugCurrentThread("waiting lock for entity {}", entityId);
+            return lockFunction.apply(entityLock);
+        } finally {
+            entityLock.stopWaiting();
+            totalWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Count caller thread as a waiter of the entity if it doesn't exceed {@link #waiterLimits}
+     *
+     * @param entityId
+     * @param entityLock
+     * @throws LockRejectedException if caller thread isn't admitted, read lock of nonGlobalLock is released in this case
+     */
+    private void startWaiting(final T entityId, final EntityLock entityLock) {
+        final int entityWaiters = entityLock.startWaiting();
+        final int waiters = totalWaiters.incrementAndGet();
+
+        if (waiterLimits.isAdmitted(entityWaiters, waiters)) {
+            return;
+        }
+
+        entityLock.stopWaiting();
+        totalWaiters.decrementAndGet();
+        nonGlobalLock.readLock().unlock();
+
+        final String message = Thread.currentThread() + " isn't admitted to wait entity {" + entityId + "}, waiters of entity " +
+                entityWaiters + ", total waiters " + waiters;
+        throw new LockRejectedException(message, entityWaiters, waiters);
+    }
+
+    /**
+     * We can get a lock which other thread can remove in {@link #unlock(Object)} method,
+     * so after acquiring we put it back if there is no other lock for this entity
+     *
+     * @param entityId
+     * @param entityLock - acquired lock
+     * @return true if entityLock is associated with entityId
+     */
+    private boolean isActualLock(final T entityId, final EntityLock entityLock) {
+        final EntityLock actualLock = entityLocks.putIfAbsent(entityId, entityLock);
+        return actualLock == null || actualLock == entityLock;
+    }
+
+    /**
+     * Called by the owner before the last unlock, in affinity mode the lock is retained for caller thread
+     *
+     * @param entityId
+     * @param entityLock
+     */
+    private void releaseLastHold(final T entityId, final EntityLock entityLock) {
+        if (affinityHandles == null) {
+            removeIfNoConditionWaiters(entityId, entityLock);
+            return;
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        if (entityLock.affinity() == currentThread) {
+            return;
+        }
+
+        final AffinityHandles<T> handles = affinityHandles.get();
+        final int slot = handles.next;
+        final T evictedId = handles.entityIds.get(slot);
+        final EntityLock evictedLock = handles.locks[slot];
+
+        handles.entityIds.set(slot, entityId);
+        handles.locks[slot] = entityLock;
+        handles.next = (slot + 1) % AFFINITY_HANDLES;
+
+        if (evictedLock != null && evictedLock != entityLock) {
+            evict(evictedId, evictedLock, currentThread);
+        }
+
+        logDebugCurrentThread("retain lock of entity {}", entityId);
+        entityLock.setAffinity(currentThread);
+    }
+
+    /**
+     * Ring of caller thread, rings of terminated threads are evicted before it's created
+     *
+     * @return
+     */
+    private AffinityHandles<T> newAffinityHandles() {
+        for (final AffinityHandles<T> handles : affinityOwners) {
+            //Termination of the owner happens-before isAlive returns false, so its ring is visible here
+            if (handles.owner.isAlive() || !affinityOwners.remove(handles)) {
+                continue;
+            }
+
+            for (int slot = 0; slot < AFFINITY_HANDLES; ++slot) {
+                if (handles.locks[slot] != null) {
+                    evict(handles.entityIds.get(slot), handles.locks[slot], handles.owner);
+                }
+            }
+        }
+
+        final AffinityHandles<T> handles = new AffinityHandles<>(Thread.currentThread());
+        affinityOwners.add(handles);
+        return handles;
+    }
+
+    /**
+     * Remove a retained lock from the table, it's done under the lock as in {@link #removeIfNoConditionWaiters(Object, EntityLock)}.
+     * If other thread holds the entity, its affinity moves to that thread on its last unlock
+     *
+     * @param entityId
+     * @param entityLock
+     * @param owner      - thread whose ring retained the lock, it's caller thread or a terminated thread
+     */
+    private void evict(final T entityId, final EntityLock entityLock, final Thread owner) {
+        if (entityLock.isHeldByCurrentThread()) {
+            //Caller thread retains it again on its last unlock
+            entityLock.setAffinity(null);
+            return;
+        }
+
+        if (!entityLock.tryLock()) {
+            return;
+        }
+
+        if (entityLock.affinity() == owner) {
+            logDebugCurrentThread("evict retained lock of entity {}", entityId);
+            entityLock.setAffinity(null);
+            removeIfNoConditionWaiters(entityId, entityLock);
+        }
+        entityLock.unlock();
+    }
+
+    /**
+     * Called by the owner before the last unlock
+     * If there are threads which wait condition of the entity we keep the lock, they will reacquire it
+     *
+     * @param entityId
+     * @param entityLock
+     */
+    private void removeIfNoConditionWaiters(final T entityId, final EntityLock entityLock) {
+        if (entityLock.hasConditionWaiters()) {
+            logDebugCurrentThread("It's last lock for entity {} but it has condition waiters", entityId);
+            return;
+        }
+
+        logDebugCurrentThread("It's last lock for entity {} removing it", entityId);
+        entityLocks.remove(entityId, entityLock);
+    }
+
+    /**
+     * @param entityId
+     * @return lock of entity held by caller thread
+     * @throws IllegalMonitorStateException if caller thread doesn't hold the entity
+     */
+    private EntityLock heldLock(final T entityId) {
+        adoptTransferredEntities();
+
+        final EntityLock entityLock = entityLocks.get(entityId);
+
+        if (entityLock == null || !entityLock.isHeldByCurrentThread()) {
+            final String message = Thread.currentThread() + " doesn't hold entity {" + entityId + "}";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+
+        return entityLock;
+    }
+
+    /**
+     * Release everything which was acquired for holdCount locks of the entity except the entity lock itself,
+     * it's released by the condition or transferred to other thread
+     *
+     * @param entityId
+     * @param holdCount
+     */
+    private void releaseHolds(final T entityId, final int holdCount) {
+        deadlockPreventer.beforeUnlocking(entityId);
+
+        for (int i = 0; i < holdCount; ++i) {
+            nonGlobalLock.readLock().unlock();
+            escalatorDetector.decThreadEntityCounter();
+        }
+    }
+
+    /**
+     * Restore holds released by {@link #releaseHolds(Object, int)} after the condition reacquired the entity lock
+     * <p>
+     * If other thread holds global lock, it can wait this entity, so we can't wait read lock while we hold
+     * the entity. In this case or if the entity belongs to a range of other thread the entity is released
+     * and locked again in usual way
+     *
+     * @param entityId
+     * @param entityLock
+     * @param holdCount
+     * @throws DeadlockPreventedException if the entity cannot be locked again
+     */
+    private void restoreHolds(final T entityId, final EntityLock entityLock, final int holdCount) throws DeadlockPreventedException {
+        if (rangeOfOtherThread(entityId) == null && tryRestoreReadLock()) {
+            for (int i = 1; i < holdCount; ++i) {
+                nonGlobalLock.readLock().lock();
+            }
+
+            //The entity was released during waiting, so it can be changed again
+            entityVersions.invalidate(entityId);
+            afterLocking(entityId, true, waitingLock());
+            for (int i = 1; i < holdCount; ++i) {
+                callEscalationIfNeeds(true, waitingLock());
+            }
+            return;
+        }
+
+        logDebugCurrentThread("global lock is held by other thread, lock entity {} again", entityId);
+        heldEntities.get().remove(entityId);
+        removeIfNoConditionWaiters(entityId, entityLock);
+        for (int i = 0; i < holdCount; ++i) {
+            entityLock.unlock();
+        }
+
+        for (int i = 0; i < holdCount; ++i) {
+            lock(entityId);
+        }
+    }
+
+    /**
+     * Same as the beginning of {@link #lock(Object, BooleanReturnFunction)} but without waiting
+     *
+     * @return true if a read lock of nonGlobalLock is acquired
+     */
+    private boolean tryRestoreReadLock() {
+        if (escalatorDetector.currentThreadLockedEntities() > 0) {
+            //Caller thread holds other entities, so global lock cannot be held by other thread
+            nonGlobalLock.readLock().lock();
+            return true;
+        }
+
+        if (!globalLock.readLock().tryLock()) {
+            return false;
+        }
+
+        final boolean isLocked = nonGlobalLock.readLock().tryLock();
+        globalLock.readLock().unlock();
+        if (isLocked && sharedGlobalLock.getReadLockCount() > 0) {
+            nonGlobalLock.readLock().unlock();
+            return false;
+        }
+        return isLocked;
+    }
+
+    /**
+     * Restore all read locks which was unlocked due lock promotion
+     */
+    private void restoreReadLock() {
+        nonGlobalReadLockEvaluator(Lock::lock);
+    }
+
+    /**
+     * Unlock all read lock from thread for promotion it to global lock
+     */
+    private void unlockReadLock() {
+        globalLocks = escalatorDetector.currentThreadLockedEntities();
+        nonGlobalReadLockEvaluator(Lock::unlock);
     }
 
     /**
@@ -368,10 +1561,61 @@ public class MultiEntityLocker<T> implements EntityLocker<T> {
 
 
     /**
+     * Existing lock is got without computeIfAbsent, because its mapping function captures this locker and allocates
+     *
      * @param entityId
-     * @return existing lock for entityId if there is no one create new {@link java.util.concurrent.locks.ReentrantLock}
+     * @return existing lock for entityId if there is no one create new {@link EntityLock}
+     * or {@link AdaptiveSpinLock} if adaptive spinning enabled
      */
-    private ReentrantLock existingLock(final T entityId) {
-        return entityLocks.computeIfAbsent(entityId, t -> new ReentrantLock());
+    private EntityLock existingLock(final T entityId) {
+        final EntityLock entityLock = entityLocks.get(entityId);
+        if (entityLock != null) {
+            return entityLock;
+        }
+        return entityLocks.computeIfAbsent(entityId, t -> adaptiveSpinning ? new AdaptiveSpinLock() : new EntityLock());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Comparator<? super T> naturalOrder() {
+        return (Comparator) Comparator.naturalOrder();
+    }
+
+    /**
+     * Ring of entities retained by one thread in affinity mode, only this thread uses it until it's terminated
+     *
+     * @param <T>
+     */
+    private static final class AffinityHandles<T> {
+        private final Thread owner;
+        private final List<T> entityIds;
+        private final EntityLock[] locks;
+        private int next;
+
+        private AffinityHandles(final Thread owner) {
+            this.owner = owner;
+            this.entityIds = new ArrayList<>(Collections.nCopies(AFFINITY_HANDLES, null));
+            this.locks = new EntityLock[AFFINITY_HANDLES];
+        }
+    }
+
+    /**
+     * Entity transferred by its locker, the locker adopts it in the target thread
+     *
+     * @param <T>
+     */
+    static final class Transfer<T> {
+        private final MultiEntityLocker<T> locker;
+        private final T entityId;
+        private final int holdCount;
+
+        private Transfer(final MultiEntityLocker<T> locker, final T entityId, final int holdCount) {
+            this.locker = locker;
+            this.entityId = entityId;
+            this.holdCount = holdCount;
+        }
+
+        private void adopt() {
+            locker.adopt(this);
+        }
     }
 }
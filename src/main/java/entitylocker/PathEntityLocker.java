@@ -0,0 +1,746 @@
+package entitylocker;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import utils.counter.Counter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static log.utils.LogUtils.logDebugCurrentThread;
+import static log.utils.LogUtils.logError;
+
+/**
+ * Entity locker for tree-shaped ids, such as "tenant/project/document". Lock of a node locks all nodes beneath it,
+ * so it conflicts with locks of its ancestors and descendants held by other threads, but not with siblings.
+ * <p>
+ * Every node keeps an intention counter of locks held beneath it. Locking takes an intention on each ancestor
+ * from the root down and then the node itself, so a conflict is checked in O(depth) without scanning descendants.
+ * Intention isn't compatible only with a lock of the node held by other thread.
+ * <p>
+ * Nodes exist while they are held, have intentions or waiters, threads wait them on their monitors.
+ * Deadlocks are prevented by wait-die rule as in {@link CompactEntityLocker}. Intentions don't have one owner,
+ * so thread which holds entities doesn't wait intentions of other threads, it's aborted instead.
+ * <p>
+ * This entity locker doesn't support null entities
+ */
+public class PathEntityLocker implements EntityLocker<String> {
+    private final char separator;
+    private final Map<String, Node> nodes;
+
+    private final EscalatorDetector escalatorDetector;
+    private final ReentrantLock globalMutex;
+    private final ReentrantReadWriteLock gateLock;
+
+    /**
+     * Transactions of threads which hold entities, waiter finds here the timestamp of the owner
+     */
+    private final Map<Thread, Transaction> transactions;
+    private final ThreadLocal<Transaction> currentTransaction;
+    private volatile Thread globalThread;
+
+    public PathEntityLocker() {
+        this('/');
+    }
+
+    public PathEntityLocker(final char separator) {
+        this(separator, 100);
+    }
+
+    /**
+     * @param separator            - separator of path segments
+     * @param minLocksBeforeGlobal
+     */
+    public PathEntityLocker(final char separator, final int minLocksBeforeGlobal) {
+        this.separator = separator;
+        this.nodes = new ConcurrentHashMap<>();
+        this.escalatorDetector = new EscalatorDetector(minLocksBeforeGlobal);
+        this.globalMutex = new ReentrantLock();
+        this.gateLock = new ReentrantReadWriteLock();
+        this.transactions = new ConcurrentHashMap<>();
+        this.currentTransaction = ThreadLocal.withInitial(() -> new Transaction(Thread.currentThread()));
+    }
+
+    @Override
+    public void lock(final String entityId) throws DeadlockPreventedException {
+        lock(entityId, true, false, 0);
+    }
+
+    @Override
+    public boolean tryLock(final String entityId) throws DeadlockPreventedException {
+        return lock(entityId, false, false, 0);
+    }
+
+    @Override
+    public boolean tryLock(final String entityId, final long timeout, final TimeUnit unit) throws DeadlockPreventedException {
+        final long nanos = unit.toNanos(timeout);
+        return lock(entityId, true, isTimed(nanos), System.nanoTime() + nanos);
+    }
+
+    @Override
+    public void unlock(final String entityId) {
+        final Thread currentThread = Thread.currentThread();
+        final Node node = nodes.get(entityId);
+        boolean isLastHold = false;
+
+        if (node != null) {
+            synchronized (node) {
+                if (node.owner != null && node.owner != currentThread) {
+                    final String message = currentThread + " cannot unlock entity - {" + entityId + "} because it's hold by other thread";
+                    logError(message);
+                    throw new IllegalAccessError(message);
+                }
+
+                if (node.owner != null) {
+                    isLastHold = --node.holds == 0;
+                    if (isLastHold) {
+                        logDebugCurrentThread("It's last lock for entity {} removing it", entityId);
+                        node.owner = null;
+                        wakeUp(node);
+                        removeIfUnused(entityId, node);
+                    }
+                } else {
+                    throwNoLocks(entityId);
+                }
+            }
+        } else {
+            throwNoLocks(entityId);
+        }
+
+        if (isLastHold) {
+            final String[] ancestors = ancestors(entityId);
+            final Transaction transaction = currentTransaction.get();
+            for (int i = ancestors.length - 1; i >= 0; i--) {
+                releaseIntention(ancestors[i], transaction);
+            }
+        }
+
+        final boolean isNeedDeescalation = escalatorDetector.decThreadEntityCounter();
+        if (escalatorDetector.currentThreadLockedEntities() == 0) {
+            leaveGate();
+        }
+
+        if (isNeedDeescalation) {
+            logDebugCurrentThread("deescalate global lock");
+            globalUnlock();
+        }
+    }
+
+    /**
+     * @param entityId
+     * @return true if caller thread holds the node, one of its ancestors or global lock
+     */
+    @Override
+    public boolean isLockedByCurrentThread(final String entityId) {
+        final Thread currentThread = Thread.currentThread();
+
+        if (ownerOf(entityId) == currentThread) {
+            return true;
+        }
+
+        for (int i = entityId.lastIndexOf(separator); i >= 0; i = entityId.lastIndexOf(separator, i - 1)) {
+            if (ownerOf(entityId.substring(0, i)) == currentThread) {
+                return true;
+            }
+        }
+
+        return gateLock.isWriteLockedByCurrentThread();
+    }
+
+    @Override
+    public void globalLock() throws DeadlockPreventedException {
+        globalLock(true, false, 0);
+    }
+
+    @Override
+    public boolean tryGlobalLock() throws DeadlockPreventedException {
+        return globalLock(false, false, 0);
+    }
+
+    @Override
+    public boolean tryGlobalLock(final long timeout, final TimeUnit unit) throws DeadlockPreventedException {
+        final long nanos = unit.toNanos(timeout);
+        return globalLock(true, isTimed(nanos), System.nanoTime() + nanos);
+    }
+
+    @Override
+    public void globalUnlock() {
+        logDebugCurrentThread("release global lock");
+        if (gateLock.getWriteHoldCount() == 1) {
+            globalThread = null;
+        }
+        escalatorDetector.cancelEscalation();
+        gateLock.writeLock().unlock();
+        globalMutex.unlock();
+    }
+
+    /**
+     * @return count of held nodes, nodes which have only intentions aren't counted
+     */
+    @Override
+    public int currentSize() {
+        int size = 0;
+        for (final Node node : nodes.values()) {
+            synchronized (node) {
+                if (node.owner != null) {
+                    size++;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @param entityId
+     * @param isWaiting - false for tryLock without timeout
+     * @param isTimed
+     * @param deadline  - {@link System#nanoTime()} when timed waiting fails
+     * @return
+     * @throws DeadlockPreventedException
+     */
+    private boolean lock(final String entityId, final boolean isWaiting, final boolean isTimed, final long deadline)
+            throws DeadlockPreventedException {
+        logDebugCurrentThread("try gain lock for entity {}", entityId);
+
+        final Transaction transaction = currentTransaction.get();
+        final boolean isFirstEntity = escalatorDetector.currentThreadLockedEntities() == 0;
+
+        if (isFirstEntity) {
+            if (!enterGate(isWaiting, isTimed, deadline)) {
+                return false;
+            }
+            transaction.begin();
+            transactions.put(transaction.thread, transaction);
+        }
+
+        boolean isLockGranted = false;
+        try {
+            isLockGranted = lockAgain(entityId, transaction) || lockPath(entityId, transaction, isWaiting, isTimed, deadline);
+        } finally {
+            if (!isLockGranted && isFirstEntity) {
+                leaveGate();
+            }
+        }
+
+        if (!isLockGranted) {
+            logDebugCurrentThread("cannot gain lock for entity {}", entityId);
+            return false;
+        }
+
+        logDebugCurrentThread("gain lock for entity {}", entityId);
+        if (escalatorDetector.incThreadEntityCounter()) {
+            logDebugCurrentThread("start promotion to global lock due escalation");
+            globalLock();
+        }
+        return true;
+    }
+
+    /**
+     * Reentrant locking doesn't take intentions again, they are released with the last hold
+     *
+     * @param entityId
+     * @param transaction
+     * @return true if caller thread already held the node
+     */
+    private boolean lockAgain(final String entityId, final Transaction transaction) {
+        final Node node = nodes.get(entityId);
+        if (node == null) {
+            return false;
+        }
+
+        synchronized (node) {
+            if (node.owner != transaction.thread) {
+                return false;
+            }
+            node.holds++;
+            return true;
+        }
+    }
+
+    /**
+     * Take intentions on ancestors from the root down and then the node, intentions are released if it fails
+     */
+    private boolean lockPath(final String entityId, final Transaction transaction, final boolean isWaiting,
+                             final boolean isTimed, final long deadline) throws DeadlockPreventedException {
+        final String[] ancestors = ancestors(entityId);
+        int intentions = 0;
+        boolean isLocked = false;
+
+        try {
+            for (; intentions < ancestors.length; intentions++) {
+                if (!acquire(ancestors[intentions], transaction, true, isWaiting, isTimed, deadline)) {
+                    return false;
+                }
+            }
+
+            isLocked = acquire(entityId, transaction, false, isWaiting, isTimed, deadline);
+            return isLocked;
+        } finally {
+            if (!isLocked) {
+                for (int i = intentions - 1; i >= 0; i--) {
+                    releaseIntention(ancestors[i], transaction);
+                }
+            }
+        }
+    }
+
+    /**
+     * Node can be removed between getting and locking its monitor, in this case it's got again
+     *
+     * @param path
+     * @param transaction
+     * @param isIntention - intention on an ancestor or lock of the node
+     * @param isWaiting
+     * @param isTimed
+     * @param deadline
+     * @return
+     * @throws DeadlockPreventedException
+     */
+    private boolean acquire(final String path, final Transaction transaction, final boolean isIntention,
+                            final boolean isWaiting, final boolean isTimed, final long deadline)
+            throws DeadlockPreventedException {
+        while (true) {
+            final Node node = nodes.computeIfAbsent(path, p -> new Node());
+
+            synchronized (node) {
+                if (!node.isRemoved) {
+                    return acquire(path, node, transaction, isIntention, isWaiting, isTimed, deadline);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called under the monitor of the node
+     */
+    private boolean acquire(final String path, final Node node, final Transaction transaction, final boolean isIntention,
+                            final boolean isWaiting, final boolean isTimed, final long deadline)
+            throws DeadlockPreventedException {
+        final Thread currentThread = transaction.thread;
+        boolean isAcquired = false;
+        boolean isInterrupted = false;
+
+        try {
+            while (true) {
+                final Thread owner = node.owner;
+
+                if (isIntention && (owner == null || owner == currentThread)) {
+                    node.intentions++;
+                    transaction.addIntention(path);
+                    isAcquired = true;
+                    return true;
+                }
+
+                //Own intentions are compatible, so caller thread can lock an ancestor of its nodes
+                if (!isIntention && owner == null && node.intentions == transaction.intentions(path)) {
+                    node.owner = currentThread;
+                    node.holds = 1;
+                    isAcquired = true;
+                    return true;
+                }
+
+                final long remaining = deadline - System.nanoTime();
+                if (!isWaiting || isTimed && remaining <= 0) {
+                    return false;
+                }
+
+                //Register before reading global thread, global locking does it in reverse order
+                transaction.waitedPath = path;
+                if (owner != null) {
+                    checkWaitDie(path, transaction, owner);
+                } else {
+                    checkIntentions(path, transaction);
+                }
+                logDebugCurrentThread("waiting lock for entity {}", path);
+
+                node.waiters++;
+                try {
+                    if (isTimed) {
+                        TimeUnit.NANOSECONDS.timedWait(node, remaining);
+                    } else {
+                        node.wait();
+                    }
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                    if (isTimed) {
+                        return false;
+                    }
+                } finally {
+                    node.waiters--;
+                }
+            }
+        } finally {
+            transaction.waitedPath = null;
+            if (!isAcquired) {
+                removeIfUnused(path, node);
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void releaseIntention(final String path, final Transaction transaction) {
+        final Node node = nodes.get(path);
+
+        synchronized (node) {
+            node.intentions--;
+            transaction.removeIntention(path);
+            wakeUp(node);
+            removeIfUnused(path, node);
+        }
+    }
+
+    /**
+     * Called under the monitor of the node
+     */
+    private static void wakeUp(final Node node) {
+        if (node.waiters > 0) {
+            node.notifyAll();
+        }
+    }
+
+    /**
+     * Called under the monitor of the node, removed node is never used again
+     */
+    private void removeIfUnused(final String path, final Node node) {
+        if (node.owner == null && node.intentions == 0 && node.waiters == 0 && !node.isRemoved) {
+            node.isRemoved = true;
+            nodes.remove(path, node);
+        }
+    }
+
+    /**
+     * Thread which doesn't hold entities can't close a cycle, so it always waits,
+     * except the case when the owner is a global thread which waits all threads with entities
+     *
+     * @param entityId
+     * @param transaction
+     * @param owner
+     * @throws DeadlockPreventedException if caller thread is younger than the owner
+     */
+    private void checkWaitDie(final String entityId, final Transaction transaction, final Thread owner)
+            throws DeadlockPreventedException {
+        if (owner != globalThread) {
+            if (escalatorDetector.currentThreadLockedEntities() == 0) {
+                return;
+            }
+
+            final Transaction ownerTransaction = transactions.get(owner);
+            if (ownerTransaction == null || transaction.isOlderThan(ownerTransaction)) {
+                return;
+            }
+        }
+
+        transaction.keepTimestamp = true;
+        throw new DeadlockPreventedException(deadlockPreventedMessage(transaction.thread, entityId, owner),
+                transaction.thread, owner);
+    }
+
+    /**
+     * Intentions can belong to any thread, so only a thread without entities waits them and only if
+     * there is no global thread which can hold them
+     *
+     * @param entityId
+     * @param transaction
+     * @throws DeadlockPreventedException if caller thread holds entities or other thread acquires global lock
+     */
+    private void checkIntentions(final String entityId, final Transaction transaction) throws DeadlockPreventedException {
+        final Thread currentGlobalThread = globalThread;
+        if (escalatorDetector.currentThreadLockedEntities() == 0 &&
+                (currentGlobalThread == null || currentGlobalThread == transaction.thread)) {
+            return;
+        }
+
+        transaction.keepTimestamp = true;
+        throw new DeadlockPreventedException(deadlockPreventedMessage(transaction.thread, entityId, null),
+                transaction.thread, null);
+    }
+
+    /**
+     * Steps to acquire global lock
+     * Firstly, check that no thread with entities requested it and no one waits entities of caller thread
+     * Secondly, acquire global mutex, so there is one thread which waits the gate
+     * After that release read lock of caller thread and wait write lock of the gate
+     *
+     * @param isWaiting
+     * @param isTimed
+     * @param deadline
+     * @return
+     * @throws DeadlockPreventedException
+     */
+    private boolean globalLock(final boolean isWaiting, final boolean isTimed, final long deadline)
+            throws DeadlockPreventedException {
+        final Thread currentThread = Thread.currentThread();
+        final boolean holdsEntities = escalatorDetector.currentThreadLockedEntities() > 0;
+        final boolean isNewGlobal = beforeGlobalLocking(currentThread, holdsEntities);
+
+        logDebugCurrentThread("waiting global lock");
+        if (!tryLock(globalMutex, isWaiting, isTimed, deadline)) {
+            cancelGlobalThread(isNewGlobal);
+            return false;
+        }
+
+        if (holdsEntities) {
+            gateLock.readLock().unlock();
+        }
+
+        logDebugCurrentThread("waiting other threads completion for acquiring global lock");
+        final boolean isLockGranted = tryLock(gateLock.writeLock(), isWaiting, isTimed, deadline);
+
+        if (holdsEntities) {
+            gateLock.readLock().lock();
+        }
+
+        if (!isLockGranted) {
+            globalMutex.unlock();
+            cancelGlobalThread(isNewGlobal);
+            return false;
+        }
+
+        logDebugCurrentThread("acquire global lock");
+        return true;
+    }
+
+    /**
+     * Waiter of a node is blocked by caller thread if caller thread holds the node or has intentions on it
+     *
+     * @param currentThread
+     * @param holdsEntities
+     * @return true if caller thread became global thread
+     * @throws DeadlockPreventedException
+     */
+    private boolean beforeGlobalLocking(final Thread currentThread, final boolean holdsEntities)
+            throws DeadlockPreventedException {
+        final boolean isNewGlobal;
+
+        synchronized (this) {
+            if (globalThread != null && globalThread != currentThread && holdsEntities) {
+                final Thread lockerThread = globalThread;
+                throw new DeadlockPreventedException(globalDeadlockPreventedMessage(currentThread, lockerThread),
+                        currentThread, lockerThread);
+            }
+
+            isNewGlobal = globalThread == null;
+            if (isNewGlobal) {
+                globalThread = currentThread;
+            }
+        }
+
+        if (!holdsEntities) {
+            return isNewGlobal;
+        }
+
+        //Global locking is rare, so here we iterate over all transactions
+        final Transaction current = currentTransaction.get();
+        for (final Transaction transaction : transactions.values()) {
+            final String waitedPath = transaction.waitedPath;
+
+            if (waitedPath != null && transaction.thread != currentThread &&
+                    (ownerOf(waitedPath) == currentThread || current.intentions(waitedPath) > 0)) {
+                cancelGlobalThread(isNewGlobal);
+                current.keepTimestamp = true;
+
+                throw new DeadlockPreventedException(globalDeadlockPreventedMessage(currentThread, transaction.thread),
+                        currentThread, transaction.thread);
+            }
+        }
+
+        return isNewGlobal;
+    }
+
+    private void cancelGlobalThread(final boolean isNewGlobal) {
+        if (isNewGlobal) {
+            globalThread = null;
+        }
+    }
+
+    /**
+     * Thread takes read lock of the gate once, when it locks the first entity
+     */
+    private boolean enterGate(final boolean isWaiting, final boolean isTimed, final long deadline) {
+        logDebugCurrentThread("check global lock");
+        return tryLock(gateLock.readLock(), isWaiting, isTimed, deadline);
+    }
+
+    private void leaveGate() {
+        transactions.remove(Thread.currentThread());
+        gateLock.readLock().unlock();
+    }
+
+    /**
+     * @param entityId
+     * @return ancestors of the path from the root down, e.g. "a" and "a/b" for "a/b/c"
+     */
+    private String[] ancestors(final String entityId) {
+        int count = 0;
+        for (int i = 0; i < entityId.length(); i++) {
+            if (entityId.charAt(i) == separator) {
+                count++;
+            }
+        }
+
+        final String[] ancestors = new String[count];
+        for (int i = 0, index = 0; index < count; i++) {
+            if (entityId.charAt(i) == separator) {
+                ancestors[index++] = entityId.substring(0, i);
+            }
+        }
+        return ancestors;
+    }
+
+    private Thread ownerOf(final String path) {
+        final Node node = nodes.get(path);
+        if (node == null) {
+            return null;
+        }
+
+        synchronized (node) {
+            return node.owner;
+        }
+    }
+
+    private static void throwNoLocks(final String entityId) {
+        final String message = "There is no locks for entity {" + entityId + "}";
+        logError(message);
+        throw new IllegalMonitorStateException(message);
+    }
+
+    /**
+     * Too long timeout would overflow the deadline, so such waiting isn't timed
+     */
+    private static boolean isTimed(final long nanos) {
+        return nanos < Long.MAX_VALUE >> 1;
+    }
+
+    /**
+     * Helper function to exclude boilerplate code
+     */
+    private static boolean tryLock(final Lock lock, final boolean isWaiting,
+                                   final boolean isTimed, final long deadline) {
+        if (!isWaiting) {
+            return lock.tryLock();
+        }
+
+        if (!isTimed) {
+            lock.lock();
+            return true;
+        }
+
+        try {
+            return lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Helper method to create exception message
+     * @param failThread
+     * @param entityId
+     * @param lockedThread - null if the entity is blocked by intentions of other threads
+     * @return
+     */
+    private static String deadlockPreventedMessage(final Thread failThread, final String entityId, final Thread lockedThread) {
+        return "Thread {" + failThread + "} unable to lock entity {" + entityId + "} due case of deadlock." +
+                (lockedThread == null ? " Entities beneath are pending by other threads" : " Entity pending by {" + lockedThread + "}");
+    }
+
+    /**
+     * Helper method to create exception message
+     * @param failThread
+     * @param lockedThread
+     * @return
+     */
+    private static String globalDeadlockPreventedMessage(final Thread failThread, final Thread lockedThread) {
+        return "Thread {" + failThread + "} unable to acquire global lock due case of deadlock." +
+                " Entity pending by {" + lockedThread + "}";
+    }
+
+    /**
+     * Lock and intentions of one path, it's guarded by its own monitor
+     */
+    private static final class Node {
+        private Thread owner;
+        private int holds;
+
+        /**
+         * Count of nodes beneath which are held by all threads
+         */
+        private int intentions;
+
+        /**
+         * Count of threads which wait on the monitor, release notifies them only if it isn't zero
+         */
+        private int waiters;
+
+        private boolean isRemoved;
+    }
+
+    /**
+     * Per thread state for wait-die rule and own intentions, older transaction has smaller timestamp
+     */
+    private static final class Transaction {
+        private final Thread thread;
+        private volatile long timestamp;
+
+        /**
+         * Aborted thread keeps its timestamp for the next transaction, so it becomes the oldest and can't starve
+         */
+        private boolean keepTimestamp;
+        private volatile String waitedPath;
+
+        /**
+         * Intentions of this thread by path, they are compatible with its own lock of the path
+         */
+        private final Map<String, Counter> intentions;
+
+        private Transaction(final Thread thread) {
+            this.thread = thread;
+            this.intentions = new HashMap<>();
+        }
+
+        private void begin() {
+            if (keepTimestamp) {
+                keepTimestamp = false;
+            } else {
+                timestamp = System.nanoTime();
+            }
+        }
+
+        private int intentions(final String path) {
+            final Counter counter = intentions.get(path);
+            return counter == null ? 0 : counter.count();
+        }
+
+        private void addIntention(final String path) {
+            final Counter counter = intentions.get(path);
+            if (counter == null) {
+                intentions.put(path, new Counter());
+            } else {
+                counter.inc();
+            }
+        }
+
+        private void removeIntention(final String path) {
+            final Counter counter = intentions.get(path);
+            counter.dec();
+            if (counter.count() == 0) {
+                intentions.remove(path);
+            }
+        }
+
+        /**
+         * Equal timestamps are ordered by thread id
+         */
+        private boolean isOlderThan(final Transaction other) {
+            final long difference = timestamp - other.timestamp;
+            return difference < 0 || difference == 0 && thread.getId() < other.thread.getId();
+        }
+    }
+}
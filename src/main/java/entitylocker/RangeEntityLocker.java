@@ -0,0 +1,46 @@
+package entitylocker;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EntityLocker} which locks ranges of ordered entity ids by one hold
+ *
+ * @param <T>
+ */
+public interface RangeEntityLocker<T> extends EntityLocker<T> {
+    /**
+     * Lock all entities from one to other inclusive by one hold instead of locking each of them.
+     * The range conflicts with entities of the range and overlapping ranges held by other threads,
+     * but it doesn't block other entities as global lock does. Entity ids must be comparable
+     *
+     * @param from
+     * @param to
+     * @throws DeadlockPreventedException if locking the range will case of deadlock
+     * @throws IllegalArgumentException   if from is greater than to or caller thread holds other overlapping range
+     */
+    void lockRange(T from, T to) throws DeadlockPreventedException;
+
+    /**
+     * Same as {@link #lockRange(Object, Object)} with timeout
+     *
+     * @param from
+     * @param to
+     * @param timeout
+     * @param unit
+     * @return true if lock success and false otherwise
+     * @throws DeadlockPreventedException
+     */
+    boolean tryLockRange(T from, T to, long timeout, TimeUnit unit) throws DeadlockPreventedException;
+
+    /**
+     * Unlock the range with the same bounds
+     *
+     * @param from
+     * @param to
+     * @throws {@link java.lang.IllegalMonitorStateException} if the range isn't locked
+     * @throws {@link java.lang.IllegalAccessError} if the range is locked by other thread
+     */
+    void unlockRange(T from, T to);
+}
@@ -0,0 +1,160 @@
+package entitylocker;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ranges of entities held by threads, see {@link MultiEntityLocker#lockRange(Object, Object)}
+ * <p>
+ * Ranges of different threads never overlap, so they are kept in a skip list sorted by the lower bound
+ * and the only range which can contain an entity is the floor range of it. Lookups are lock-free,
+ * reservation and release are rare, so they use a monitor
+ *
+ * @param <T>
+ */
+class RangeLocks<T> {
+    private final ConcurrentSkipListMap<T, Range<T>> ranges;
+    private final Comparator<? super T> order;
+
+    RangeLocks(final Comparator<? super T> order) {
+        this.order = order;
+        this.ranges = new ConcurrentSkipListMap<>(order);
+    }
+
+    /**
+     * @param from
+     * @param to
+     * @throws IllegalArgumentException if from is greater than to
+     */
+    void checkBounds(final T from, final T to) {
+        if (order.compare(from, to) > 0) {
+            throw new IllegalArgumentException("Range {" + from + ", " + to + "} is empty");
+        }
+    }
+
+    /**
+     * Reserve the range for caller thread or return a range of other thread which overlaps it
+     *
+     * @param from
+     * @param to
+     * @return range of caller thread, which is held again if caller thread already holds it, or range of other thread
+     * @throws IllegalArgumentException if caller thread holds other range which overlaps this one
+     */
+    synchronized Range<T> reserve(final T from, final T to) {
+        final Thread currentThread = Thread.currentThread();
+        final Map.Entry<T, Range<T>> floor = ranges.floorEntry(to);
+
+        if (floor == null || order.compare(floor.getValue().to, from) < 0) {
+            final Range<T> range = new Range<>(from, to, currentThread);
+            ranges.put(from, range);
+            return range;
+        }
+
+        final Range<T> range = floor.getValue();
+        if (range.owner != currentThread) {
+            return range;
+        }
+
+        if (order.compare(range.from, from) != 0 || order.compare(range.to, to) != 0) {
+            throw new IllegalArgumentException(currentThread + " cannot lock range {" + from + ", " + to +
+                    "} which overlaps its range {" + range.from + ", " + range.to + "}");
+        }
+
+        range.holdCount++;
+        return range;
+    }
+
+    /**
+     * Release one hold of the range, the last hold removes it and wakes up its waiters
+     *
+     * @param range - range held by caller thread
+     * @return true if it was the last hold
+     */
+    boolean release(final Range<T> range) {
+        synchronized (this) {
+            if (--range.holdCount > 0) {
+                return false;
+            }
+            ranges.remove(range.from, range);
+        }
+
+        range.lock.unlock();
+        return true;
+    }
+
+    /**
+     * @param from
+     * @param to
+     * @return range with exactly these bounds or null
+     */
+    Range<T> get(final T from, final T to) {
+        final Range<T> range = ranges.get(from);
+        return range == null || order.compare(range.to, to) != 0 ? null : range;
+    }
+
+    /**
+     * Doesn't allocate, so it can be called on every locking
+     *
+     * @param entityId
+     * @return range which contains the entity or null
+     */
+    Range<T> covering(final T entityId) {
+        if (ranges.isEmpty()) {
+            return null;
+        }
+
+        final T from = ranges.floorKey(entityId);
+        if (from == null) {
+            return null;
+        }
+
+        final Range<T> range = ranges.get(from);
+        return range == null || order.compare(entityId, range.to) > 0 ? null : range;
+    }
+
+    /**
+     * @param range
+     * @param entityId
+     * @return true if the range contains the entity
+     */
+    boolean contains(final Range<T> range, final T entityId) {
+        return order.compare(range.from, entityId) <= 0 && order.compare(entityId, range.to) <= 0;
+    }
+
+    /**
+     * Range is held by its owner thread, other threads wait its lock which is held until the last release
+     *
+     * @param <T>
+     */
+    static final class Range<T> {
+        final T from;
+        final T to;
+        final Thread owner;
+        final ReentrantLock lock;
+
+        /**
+         * Changed only by the owner under the monitor of {@link RangeLocks}
+         */
+        private int holdCount;
+
+        private Range(final T from, final T to, final Thread owner) {
+            this.from = from;
+            this.to = to;
+            this.owner = owner;
+            this.holdCount = 1;
+            this.lock = new ReentrantLock();
+            this.lock.lock();
+        }
+
+        boolean isFirstHold() {
+            return holdCount == 1;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + from + ", " + to + "} of " + owner;
+        }
+    }
+}
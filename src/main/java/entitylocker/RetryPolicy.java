@@ -0,0 +1,53 @@
+package entitylocker;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries of {@link LockTransaction} aborted by {@link deadlockpreventer.exceptions.DeadlockPreventedException}
+ * <p>
+ * Backoff grows twice on every retry from min to max backoff and the actual sleep is chosen randomly up to it,
+ * so threads of the same deadlock don't retry at the same moment and don't meet again
+ */
+public class RetryPolicy {
+    public static final RetryPolicy NO_RETRIES = new RetryPolicy(0, 0, 0, TimeUnit.NANOSECONDS);
+
+    private final int maxRetries;
+    private final long minBackoffNanos;
+    private final long maxBackoffNanos;
+
+    /**
+     * @param maxRetries - retries after the first attempt, exception of the last attempt is thrown to the caller
+     * @param minBackoff - backoff before the first retry
+     * @param maxBackoff - backoff doesn't grow more than it
+     * @param unit
+     */
+    public RetryPolicy(final int maxRetries, final long minBackoff, final long maxBackoff, final TimeUnit unit) {
+        if (maxRetries < 0 || minBackoff < 0 || maxBackoff < minBackoff) {
+            throw new IllegalArgumentException("Invalid retry policy: " + maxRetries + " retries, backoff from " +
+                    minBackoff + " to " + maxBackoff + " " + unit);
+        }
+
+        this.maxRetries = maxRetries;
+        this.minBackoffNanos = unit.toNanos(minBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+    }
+
+    public int maxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param retry - number of the retry starting from 1
+     * @return random backoff before the retry
+     */
+    long backoffNanos(final int retry) {
+        long bound = minBackoffNanos;
+        for (int i = 1; i < retry && bound < maxBackoffNanos; ++i) {
+            bound <<= 1;
+        }
+        bound = Math.min(bound, maxBackoffNanos);
+
+        return bound == 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+}
@@ -0,0 +1,476 @@
+package entitylocker;
+
+import deadlockpreventer.DeadlockPreventer;
+import deadlockpreventer.ShardedDeadlockPreventer;
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import utils.counter.Counter;
+import utils.function.BooleanReturnFunction;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static entitylocker.LockFunctions.deadlineTryLockFunction;
+import static entitylocker.LockFunctions.interruptibleLock;
+import static entitylocker.LockFunctions.waitingLock;
+import static log.utils.LogUtils.logDebugCurrentThread;
+import static log.utils.LogUtils.logError;
+
+/**
+ * Entity locker which routes each entity to one of N independent partitions by hash
+ * <p>
+ * Every partition has its own entity locks, {@link DeadlockPreventer} and {@link EscalatorDetector},
+ * so threads which work with entities of different partitions don't touch the same memory.
+ * Cross partition deadlocks are prevented by {@link ShardedDeadlockPreventer} which is used only on contended path.
+ * <p>
+ * Global lock can't be built on one {@link java.util.concurrent.locks.ReentrantReadWriteLock} as in {@link MultiEntityLocker}
+ * because every locking would change its shared state. Instead of it every thread marks itself in a striped indicator
+ * when it locks the first entity and unmarks when it unlocks the last one:
+ * <p>
+ * Global thread acquires {@link #globalMutex}, closes the gate and waits until all indicators are zero
+ * Thread which doesn't hold entities marks itself and only then checks the gate,
+ * if the gate is closed it unmarks itself and waits {@link #globalMutex}
+ * Thread which holds entities passes the gate as in {@link MultiEntityLocker} because global thread waits it anyway
+ * <p>
+ * Escalation is detected per partition but escalates to the global lock of the whole locker
+ * <p>
+ * This entity locker doesn't support null entities
+ *
+ * @param <T>
+ */
+public class ShardedEntityLocker<T> implements InterruptibleEntityLocker<T> {
+    /**
+     * Indicators are padded to different cache lines
+     */
+    private static final int INDICATOR_PADDING = 16;
+
+    /**
+     * Global thread rechecks indicators with this period if wake up was lost
+     */
+    private static final long DRAIN_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Partition<T>[] partitions;
+    private final ShardedDeadlockPreventer<T> deadlockPreventer;
+    private final boolean adaptiveSpinning;
+
+    private final ReentrantLock globalMutex;
+    private final AtomicIntegerArray indicators;
+    private final int stripes;
+    private final ThreadLocal<Counter> heldEntities;
+    private volatile boolean isGateClosed;
+    private volatile Thread drainWaiter;
+
+    public ShardedEntityLocker() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public ShardedEntityLocker(final int partitionsCount) {
+        this(partitionsCount, 100);
+    }
+
+    public ShardedEntityLocker(final int partitionsCount, final int minLocksBeforeGlobal) {
+        this(partitionsCount, minLocksBeforeGlobal, false);
+    }
+
+    /**
+     * @param partitionsCount      - count of independent partitions
+     * @param minLocksBeforeGlobal - escalation threshold of each partition
+     * @param adaptiveSpinning     - see {@link AdaptiveSpinLock}
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedEntityLocker(final int partitionsCount, final int minLocksBeforeGlobal, final boolean adaptiveSpinning) {
+        if (partitionsCount <= 0) {
+            throw new IllegalArgumentException("Partitions count must be positive but was " + partitionsCount);
+        }
+
+        this.partitions = new Partition[partitionsCount];
+        for (int i = 0; i < partitionsCount; i++) {
+            partitions[i] = new Partition<>(minLocksBeforeGlobal);
+        }
+        this.deadlockPreventer = new ShardedDeadlockPreventer<>(entityId -> partition(entityId).deadlockPreventer);
+        this.adaptiveSpinning = adaptiveSpinning;
+        this.globalMutex = new ReentrantLock();
+        this.stripes = partitionsCount;
+        this.indicators = new AtomicIntegerArray(partitionsCount * INDICATOR_PADDING);
+        this.heldEntities = ThreadLocal.withInitial(() -> {
+            final Counter counter = new Counter();
+            counter.dec();
+            return counter;
+        });
+    }
+
+    @Override
+    public void lock(final T entityId) throws DeadlockPreventedException {
+        lock(entityId, waitingLock(), false, 0);
+    }
+
+    @Override
+    public void lockInterruptibly(final T entityId) throws InterruptedException, DeadlockPreventedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        if (!lock(entityId, interruptibleLock(), false, 0)) {
+            Thread.interrupted();
+            throw new InterruptedException();
+        }
+    }
+
+    @Override
+    public boolean tryLock(final T entityId) throws DeadlockPreventedException {
+        return lock(entityId, Lock::tryLock, false, 0);
+    }
+
+    /**
+     * The gate, the entity and escalation caused by it are waited until one deadline
+     */
+    @Override
+    public boolean tryLock(final T entityId, final long timeout, final TimeUnit unit) throws DeadlockPreventedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return lock(entityId, deadlineTryLockFunction(deadline), true, deadline);
+    }
+
+    @Override
+    public void unlock(final T entityId) {
+        final Partition<T> partition = partition(entityId);
+        final EntityLock entityLock = partition.entityLocks.get(entityId);
+
+        if (entityLock == null) {
+            final String message = "There is no locks for entity {" + entityId + "}";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+
+        if (!entityLock.isHeldByCurrentThread()) {
+            final String message = Thread.currentThread() + " cannot unlock entity - {" + entityId + "} because it's hold by other thread";
+            logError(message);
+            throw new IllegalAccessError(message);
+        }
+
+        if (entityLock.getHoldCount() == 1) {
+            logDebugCurrentThread("It's last lock for entity {" + entityId + "} removing it");
+            partition.deadlockPreventer.beforeUnlocking(entityId);
+            partition.entityLocks.remove(entityId, entityLock);
+        }
+
+        entityLock.unlock();
+
+        final Counter held = heldEntities.get();
+        held.dec();
+        if (held.count() == 0) {
+            leaveGate();
+        }
+
+        if (partition.escalatorDetector.decThreadEntityCounter()) {
+            logDebugCurrentThread("deescalate global lock");
+            globalUnlock();
+        }
+    }
+
+    @Override
+    public boolean isLockedByCurrentThread(final T entityId) {
+        final EntityLock entityLock = partition(entityId).entityLocks.get(entityId);
+
+        return entityLock != null && entityLock.isHeldByCurrentThread() || globalMutex.isHeldByCurrentThread();
+    }
+
+    @Override
+    public void globalLock() throws DeadlockPreventedException {
+        globalLock(waitingLock(), false, 0, false);
+    }
+
+    @Override
+    public void globalLockInterruptibly() throws InterruptedException, DeadlockPreventedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        if (!globalLock(interruptibleLock(), false, 0, true)) {
+            Thread.interrupted();
+            throw new InterruptedException();
+        }
+    }
+
+    @Override
+    public boolean tryGlobalLock() throws DeadlockPreventedException {
+        return globalLock(Lock::tryLock, true, System.nanoTime(), false);
+    }
+
+    @Override
+    public boolean tryGlobalLock(final long timeout, final TimeUnit unit) throws DeadlockPreventedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return globalLock(deadlineTryLockFunction(deadline), true, deadline, false);
+    }
+
+    @Override
+    public void globalUnlock() {
+        logDebugCurrentThread("release global lock");
+        if (globalMutex.getHoldCount() == 1) {
+            openGate();
+        }
+        globalMutex.unlock();
+    }
+
+    @Override
+    public int currentSize() {
+        int size = 0;
+        for (final Partition<T> partition : partitions) {
+            size += partition.entityLocks.size();
+        }
+        return size;
+    }
+
+    /**
+     * Timed escalation waits other threads until the deadline, if it's elapsed the entity is held anyway
+     * and escalation will be tried again on next locking
+     *
+     * @param entityId
+     * @param lockFunction
+     * @param isTimed      - false if escalation waits without timeout
+     * @param deadline     - {@link System#nanoTime()} when escalation waiting should be stopped
+     * @return
+     * @throws DeadlockPreventedException
+     * @see MultiEntityLocker for explanation of steps
+     */
+    private boolean lock(final T entityId, final BooleanReturnFunction<Lock> lockFunction, final boolean isTimed,
+                         final long deadline) throws DeadlockPreventedException {
+        logDebugCurrentThread("try gain lock for entity {" + entityId + "}");
+
+        final Counter held = heldEntities.get();
+        if (held.count() == 0 && !enterGate(lockFunction)) {
+            return false;
+        }
+
+        final Partition<T> partition = partition(entityId);
+
+        EntityLock entityLock;
+        boolean isLockGranted;
+        while (true) {
+            entityLock = partition.entityLocks.computeIfAbsent(entityId,
+                    t -> adaptiveSpinning ? new AdaptiveSpinLock() : new EntityLock());
+
+            //Deadlock check is done only after failed attempt, otherwise the lock can be acquired by other thread
+            //between the check and waiting, and we would wait without the check
+            final boolean isContended = !entityLock.tryLock();
+            if (isContended) {
+                try {
+                    deadlockPreventer.beforeLocking(entityId);
+                } catch (DeadlockPreventedException e) {
+                    if (held.count() == 0) {
+                        leaveGate();
+                    }
+                    throw e;
+                }
+                logDebugCurrentThread("waiting lock for entity {" + entityId + "}");
+            }
+
+            isLockGranted = !isContended || lockFunction.apply(entityLock);
+
+            if (isContended) {
+                deadlockPreventer.afterWaiting();
+            }
+
+            if (!isLockGranted || isActualLock(partition, entityId, entityLock)) {
+                break;
+            }
+
+            //Previous owner removed this lock in unlock() method and other thread already created a new one
+            entityLock.unlock();
+        }
+
+        if (!isLockGranted) {
+            logDebugCurrentThread("cannot gain lock for entity {" + entityId + "}");
+            if (held.count() == 0) {
+                leaveGate();
+            }
+            return false;
+        }
+
+        logDebugCurrentThread("gain lock for entity {" + entityId + "}");
+        held.inc();
+        partition.deadlockPreventer.afterLocking(entityId, true);
+
+        if (partition.escalatorDetector.incThreadEntityCounter()) {
+            logDebugCurrentThread("start promotion to global lock due escalation");
+            //Failed global locking opens the gate, which cancels escalation of all partitions
+            if (!globalLock(lockFunction, isTimed, deadline, false)) {
+                logDebugCurrentThread("cannot promote to global lock before deadline");
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Steps to acquire global lock
+     * Thread which holds entities can't wait global mutex because global thread waits its entities
+     * Then we check that nobody waits entities of caller thread, close the gate and wait all threads with entities
+     *
+     * @param lockFunction
+     * @param isTimed      - false if caller waits without timeout
+     * @param deadline        - {@link System#nanoTime()} when drain waiting should be stopped
+     * @param isInterruptible - drain waiting is stopped by interruption
+     * @return
+     * @throws DeadlockPreventedException
+     */
+    private boolean globalLock(final BooleanReturnFunction<Lock> lockFunction, final boolean isTimed, final long deadline,
+                               final boolean isInterruptible) throws DeadlockPreventedException {
+        if (globalMutex.isHeldByCurrentThread()) {
+            globalMutex.lock();
+            return true;
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        final boolean isHoldEntities = heldEntities.get().count() > 0;
+
+        logDebugCurrentThread("waiting global lock");
+        if (isHoldEntities) {
+            if (!globalMutex.tryLock()) {
+                final Thread globalThread = deadlockPreventer.globalThread();
+                final String message = ShardedDeadlockPreventer.globalDeadlockPreventedMessage(currentThread, globalThread);
+                throw new DeadlockPreventedException(message, currentThread, globalThread);
+            }
+        } else if (!lockFunction.apply(globalMutex)) {
+            return false;
+        }
+
+        try {
+            deadlockPreventer.beforeGlobalLocking();
+        } catch (DeadlockPreventedException e) {
+            globalMutex.unlock();
+            throw e;
+        }
+
+        logDebugCurrentThread("waiting other threads completion for acquiring global lock");
+        isGateClosed = true;
+        if (!awaitDrain(isHoldEntities ? 1 : 0, isTimed, deadline, isInterruptible)) {
+            openGate();
+            globalMutex.unlock();
+            return false;
+        }
+
+        logDebugCurrentThread("acquire global lock");
+        return true;
+    }
+
+    /**
+     * Mark caller thread in indicators if the gate is open otherwise wait global unlock
+     *
+     * @return false if global lock wasn't released while waiting
+     */
+    private boolean enterGate(final BooleanReturnFunction<Lock> lockFunction) {
+        final int index = indicatorIndex();
+        while (true) {
+            indicators.incrementAndGet(index);
+            if (!isGateClosed || globalMutex.isHeldByCurrentThread()) {
+                return true;
+            }
+
+            logDebugCurrentThread("waiting global unlock");
+            leaveGate();
+
+            if (!lockFunction.apply(globalMutex)) {
+                return false;
+            }
+            globalMutex.unlock();
+        }
+    }
+
+    /**
+     * Unmark caller thread and wake up global thread if it waits
+     */
+    private void leaveGate() {
+        indicators.decrementAndGet(indicatorIndex());
+
+        if (isGateClosed) {
+            final Thread waiter = drainWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    private void openGate() {
+        isGateClosed = false;
+        deadlockPreventer.beforeGlobalUnlocking();
+        for (final Partition<T> partition : partitions) {
+            partition.escalatorDetector.cancelEscalation();
+        }
+    }
+
+    /**
+     * @param ownIndicator - 1 if caller thread holds entities otherwise 0
+     * @param isTimed
+     * @param deadline
+     * @param isInterruptible
+     * @return true if all other threads unlocked their entities before deadline or interruption
+     */
+    private boolean awaitDrain(final int ownIndicator, final boolean isTimed, final long deadline, final boolean isInterruptible) {
+        drainWaiter = Thread.currentThread();
+        //Park returns immediately for interrupted thread, so we restore interruption only after waiting
+        boolean isInterrupted = false;
+        try {
+            while (activeThreads() > ownIndicator) {
+                final long remaining = isTimed ? deadline - System.nanoTime() : DRAIN_PARK_NANOS;
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, Math.min(remaining, DRAIN_PARK_NANOS));
+                isInterrupted |= Thread.interrupted();
+                if (isInterrupted && isInterruptible) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            drainWaiter = null;
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private int activeThreads() {
+        int active = 0;
+        for (int i = 0; i < stripes; i++) {
+            active += indicators.get(i * INDICATOR_PADDING);
+        }
+        return active;
+    }
+
+    private int indicatorIndex() {
+        return (int) (Thread.currentThread().getId() % stripes) * INDICATOR_PADDING;
+    }
+
+    /**
+     * @see MultiEntityLocker
+     */
+    private boolean isActualLock(final Partition<T> partition, final T entityId, final EntityLock entityLock) {
+        final EntityLock actualLock = partition.entityLocks.putIfAbsent(entityId, entityLock);
+        return actualLock == null || actualLock == entityLock;
+    }
+
+    private Partition<T> partition(final T entityId) {
+        final int hash = entityId.hashCode();
+        return partitions[Math.floorMod(hash ^ (hash >>> 16), partitions.length)];
+    }
+
+    /**
+     * Independent bookkeeping of a part of entities
+     */
+    private static class Partition<T> {
+        private final Map<T, EntityLock> entityLocks;
+        private final DeadlockPreventer<T> deadlockPreventer;
+        private final EscalatorDetector escalatorDetector;
+
+        private Partition(final int minLocksBeforeGlobal) {
+            this.entityLocks = new ConcurrentHashMap<>();
+            this.deadlockPreventer = new DeadlockPreventer<>();
+            this.escalatorDetector = new EscalatorDetector(minLocksBeforeGlobal);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package entitylocker;
+
+import deadlockpreventer.DeadlockPreventionStrategy;
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * View of a strategy which is shared by lockers of {@link EntityLockerRegistry}: entities are passed to it
+ * with their type, so equal ids of different types are different entities in one wait-for graph
+ * <p>
+ * A typed entity is a key object, so every callback needs one. The last key of every thread is reused,
+ * so reentrant locking doesn't allocate, first holds and waiting allocate one key which is kept by the strategy
+ * as long as the entity is held. {@link #beforeLockRequest(Object)} isn't passed at all, because only order based
+ * strategies need it and the registry rejects them
+ *
+ * @param <T>
+ */
+class TypedDeadlockPrevention<T> implements DeadlockPreventionStrategy<T> {
+    private final String type;
+    private final DeadlockPreventionStrategy<Object> deadlockPreventer;
+
+    /**
+     * Typed entity of the last callback of a thread
+     */
+    private final ThreadLocal<TypedEntity> lastEntity;
+
+    TypedDeadlockPrevention(final String type, final DeadlockPreventionStrategy<Object> deadlockPreventer) {
+        this.type = type;
+        this.deadlockPreventer = deadlockPreventer;
+        this.lastEntity = new ThreadLocal<>();
+    }
+
+    @Override
+    public void beforeLocking(final T entityId) throws DeadlockPreventedException {
+        deadlockPreventer.beforeLocking(typed(entityId));
+    }
+
+    @Override
+    public void afterLocking(final T entityId, final boolean isLocked) {
+        deadlockPreventer.afterLocking(typed(entityId), isLocked);
+    }
+
+    @Override
+    public void beforeUnlocking(final T entityId) {
+        deadlockPreventer.beforeUnlocking(typed(entityId));
+    }
+
+    @Override
+    public void beforeUnlockingAll(final Collection<T> entityIds) {
+        final List<Object> typedEntities = new ArrayList<>(entityIds.size());
+        for (final T entityId : entityIds) {
+            typedEntities.add(new TypedEntity(type, entityId));
+        }
+        deadlockPreventer.beforeUnlockingAll(typedEntities);
+    }
+
+    @Override
+    public void beforeGlobalLocking() throws DeadlockPreventedException {
+        deadlockPreventer.beforeGlobalLocking();
+    }
+
+    @Override
+    public void beforeGlobalUnlocking() {
+        deadlockPreventer.beforeGlobalUnlocking();
+    }
+
+    @Override
+    public void afterGlobalLocking(final boolean isLocked) {
+        deadlockPreventer.afterGlobalLocking(isLocked);
+    }
+
+    @Override
+    public boolean canAbortOtherThreads() {
+        return deadlockPreventer.canAbortOtherThreads();
+    }
+
+    @Override
+    public boolean isCurrentThreadVictim() {
+        return deadlockPreventer.isCurrentThreadVictim();
+    }
+
+    @Override
+    public void throwIfVictim() throws DeadlockPreventedException {
+        deadlockPreventer.throwIfVictim();
+    }
+
+    /**
+     * @param entityId
+     * @return typed entity of the last callback of caller thread if it's the same entity, otherwise a new one
+     */
+    private TypedEntity typed(final T entityId) {
+        final TypedEntity last = lastEntity.get();
+        if (last != null && last.entityId.equals(entityId)) {
+            return last;
+        }
+
+        final TypedEntity typedEntity = new TypedEntity(type, entityId);
+        lastEntity.set(typedEntity);
+        return typedEntity;
+    }
+
+    /**
+     * Entity id with the type of its locker
+     */
+    private static final class TypedEntity {
+        private final String type;
+        private final Object entityId;
+
+        private TypedEntity(final String type, final Object entityId) {
+            this.type = type;
+            this.entityId = entityId;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof TypedEntity)) {
+                return false;
+            }
+
+            final TypedEntity typedEntity = (TypedEntity) other;
+            return type.equals(typedEntity.type) && entityId.equals(typedEntity.entityId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + entityId.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return type + ":" + entityId;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package entitylocker;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+
+/**
+ * Access to {@link Unsafe} for lockers which need fences or atomic operations out of the heap,
+ * {@link java.lang.invoke.VarHandle} would be used instead of it since Java 9
+ */
+final class UnsafeAccess {
+    static final Unsafe UNSAFE = unsafe();
+
+    /**
+     * @throws java.lang.UnsupportedOperationException for reflection users
+     */
+    private UnsafeAccess() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static Unsafe unsafe() {
+        try {
+            final Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (Unsafe) field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package entitylocker;
+
+import entitylocker.exceptions.LockRejectedException;
+
+/**
+ * Limits of threads which wait entities of {@link MultiEntityLocker}, they prevent piling up of threads on a hot entity
+ * <p>
+ * Waiters are counted only after failed attempt to lock, so uncontended locking isn't limited and
+ * doesn't touch shared counters
+ */
+public class WaiterLimits {
+    public enum RejectionMode {
+        /**
+         * Locking methods throw {@link LockRejectedException}
+         */
+        FAIL_FAST,
+
+        /**
+         * Try lock methods return false as if timeout elapsed,
+         * {@link EntityLocker#lock(Object)} throws {@link LockRejectedException} because it can't return a result
+         */
+        TRY_LOCK_FALSE
+    }
+
+    public static final WaiterLimits UNBOUNDED = new WaiterLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, RejectionMode.FAIL_FAST);
+
+    private final int maxEntityWaiters;
+    private final int maxTotalWaiters;
+    private final RejectionMode rejectionMode;
+
+    /**
+     * @param maxEntityWaiters - max count of threads which wait one entity
+     * @param maxTotalWaiters  - max count of threads which wait any entity
+     * @param rejectionMode
+     */
+    public WaiterLimits(final int maxEntityWaiters, final int maxTotalWaiters, final RejectionMode rejectionMode) {
+        if (maxEntityWaiters < 0 || maxTotalWaiters < 0) {
+            throw new IllegalArgumentException("Waiter limits must be not negative: " + maxEntityWaiters + ", " + maxTotalWaiters);
+        }
+
+        this.maxEntityWaiters = maxEntityWaiters;
+        this.maxTotalWaiters = maxTotalWaiters;
+        this.rejectionMode = rejectionMode;
+    }
+
+    public int maxEntityWaiters() {
+        return maxEntityWaiters;
+    }
+
+    public int maxTotalWaiters() {
+        return maxTotalWaiters;
+    }
+
+    public RejectionMode rejectionMode() {
+        return rejectionMode;
+    }
+
+    /**
+     * @param entityWaiters - waiters of an entity including a new one
+     * @param totalWaiters  - waiters of all entities including a new one
+     * @return true if the new waiter is admitted
+     */
+    boolean isAdmitted(final int entityWaiters, final int totalWaiters) {
+        return entityWaiters <= maxEntityWaiters && totalWaiters <= maxTotalWaiters;
+    }
+}
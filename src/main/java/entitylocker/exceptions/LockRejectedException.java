@@ -0,0 +1,37 @@
+package entitylocker.exceptions;
+
+import static log.utils.LogUtils.logError;
+
+/**
+ * Thrown when a thread isn't admitted to wait an entity because of {@link entitylocker.WaiterLimits}
+ * <p>
+ * It's unchecked unlike {@link deadlockpreventer.exceptions.DeadlockPreventedException}, because limits are optional
+ * and a caller which doesn't set them never gets it
+ */
+public class LockRejectedException extends RuntimeException {
+    private final int entityWaiters;
+    private final int totalWaiters;
+
+    public LockRejectedException(String message, int entityWaiters, int totalWaiters) {
+        super(message);
+
+        logError(message);
+
+        this.entityWaiters = entityWaiters;
+        this.totalWaiters = totalWaiters;
+    }
+
+    /**
+     * @return waiters of the entity at the moment of rejection
+     */
+    public int entityWaiters() {
+        return entityWaiters;
+    }
+
+    /**
+     * @return waiters of all entities at the moment of rejection
+     */
+    public int totalWaiters() {
+        return totalWaiters;
+    }
+}
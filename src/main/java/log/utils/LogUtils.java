@@ -17,6 +17,13 @@ public class LogUtils {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * @return true if debug logging is enabled, lockers use it as debug mode with additional checks
+     */
+    public static boolean isDebugEnabled() {
+        return log.isDebugEnabled();
+    }
+
     public static void logDebug(final Object message) {
         if (log.isDebugEnabled()) {
             log.debug(message);
@@ -29,6 +36,18 @@ public class LogUtils {
         }
     }
 
+    /**
+     * Message is built only if debug is enabled, so hot paths don't allocate it
+     *
+     * @param message  - "{}" is replaced by the argument in braces
+     * @param argument
+     */
+    public static void logDebugCurrentThread(final String message, final Object argument) {
+        if (log.isDebugEnabled()) {
+            log.debug(Thread.currentThread() + " " + message.replace("{}", "{" + argument + "}"));
+        }
+    }
+
     public static void logError(final Object message) {
         if (log.isDebugEnabled()) {
             log.error(message);
@@ -0,0 +1,93 @@
+package benchmarks;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.EntityLocker;
+import entitylocker.MultiEntityLocker;
+
+import java.util.concurrent.CountDownLatch;
+
+import static benchmarks.BenchmarkUtils.*;
+
+/**
+ * Compares acquisition latency of contended short protected code with and without adaptive spinning
+ * <p>
+ * Run: java -cp target/classes:target/test-classes:&lt;log4j jar&gt; benchmarks.AdaptiveSpinBenchmark [threads] [entities] [operations]
+ */
+public class AdaptiveSpinBenchmark {
+    private static final int WARMUP_ROUNDS = 2;
+
+    public static void main(String[] args) throws InterruptedException {
+        disableLogging();
+
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int entities = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        final int operations = args.length > 2 ? Integer.parseInt(args[2]) : 200_000;
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            run(new MultiEntityLocker<>(), threads, entities, operations);
+            run(new MultiEntityLocker<>(100, true), threads, entities, operations);
+        }
+
+        System.out.println("threads=" + threads + " entities=" + entities + " operations/thread=" + operations);
+        report("parking ", run(new MultiEntityLocker<>(), threads, entities, operations));
+        report("spinning", run(new MultiEntityLocker<>(100, true), threads, entities, operations));
+    }
+
+    private static Result run(final EntityLocker<Integer> entityLocker, final int threadsCount, final int entities,
+                              final int operations) throws InterruptedException {
+        final long[][] latencies = new long[threadsCount][operations];
+        final int[] counts = new int[threadsCount];
+        final long[] sharedValues = new long[entities];
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[threadsCount];
+
+        for (int i = 0; i < threadsCount; i++) {
+            final int threadIndex = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < operations; j++) {
+                        final int entityId = (j + threadIndex) % entities;
+
+                        final long before = System.nanoTime();
+                        entityLocker.lock(entityId);
+                        latencies[threadIndex][j] = System.nanoTime() - before;
+
+                        sharedValues[entityId]++;
+                        entityLocker.unlock(entityId);
+                    }
+                    counts[threadIndex] = operations;
+                } catch (InterruptedException | DeadlockPreventedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads[i].start();
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsed = System.nanoTime() - begin;
+
+        return new Result(mergeSorted(latencies, counts), elapsed);
+    }
+
+    private static void report(final String name, final Result result) {
+        final long[] latencies = result.latencies;
+        final double throughput = latencies.length * 1e9 / result.elapsedNanos;
+        System.out.printf("%s: %,.0f ops/s  p50=%,dns  p99=%,dns  p999=%,dns%n", name, throughput,
+                percentile(latencies, 50), percentile(latencies, 99), percentile(latencies, 99.9));
+    }
+
+    private static class Result {
+        private final long[] latencies;
+        private final long elapsedNanos;
+
+        private Result(final long[] latencies, final long elapsedNanos) {
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+}
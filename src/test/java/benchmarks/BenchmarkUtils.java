@@ -0,0 +1,58 @@
+package benchmarks;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+
+import java.util.Arrays;
+
+/**
+ * Util class to simplify benchmarks writing
+ */
+public class BenchmarkUtils {
+
+    /**
+     * @throws java.lang.UnsupportedOperationException for reflection users
+     */
+    private BenchmarkUtils() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Logging is enabled in tests, but it makes all measurements meaningless
+     */
+    public static void disableLogging() {
+        LogManager.getRootLogger().setLevel(Level.OFF);
+    }
+
+    /**
+     * @param sortedValues
+     * @param percentile   - value in range [0, 100]
+     * @return value of given percentile
+     */
+    public static long percentile(final long[] sortedValues, final double percentile) {
+        if (sortedValues.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile / 100 * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+    }
+
+    /**
+     * Merges per thread latencies into one sorted array
+     */
+    public static long[] mergeSorted(final long[][] latencies, final int[] counts) {
+        int total = 0;
+        for (final int count : counts) {
+            total += count;
+        }
+
+        final long[] merged = new long[total];
+        int position = 0;
+        for (int i = 0; i < latencies.length; i++) {
+            System.arraycopy(latencies[i], 0, merged, position, counts[i]);
+            position += counts[i];
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+}
@@ -0,0 +1,30 @@
+package benchmarks;
+
+/**
+ * Compares graph based {@link deadlockpreventer.DeadlockPreventer} with wait-die and wound-wait
+ * {@link deadlockpreventer.TimestampDeadlockPreventer} at high contention: small key space, long nested
+ * transactions and blocking locks, so wait chains are long and deadlocks are frequent
+ * <p>
+ * Run: java -cp target/classes:target/test-classes:&lt;log4j jar&gt; benchmarks.DeadlockPreventionBenchmark [--option=value ...]
+ * Options are passed to {@link LoadGenerator} after the defaults of this benchmark, so they can be overridden
+ */
+public class DeadlockPreventionBenchmark {
+    private static final String[] LOCKERS = {"multi", "background", "wait-die", "wound-wait"};
+
+    private static final String[] HIGH_CONTENTION = {
+            "--threads=8", "--keys=64", "--distribution=uniform", "--nested=6", "--global=0",
+            "--hold=fixed", "--hold-nanos=2000", "--timeout-ms=0", "--warmup-s=1", "--duration-s=5"
+    };
+
+    public static void main(String[] args) throws InterruptedException {
+        for (final String locker : LOCKERS) {
+            final String[] loadArgs = new String[HIGH_CONTENTION.length + args.length + 1];
+            System.arraycopy(HIGH_CONTENTION, 0, loadArgs, 0, HIGH_CONTENTION.length);
+            System.arraycopy(args, 0, loadArgs, HIGH_CONTENTION.length, args.length);
+            loadArgs[loadArgs.length - 1] = "--locker=" + locker;
+
+            LoadGenerator.main(loadArgs);
+            System.out.println();
+        }
+    }
+}
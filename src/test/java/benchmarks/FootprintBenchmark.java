@@ -0,0 +1,100 @@
+package benchmarks;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.CompactEntityLocker;
+import entitylocker.EntityLocker;
+import entitylocker.MultiEntityLocker;
+import entitylocker.ShardedEntityLocker;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static benchmarks.BenchmarkUtils.disableLogging;
+
+/**
+ * Reports heap bytes per held entity lock beyond the key: one thread locks N distinct entities and
+ * the difference of used heap after full GC is divided by N. Keys are created before the first measurement
+ * <p>
+ * {@link MultiEntityLocker} takes a read lock of {@link java.util.concurrent.locks.ReentrantReadWriteLock}
+ * for every held entity, so it can't hold more than 65535 entities and is measured with this size
+ * <p>
+ * Run: java -Xmx4g -cp target/classes:target/test-classes:&lt;log4j jar&gt; benchmarks.FootprintBenchmark [sizes] [lockers]
+ * Defaults: 1000000,10000000 compact,sharded,multi
+ */
+public class FootprintBenchmark {
+    private static final int MULTI_MAX_ENTITIES = 65_535;
+
+    private static final Map<String, Supplier<EntityLocker<Integer>>> LOCKERS = new LinkedHashMap<>();
+
+    static {
+        LOCKERS.put("compact", () -> new CompactEntityLocker<>(64, Integer.MAX_VALUE));
+        LOCKERS.put("sharded", () -> new ShardedEntityLocker<>(64, Integer.MAX_VALUE));
+        LOCKERS.put("multi", () -> new MultiEntityLocker<>(Integer.MAX_VALUE));
+    }
+
+    public static void main(String[] args) throws DeadlockPreventedException {
+        disableLogging();
+
+        final String[] sizes = (args.length > 0 ? args[0] : "1000000,10000000").split(",");
+        final String[] lockers = (args.length > 1 ? args[1] : String.join(",", LOCKERS.keySet())).split(",");
+
+        int maxSize = 0;
+        for (final String size : sizes) {
+            maxSize = Math.max(maxSize, Integer.parseInt(size));
+        }
+
+        final Integer[] keys = new Integer[maxSize];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+
+        for (final String locker : lockers) {
+            int previousEntities = -1;
+            for (final String size : sizes) {
+                int entities = Integer.parseInt(size);
+                if (locker.equals("multi")) {
+                    entities = Math.min(entities, MULTI_MAX_ENTITIES);
+                }
+
+                if (entities != previousEntities) {
+                    measure(locker, LOCKERS.get(locker), keys, entities);
+                    previousEntities = entities;
+                }
+            }
+        }
+    }
+
+    private static void measure(final String name, final Supplier<EntityLocker<Integer>> lockerFactory,
+                                final Integer[] keys, final int entities) throws DeadlockPreventedException {
+        final long before = usedHeap();
+        final EntityLocker<Integer> entityLocker = lockerFactory.get();
+
+        try {
+            for (int i = 0; i < entities; i++) {
+                entityLocker.lock(keys[i]);
+            }
+        } catch (OutOfMemoryError e) {
+            System.out.printf("%-8s %,12d entities: out of memory%n", name, entities);
+            return;
+        }
+
+        final long after = usedHeap();
+        System.out.printf("%-8s %,12d entities: %,15d bytes, %6.1f bytes/held lock%n",
+                name, entities, after - before, (after - before) / (double) entities);
+
+        for (int i = 0; i < entities; i++) {
+            entityLocker.unlock(keys[i]);
+        }
+    }
+
+    private static long usedHeap() {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
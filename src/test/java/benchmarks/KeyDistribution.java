@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.util.Random;
+
+/**
+ * Chooses entity ids for generated load
+ */
+public interface KeyDistribution {
+
+    /**
+     * @param random - thread local random of a caller
+     * @return entity id in range [0, keys)
+     */
+    int nextKey(Random random);
+
+    /**
+     * Every key has the same probability
+     */
+    static KeyDistribution uniform(final int keys) {
+        return random -> random.nextInt(keys);
+    }
+
+    /**
+     * hotOperations part of all operations goes to hotKeys part of all keys
+     *
+     * @param keys
+     * @param hotKeys       - fraction of hot keys in range (0, 1]
+     * @param hotOperations - fraction of operations on hot keys in range [0, 1]
+     */
+    static KeyDistribution hotspot(final int keys, final double hotKeys, final double hotOperations) {
+        final int hotCount = Math.max(1, (int) (keys * hotKeys));
+        final int coldCount = Math.max(1, keys - hotCount);
+        return random -> random.nextDouble() < hotOperations
+                ? random.nextInt(hotCount)
+                : Math.min(keys - 1, hotCount + random.nextInt(coldCount));
+    }
+
+    /**
+     * Probability of key k is proportional to 1 / (k + 1)^exponent, so key 0 is the hottest one
+     * <p>
+     * Cumulative distribution is precomputed, so memory usage is 8 bytes per key
+     */
+    static KeyDistribution zipfian(final int keys, final double exponent) {
+        final double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+
+        final double total = sum;
+        return random -> {
+            final double value = random.nextDouble() * total;
+            int low = 0;
+            int high = keys - 1;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (cumulative[middle] < value) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        };
+    }
+}
@@ -0,0 +1,80 @@
+package benchmarks;
+
+/**
+ * Log-linear histogram of nanosecond latencies with ~3% precision
+ * <p>
+ * Recording doesn't allocate, so it doesn't affect allocation measurements of the load.
+ * Not thread safe, every worker has its own histogram and they are merged at the end
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts;
+    private long totalCount;
+    private long max;
+
+    public LatencyHistogram() {
+        this.counts = new long[(Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    }
+
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        counts[index(value)]++;
+        totalCount++;
+        max = Math.max(max, value);
+    }
+
+    public void merge(final LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        max = Math.max(max, other.max);
+    }
+
+    public long totalCount() {
+        return totalCount;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    /**
+     * @param percentile - value in range [0, 100]
+     * @return upper bound of the bucket which contains given percentile
+     */
+    public long percentile(final double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, upperBound(i));
+            }
+        }
+        return max;
+    }
+
+    private static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long upperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,443 @@
+package benchmarks;
+
+import deadlockpreventer.DeadlockPreventer;
+import deadlockpreventer.TimestampDeadlockPreventer;
+import deadlockpreventer.TimestampDeadlockPreventer.Scheme;
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.CompactEntityLocker;
+import entitylocker.EntityLocker;
+import entitylocker.MultiEntityLocker;
+import entitylocker.ShardedEntityLocker;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static benchmarks.BenchmarkUtils.disableLogging;
+
+/**
+ * Replays production like load against {@link EntityLocker} implementations
+ * <p>
+ * Every worker thread runs transactions: locks from 1 to nested entities chosen by key distribution,
+ * holds them for a time from hold time distribution and unlocks them. With global probability
+ * a worker acquires global lock instead of a transaction
+ * <p>
+ * Run: java -cp target/classes:target/test-classes:&lt;log4j jar&gt; benchmarks.LoadGenerator [--option=value ...]
+ * Options (with defaults):
+ * --locker=multi          one of {@link #LOCKERS} keys
+ * --threads=4
+ * --keys=10000            size of key space
+ * --distribution=zipf     uniform, zipf or hotspot
+ * --zipf=0.99             zipfian exponent
+ * --hot-keys=0.01         fraction of hot keys for hotspot distribution
+ * --hot-operations=0.9    fraction of operations on hot keys for hotspot distribution
+ * --nested=3              max count of entities locked in one transaction
+ * --global=0.0001         probability of global lock instead of a transaction
+ * --hold=exponential      none, fixed or exponential
+ * --hold-nanos=500        fixed or mean hold time
+ * --timeout-ms=100        timeout of every acquisition, 0 means blocking lock
+ * --escalation=100        min locks before escalation
+ * --partitions=16         partitions of sharded locker or segments of compact locker
+ * --detection-ms=10       interval of background deadlock detection
+ * --warmup-s=2
+ * --duration-s=10
+ */
+public class LoadGenerator {
+
+    /**
+     * Named locker factories to compare configurations from command line
+     */
+    private static final Map<String, Function<Options, EntityLocker<Integer>>> LOCKERS = new LinkedHashMap<>();
+
+    static {
+        LOCKERS.put("multi", options -> new MultiEntityLocker<>(options.escalation));
+        LOCKERS.put("spin", options -> new MultiEntityLocker<>(options.escalation, true));
+        LOCKERS.put("background", options -> new MultiEntityLocker<>(options.escalation, false,
+                new DeadlockPreventer<>(options.detectionMillis, TimeUnit.MILLISECONDS)));
+        LOCKERS.put("wait-die", options -> new MultiEntityLocker<>(options.escalation, false,
+                new TimestampDeadlockPreventer<>(Scheme.WAIT_DIE)));
+        LOCKERS.put("wound-wait", options -> new MultiEntityLocker<>(options.escalation, false,
+                new TimestampDeadlockPreventer<>(Scheme.WOUND_WAIT)));
+        LOCKERS.put("sharded", options -> new ShardedEntityLocker<>(options.partitions, options.escalation));
+        LOCKERS.put("compact", options -> new CompactEntityLocker<>(options.partitions, options.escalation));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        disableLogging();
+
+        final Options options = Options.parse(args);
+        System.out.println(options);
+
+        if (options.warmupSeconds > 0) {
+            run(options, TimeUnit.SECONDS.toNanos(options.warmupSeconds));
+        }
+
+        run(options, TimeUnit.SECONDS.toNanos(options.durationSeconds)).print();
+    }
+
+    private static Result run(final Options options, final long durationNanos) throws InterruptedException {
+        final EntityLocker<Integer> entityLocker = LOCKERS.get(options.locker).apply(options);
+        final KeyDistribution distribution = options.keyDistribution();
+        final Worker[] workers = new Worker[options.threads];
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(entityLocker, distribution, options, start);
+            workers[i].setName("load-" + i);
+            workers[i].start();
+        }
+
+        final long gcCountBefore = gcCount();
+        final long gcTimeBefore = gcTime();
+
+        final long begin = System.nanoTime();
+        for (final Worker worker : workers) {
+            worker.deadline = begin + durationNanos;
+        }
+        start.countDown();
+        for (final Worker worker : workers) {
+            worker.join();
+        }
+        final long elapsed = System.nanoTime() - begin;
+
+        final Result result = new Result(elapsed, gcCount() - gcCountBefore, gcTime() - gcTimeBefore);
+        for (final Worker worker : workers) {
+            result.add(worker);
+        }
+        return result;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * @return allocated bytes by caller thread or -1 if JVM doesn't support it
+     */
+    private static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static class Worker extends Thread {
+        private final EntityLocker<Integer> entityLocker;
+        private final KeyDistribution distribution;
+        private final Options options;
+        private final CountDownLatch start;
+        private final int[] heldEntities;
+
+        private final LatencyHistogram acquisitionLatency = new LatencyHistogram();
+        private final LatencyHistogram globalLatency = new LatencyHistogram();
+        private volatile long deadline;
+        private long transactions;
+        private long globalLocks;
+        private long timeouts;
+        private long deadlocksPrevented;
+        private long allocated;
+
+        private Worker(final EntityLocker<Integer> entityLocker, final KeyDistribution distribution,
+                       final Options options, final CountDownLatch start) {
+            this.entityLocker = entityLocker;
+            this.distribution = distribution;
+            this.options = options;
+            this.start = start;
+            this.heldEntities = new int[options.nested];
+        }
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            final Random random = ThreadLocalRandom.current();
+            final long allocatedBefore = allocatedBytes();
+
+            while (System.nanoTime() < deadline) {
+                if (random.nextDouble() < options.global) {
+                    globalOperation(random);
+                } else {
+                    transaction(random);
+                }
+            }
+
+            allocated = allocatedBytes() - allocatedBefore;
+        }
+
+        private void transaction(final Random random) {
+            final int size = 1 + random.nextInt(options.nested);
+            int held = 0;
+            try {
+                for (; held < size; held++) {
+                    final int entityId = distribution.nextKey(random);
+
+                    final long before = System.nanoTime();
+                    final boolean isLocked = lock(entityId);
+                    acquisitionLatency.record(System.nanoTime() - before);
+
+                    if (!isLocked) {
+                        timeouts++;
+                        return;
+                    }
+                    heldEntities[held] = entityId;
+                }
+
+                hold(random);
+                transactions++;
+            } catch (DeadlockPreventedException e) {
+                deadlocksPrevented++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                for (int i = held - 1; i >= 0; i--) {
+                    entityLocker.unlock(heldEntities[i]);
+                }
+            }
+        }
+
+        private void globalOperation(final Random random) {
+            try {
+                final long before = System.nanoTime();
+                final boolean isLocked = globalLock();
+                globalLatency.record(System.nanoTime() - before);
+
+                if (!isLocked) {
+                    timeouts++;
+                    return;
+                }
+
+                hold(random);
+                globalLocks++;
+                entityLocker.globalUnlock();
+            } catch (DeadlockPreventedException e) {
+                deadlocksPrevented++;
+            }
+        }
+
+        private boolean lock(final int entityId) throws DeadlockPreventedException, InterruptedException {
+            if (options.timeoutMillis == 0) {
+                entityLocker.lock(entityId);
+                return true;
+            }
+            return entityLocker.tryLock(entityId, options.timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private boolean globalLock() throws DeadlockPreventedException {
+            if (options.timeoutMillis == 0) {
+                entityLocker.globalLock();
+                return true;
+            }
+            return entityLocker.tryGlobalLock(options.timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Busy waiting because sleep isn't precise for sub microsecond times
+         */
+        private void hold(final Random random) {
+            final long holdNanos;
+            switch (options.hold) {
+                case "fixed":
+                    holdNanos = options.holdNanos;
+                    break;
+                case "exponential":
+                    holdNanos = (long) (-Math.log(1 - random.nextDouble()) * options.holdNanos);
+                    break;
+                default:
+                    return;
+            }
+
+            final long end = System.nanoTime() + holdNanos;
+            while (System.nanoTime() < end) {
+                //busy waiting
+            }
+        }
+    }
+
+    private static class Result {
+        private final long elapsedNanos;
+        private final long gcCount;
+        private final long gcMillis;
+        private final LatencyHistogram acquisitionLatency = new LatencyHistogram();
+        private final LatencyHistogram globalLatency = new LatencyHistogram();
+        private long transactions;
+        private long globalLocks;
+        private long timeouts;
+        private long deadlocksPrevented;
+        private long allocated;
+
+        private Result(final long elapsedNanos, final long gcCount, final long gcMillis) {
+            this.elapsedNanos = elapsedNanos;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        private void add(final Worker worker) {
+            acquisitionLatency.merge(worker.acquisitionLatency);
+            globalLatency.merge(worker.globalLatency);
+            transactions += worker.transactions;
+            globalLocks += worker.globalLocks;
+            timeouts += worker.timeouts;
+            deadlocksPrevented += worker.deadlocksPrevented;
+            allocated += worker.allocated;
+        }
+
+        private void print() {
+            final double seconds = elapsedNanos / 1e9;
+            final long acquisitions = acquisitionLatency.totalCount();
+            final long attempts = transactions + globalLocks + timeouts + deadlocksPrevented;
+
+            System.out.printf("throughput:         %,.0f tx/s, %,.0f acquisitions/s, %,d global locks%n",
+                    transactions / seconds, acquisitions / seconds, globalLocks);
+            System.out.printf("acquisition:        p50=%,dns p99=%,dns p999=%,dns max=%,dns%n",
+                    acquisitionLatency.percentile(50), acquisitionLatency.percentile(99),
+                    acquisitionLatency.percentile(99.9), acquisitionLatency.max());
+            System.out.printf("global acquisition: p50=%,dns p99=%,dns max=%,dns%n",
+                    globalLatency.percentile(50), globalLatency.percentile(99), globalLatency.max());
+            System.out.printf("timeouts:           %,d (%.4f%%)%n", timeouts, percent(timeouts, attempts));
+            System.out.printf("deadlock prevented: %,d (%.4f%%)%n", deadlocksPrevented, percent(deadlocksPrevented, attempts));
+            System.out.printf("gc:                 %,d collections, %,d ms%n", gcCount, gcMillis);
+            System.out.printf("allocated:          %,d bytes, %.1f bytes/acquisition%n",
+                    allocated, acquisitions == 0 ? 0.0 : (double) allocated / acquisitions);
+        }
+
+        private static double percent(final long value, final long total) {
+            return total == 0 ? 0 : value * 100.0 / total;
+        }
+    }
+
+    private static class Options {
+        private String locker = "multi";
+        private int threads = 4;
+        private int keys = 10_000;
+        private String distribution = "zipf";
+        private double zipf = 0.99;
+        private double hotKeys = 0.01;
+        private double hotOperations = 0.9;
+        private int nested = 3;
+        private double global = 0.0001;
+        private String hold = "exponential";
+        private long holdNanos = 500;
+        private long timeoutMillis = 100;
+        private int escalation = 100;
+        private int partitions = 16;
+        private long detectionMillis = 10;
+        private int warmupSeconds = 2;
+        private int durationSeconds = 10;
+
+        private static Options parse(final String[] args) {
+            final Options options = new Options();
+            for (final String arg : args) {
+                final int separator = arg.indexOf('=');
+                if (!arg.startsWith("--") || separator < 0) {
+                    throw new IllegalArgumentException("Expected --option=value but was " + arg);
+                }
+
+                final String value = arg.substring(separator + 1);
+                switch (arg.substring(2, separator)) {
+                    case "locker":
+                        if (!LOCKERS.containsKey(value)) {
+                            throw new IllegalArgumentException("Unknown locker " + value + ", expected one of " + LOCKERS.keySet());
+                        }
+                        options.locker = value;
+                        break;
+                    case "threads":
+                        options.threads = Integer.parseInt(value);
+                        break;
+                    case "keys":
+                        options.keys = Integer.parseInt(value);
+                        break;
+                    case "distribution":
+                        options.distribution = value;
+                        break;
+                    case "zipf":
+                        options.zipf = Double.parseDouble(value);
+                        break;
+                    case "hot-keys":
+                        options.hotKeys = Double.parseDouble(value);
+                        break;
+                    case "hot-operations":
+                        options.hotOperations = Double.parseDouble(value);
+                        break;
+                    case "nested":
+                        options.nested = Integer.parseInt(value);
+                        break;
+                    case "global":
+                        options.global = Double.parseDouble(value);
+                        break;
+                    case "hold":
+                        options.hold = value;
+                        break;
+                    case "hold-nanos":
+                        options.holdNanos = Long.parseLong(value);
+                        break;
+                    case "timeout-ms":
+                        options.timeoutMillis = Long.parseLong(value);
+                        break;
+                    case "escalation":
+                        options.escalation = Integer.parseInt(value);
+                        break;
+                    case "partitions":
+                        options.partitions = Integer.parseInt(value);
+                        break;
+                    case "detection-ms":
+                        options.detectionMillis = Long.parseLong(value);
+                        break;
+                    case "warmup-s":
+                        options.warmupSeconds = Integer.parseInt(value);
+                        break;
+                    case "duration-s":
+                        options.durationSeconds = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            return options;
+        }
+
+        private KeyDistribution keyDistribution() {
+            switch (distribution) {
+                case "uniform":
+                    return KeyDistribution.uniform(keys);
+                case "zipf":
+                    return KeyDistribution.zipfian(keys, zipf);
+                case "hotspot":
+                    return KeyDistribution.hotspot(keys, hotKeys, hotOperations);
+                default:
+                    throw new IllegalArgumentException("Unknown distribution " + distribution);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "locker=" + locker + " threads=" + threads + " keys=" + keys + " distribution=" + distribution +
+                    (distribution.equals("zipf") ? "(" + zipf + ")" : "") +
+                    (distribution.equals("hotspot") ? "(" + hotKeys + "/" + hotOperations + ")" : "") +
+                    " nested=1.." + nested + " global=" + global + " hold=" + hold + "(" + holdNanos + "ns)" +
+                    " timeout=" + timeoutMillis + "ms escalation=" + escalation + " duration=" + durationSeconds + "s";
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package locks;
+
+import entitylocker.EntityLocker;
+import entitylocker.MultiEntityLocker;
+import locks.entity.SimpleEntity;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class AdaptiveSpinning {
+    private EntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 15;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private SimpleEntity mainEntity;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>(100, true);
+        silentLocker = new SilentLocker<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        mainEntity = new SimpleEntity(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testMutualExclusionUnderContention() {
+        final int threadsCount = 8;
+        final int increments = 10_000;
+        final CountDownLatch threadsCompleteWork = new CountDownLatch(threadsCount);
+
+        for (int i = 0; i < threadsCount; i++) {
+            THREAD_STARTER.startThread(() -> {
+                for (int j = 0; j < increments; j++) {
+                    silentLocker.lock(mainEntity.id);
+                    mainEntity.value++;
+                    entityLocker.unlock(mainEntity.id);
+                }
+                threadsCompleteWork.countDown();
+            });
+        }
+
+        silentWaiter.await(threadsCompleteWork);
+
+        assertEquals(threadsCount * increments, mainEntity.value);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testWaiterParksWhenOwnerSleeps() {
+        THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(mainEntity.id);
+            mainThreadWaiter.countDown();
+
+            sleep(1);
+            mainEntity.value = 1;
+
+            entityLocker.unlock(mainEntity.id);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+
+        silentLocker.lock(mainEntity.id);
+        assertEquals(1, mainEntity.value);
+        entityLocker.unlock(mainEntity.id);
+    }
+
+    @Test
+    public void testReentrantSpinLocking() {
+        silentLocker.lock(mainEntity.id);
+        silentLocker.lock(mainEntity.id);
+
+        entityLocker.unlock(mainEntity.id);
+        assertTrue(entityLocker.isLockedByCurrentThread(mainEntity.id));
+
+        entityLocker.unlock(mainEntity.id);
+        assertFalse(entityLocker.isLockedByCurrentThread(mainEntity.id));
+    }
+}
@@ -0,0 +1,170 @@
+package locks;
+
+import deadlockpreventer.DeadlockPreventer;
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.MultiEntityLocker;
+import entitylocker.WaiterLimits;
+import entitylocker.WaiterLimits.RejectionMode;
+import entitylocker.exceptions.LockRejectedException;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.SilentLocker;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class AdmissionControl {
+    private MultiEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        createLocker(1, Integer.MAX_VALUE, RejectionMode.FAIL_FAST);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testEntityWaitersLimitFailsFast() {
+        silentLocker.lock(1);
+        final Thread waiter = startWaiter(1);
+
+        final Thread rejected = THREAD_STARTER.startThread(() -> {
+            try {
+                entityLocker.lock(1);
+                fail();
+            } catch (LockRejectedException e) {
+                assertEquals(2, e.entityWaiters());
+            } catch (DeadlockPreventedException e) {
+                fail();
+            }
+        });
+
+        waitThread(rejected);
+        assertEquals(1, entityLocker.waitersCount(1));
+
+        entityLocker.unlock(1);
+        waitThread(waiter);
+        assertEquals(0, entityLocker.waitersCount());
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testTryLockReturnsFalseWhenRejected() {
+        createLocker(1, Integer.MAX_VALUE, RejectionMode.TRY_LOCK_FALSE);
+        silentLocker.lock(1);
+        final Thread waiter = startWaiter(1);
+
+        final Thread rejected = THREAD_STARTER.startThread(() -> {
+            final long start = System.nanoTime();
+            assertFalse(silentLocker.tryLockWithTime(1, TEST_TIMEOUT, TEST_TIME_UNIT));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        });
+
+        waitThread(rejected);
+        entityLocker.unlock(1);
+        waitThread(waiter);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testTotalWaitersLimit() {
+        createLocker(Integer.MAX_VALUE, 1, RejectionMode.FAIL_FAST);
+        silentLocker.lock(1);
+        silentLocker.lock(2);
+        final Thread waiter = startWaiter(1);
+
+        final Thread rejected = THREAD_STARTER.startThread(() -> {
+            try {
+                entityLocker.lock(2);
+                fail();
+            } catch (LockRejectedException e) {
+                assertEquals(2, e.totalWaiters());
+                assertFalse(entityLocker.isLockedByCurrentThread(2));
+            } catch (DeadlockPreventedException e) {
+                fail();
+            }
+        });
+
+        waitThread(rejected);
+        entityLocker.unlock(2);
+        entityLocker.unlock(1);
+        waitThread(waiter);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testUncontendedLockingIsNotLimited() {
+        createLocker(0, 0, RejectionMode.FAIL_FAST);
+
+        for (int i = 0; i < 10; i++) {
+            silentLocker.lock(i);
+            silentLocker.lock(i);
+        }
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> assertFalse(silentLocker.tryLockWithoutTime(1)));
+        waitThread(subThread);
+
+        for (int i = 0; i < 10; i++) {
+            entityLocker.unlock(i);
+            entityLocker.unlock(i);
+        }
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testWaitersCount() {
+        createLocker(Integer.MAX_VALUE, Integer.MAX_VALUE, RejectionMode.FAIL_FAST);
+        silentLocker.lock(1);
+        assertEquals(0, entityLocker.waitersCount(1));
+
+        final Thread first = startWaiter(1);
+        final Thread second = startWaiter(1);
+        awaitWaiters(2);
+        assertEquals(2, entityLocker.waitersCount(1));
+        assertEquals(0, entityLocker.waitersCount(2));
+
+        entityLocker.unlock(1);
+        waitThread(first);
+        waitThread(second);
+        assertEquals(0, entityLocker.waitersCount());
+        assertEquals(0, entityLocker.waitersCount(1));
+    }
+
+    /**
+     * @param entityId
+     * @return thread which is waiting specified entity, it unlocks the entity after acquiring
+     */
+    private Thread startWaiter(final int entityId) {
+        final int waiters = entityLocker.waitersCount();
+        final Thread waiter = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(entityId);
+            entityLocker.unlock(entityId);
+        });
+        awaitWaiters(waiters + 1);
+        return waiter;
+    }
+
+    private void awaitWaiters(final int waiters) {
+        while (entityLocker.waitersCount() < waiters) {
+            sleep(0.01);
+        }
+    }
+
+    private void createLocker(final int maxEntityWaiters, final int maxTotalWaiters, final RejectionMode rejectionMode) {
+        entityLocker = new MultiEntityLocker<>(100, false, new DeadlockPreventer<>(),
+                new WaiterLimits(maxEntityWaiters, maxTotalWaiters, rejectionMode));
+        silentLocker = new SilentLocker<>(entityLocker);
+    }
+}
@@ -0,0 +1,161 @@
+package locks;
+
+import deadlockpreventer.DeadlockPreventer;
+import entitylocker.MultiEntityLocker;
+import entitylocker.WaiterLimits;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class AffinityLocking {
+    private MultiEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>(100, false, new DeadlockPreventer<>(), WaiterLimits.UNBOUNDED, true);
+        silentLocker = new SilentLocker<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testRetainedEntityIsFree() {
+        silentLocker.lock(1);
+        entityLocker.unlock(1);
+
+        assertEquals(0, entityLocker.currentSize());
+        assertFalse(entityLocker.isLockedByCurrentThread(1));
+        try {
+            entityLocker.unlock(1);
+            fail();
+        } catch (IllegalMonitorStateException ignored) {
+        }
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(silentLocker.tryLockWithoutTime(1));
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        assertFalse(silentLocker.tryLockWithoutTime(1));
+        assertEquals(1, entityLocker.currentSize());
+        mainThreadWaiter.countDown();
+        waitThread(subThread);
+
+        //Affinity moved to the sub thread, main thread locks it as usual
+        silentLocker.lock(1);
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testOwnerWaitsOtherThread() {
+        silentLocker.lock(1);
+        entityLocker.unlock(1);
+
+        final AtomicBoolean isReleased = new AtomicBoolean();
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(1);
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+            sleep(0.2);
+            isReleased.set(true);
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        mainThreadWaiter.countDown();
+        silentLocker.lock(1);
+        assertTrue(isReleased.get());
+        entityLocker.unlock(1);
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testManyRetainedEntities() {
+        for (int i = 0; i < 1000; i++) {
+            silentLocker.lock(i);
+            entityLocker.unlock(i);
+        }
+        assertEquals(0, entityLocker.currentSize());
+
+        //Retained and evicted entities are locked by other thread as usual
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(silentLocker.tryLockWithoutTime(i));
+            }
+            assertEquals(1000, entityLocker.currentSize());
+            assertEquals(1000, entityLocker.unlockAllHeldByCurrentThread().size());
+        });
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testEntitiesOfTerminatedThreadAreEvicted() {
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            for (int i = 0; i < 10; i++) {
+                silentLocker.lock(i);
+                entityLocker.unlock(i);
+            }
+        });
+        waitThread(subThread);
+        assertEquals(10, entityLocker.retainedCount());
+
+        //Entity 0 is locked by main thread, so its affinity moves to main thread and it isn't evicted
+        silentLocker.lock(0);
+        entityLocker.unlock(0);
+        assertEquals(1, entityLocker.retainedCount());
+
+        for (int i = 100; i < 200; i++) {
+            silentLocker.lock(i);
+            entityLocker.unlock(i);
+        }
+        assertEquals(16, entityLocker.retainedCount());
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testRetainedEntityDoesntBlockGlobalLock() {
+        silentLocker.lock(1);
+        entityLocker.unlock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(silentLocker.tryGlobalLock(TEST_TIMEOUT, TEST_TIME_UNIT));
+            assertTrue(entityLocker.isLockedByCurrentThread(1));
+            entityLocker.globalUnlock();
+        });
+        waitThread(subThread);
+
+        silentLocker.lock(1);
+        entityLocker.unlock(1);
+    }
+}
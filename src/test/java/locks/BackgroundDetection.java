@@ -0,0 +1,115 @@
+package locks;
+
+import deadlockpreventer.DeadlockPreventer;
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.EntityLocker;
+import entitylocker.MultiEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class BackgroundDetection {
+    private EntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>(100, false, new DeadlockPreventer<>(10, TimeUnit.MILLISECONDS));
+        silentLocker = new SilentLocker<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testDeadlockBrokenByDetector() {
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(0);
+
+            mainThreadWaiter.countDown();
+            silentWaiter.await(subThreadWaiter);
+
+            silentLocker.lock(1);
+            entityLocker.unlock(1);
+            entityLocker.unlock(0);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        silentLocker.lock(1);
+
+        subThreadWaiter.countDown();
+        sleep(0.5);
+
+        try {
+            entityLocker.lock(0);
+            fail();
+        } catch (DeadlockPreventedException e) {
+            assertEquals(Thread.currentThread(), e.failThread());
+            assertEquals(subThread, e.lockerThread());
+        }
+        assertFalse(Thread.currentThread().isInterrupted());
+
+        entityLocker.unlock(1);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testWaitingWithoutDeadlock() {
+        THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(0);
+            mainThreadWaiter.countDown();
+
+            sleep(0.5);
+
+            entityLocker.unlock(0);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+
+        silentLocker.lock(0);
+        entityLocker.unlock(0);
+    }
+
+    @Test
+    public void testForeignInterruptionDoesNotCancelLock() {
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentWaiter.await(mainThreadWaiter);
+
+            silentLocker.lock(0);
+            assertTrue(Thread.interrupted());
+            entityLocker.unlock(0);
+        });
+
+        silentLocker.lock(0);
+        mainThreadWaiter.countDown();
+        sleep(0.2);
+
+        subThread.interrupt();
+        sleep(0.2);
+
+        entityLocker.unlock(0);
+        waitThread(subThread);
+    }
+}
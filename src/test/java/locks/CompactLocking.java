@@ -0,0 +1,239 @@
+package locks;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.CompactEntityLocker;
+import entitylocker.EntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class CompactLocking {
+    private EntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 20;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new CompactEntityLocker<>(4, 100);
+        silentLocker = new SilentLocker<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testReentrantLocking() {
+        silentLocker.lock(1);
+        silentLocker.lock(1);
+        assertTrue(entityLocker.isLockedByCurrentThread(1));
+        assertEquals(1, entityLocker.currentSize());
+
+        entityLocker.unlock(1);
+        assertTrue(entityLocker.isLockedByCurrentThread(1));
+        entityLocker.unlock(1);
+        assertFalse(entityLocker.isLockedByCurrentThread(1));
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void testUnlockWithoutLock() {
+        entityLocker.unlock(1);
+    }
+
+    @Test
+    public void testUnlockByOtherThread() {
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            try {
+                entityLocker.unlock(1);
+                fail();
+            } catch (IllegalAccessError e) {
+                mainThreadWaiter.countDown();
+            }
+        });
+
+        waitThread(subThread);
+        assertEquals(0, mainThreadWaiter.getCount());
+        entityLocker.unlock(1);
+    }
+
+    @Test
+    public void testTryLockOfHeldEntity() {
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertFalse(silentLocker.tryLockWithoutTime(1));
+            assertFalse(silentLocker.tryLockWithTime(1, 100, TimeUnit.MILLISECONDS));
+            assertTrue(silentLocker.tryLockWithoutTime(2));
+            entityLocker.unlock(2);
+        });
+
+        waitThread(subThread);
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testWaitingUntilUnlock() {
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            mainThreadWaiter.countDown();
+            silentLocker.lock(1);
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        sleep(0.2);
+        entityLocker.unlock(1);
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testYoungerThreadDies() {
+        silentLocker.lock(0);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(1);
+            mainThreadWaiter.countDown();
+            silentWaiter.await(subThreadWaiter);
+
+            try {
+                entityLocker.lock(0);
+                fail();
+            } catch (DeadlockPreventedException e) {
+                assertEquals(Thread.currentThread(), e.failThread());
+            }
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        subThreadWaiter.countDown();
+        silentLocker.lock(1);
+
+        waitThread(subThread);
+        entityLocker.unlock(1);
+        entityLocker.unlock(0);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testGlobalLockWaitsEntities() {
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            mainThreadWaiter.countDown();
+            silentLocker.globalLock();
+            subThreadWaiter.countDown();
+            entityLocker.globalUnlock();
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        sleep(0.2);
+        assertEquals(1, subThreadWaiter.getCount());
+
+        entityLocker.unlock(1);
+        silentWaiter.await(subThreadWaiter);
+        waitThread(subThread);
+    }
+
+    @Test
+    public void testGlobalLockWithWaiterOnOwnEntity() {
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            mainThreadWaiter.countDown();
+            silentLocker.lock(1);
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        sleep(0.2);
+
+        try {
+            entityLocker.globalLock();
+            fail();
+        } catch (DeadlockPreventedException e) {
+            assertEquals(Thread.currentThread(), e.failThread());
+        }
+
+        entityLocker.unlock(1);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    /**
+     * {@link entitylocker.MultiEntityLocker} can't hold more than 65535 entities
+     * because of read hold count of {@link java.util.concurrent.locks.ReentrantReadWriteLock}
+     */
+    @Test
+    public void testManyHeldEntities() {
+        final int entities = 70_000;
+        entityLocker = new CompactEntityLocker<>(4, Integer.MAX_VALUE);
+        silentLocker = new SilentLocker<>(entityLocker);
+
+        for (int i = 0; i < entities; i++) {
+            silentLocker.lock(i);
+        }
+        assertEquals(entities, entityLocker.currentSize());
+
+        for (int i = 0; i < entities; i++) {
+            assertTrue(entityLocker.isLockedByCurrentThread(i));
+            entityLocker.unlock(i);
+        }
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testConcurrentCounters() {
+        final int threads = 4;
+        final int iterations = 500;
+        final int[] counters = new int[16];
+        final CountDownLatch finished = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            final int shift = i;
+            THREAD_STARTER.startThread(() -> {
+                for (int j = 0; j < iterations; j++) {
+                    final int entityId = (j * 7 + shift) % counters.length;
+                    silentLocker.lock(entityId);
+                    counters[entityId]++;
+                    entityLocker.unlock(entityId);
+                }
+                finished.countDown();
+            });
+        }
+
+        silentWaiter.await(finished);
+
+        int sum = 0;
+        for (final int counter : counters) {
+            sum += counter;
+        }
+        assertEquals(threads * iterations, sum);
+        assertEquals(0, entityLocker.currentSize());
+    }
+}
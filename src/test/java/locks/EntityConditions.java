@@ -0,0 +1,223 @@
+package locks;
+
+import entitylocker.MultiEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class EntityConditions {
+    private MultiEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+
+    private volatile boolean isReady;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>(100);
+        silentLocker = new SilentLocker<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        isReady = false;
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testSignalWakesWaiter() {
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(1);
+            silentLocker.lock(1);
+            mainThreadWaiter.countDown();
+
+            while (!isReady) {
+                assertTrue(awaitCondition(1, TEST_TIMEOUT));
+            }
+
+            assertTrue(entityLocker.isLockedByCurrentThread(1));
+            entityLocker.unlock(1);
+            assertTrue(entityLocker.isLockedByCurrentThread(1));
+            entityLocker.unlock(1);
+            assertFalse(entityLocker.isLockedByCurrentThread(1));
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        silentLocker.lock(1);
+        isReady = true;
+        entityLocker.signal(1);
+        entityLocker.unlock(1);
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testSignalAllWakesAllWaiters() {
+        final int threads = 3;
+        final CountDownLatch waiting = new CountDownLatch(threads);
+        final CountDownLatch finished = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            THREAD_STARTER.startThread(() -> {
+                silentLocker.lock(1);
+                waiting.countDown();
+                while (!isReady) {
+                    assertTrue(awaitCondition(1, TEST_TIMEOUT));
+                }
+                entityLocker.unlock(1);
+                finished.countDown();
+            });
+        }
+
+        silentWaiter.await(waiting);
+        silentLocker.lock(1);
+        isReady = true;
+        entityLocker.signalAll(1);
+        entityLocker.unlock(1);
+
+        silentWaiter.await(finished);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testAwaitTimeout() {
+        silentLocker.lock(1);
+
+        assertFalse(awaitCondition(1, 0.1));
+        assertTrue(entityLocker.isLockedByCurrentThread(1));
+
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void testAwaitWithoutLock() throws Exception {
+        entityLocker.awaitCondition(1, 1, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void testSignalWithoutLock() {
+        entityLocker.signal(1);
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void testAwaitUnderGlobalLock() throws Exception {
+        silentLocker.globalLock();
+        silentLocker.lock(1);
+        try {
+            entityLocker.awaitCondition(1, 1, TimeUnit.MILLISECONDS);
+        } finally {
+            entityLocker.unlock(1);
+            entityLocker.globalUnlock();
+        }
+    }
+
+    /**
+     * Waiting thread doesn't block global lock, and after signal it waits global unlock
+     */
+    @Test
+    public void testGlobalLockWhileWaiting() {
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(1);
+            mainThreadWaiter.countDown();
+            while (!isReady) {
+                assertTrue(awaitCondition(1, TEST_TIMEOUT));
+            }
+            assertTrue(entityLocker.isLockedByCurrentThread(1));
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        silentLocker.globalLock();
+        silentLocker.lock(1);
+        isReady = true;
+        entityLocker.signal(1);
+        entityLocker.unlock(1);
+
+        sleep(0.2);
+        assertTrue(subThread.isAlive());
+        entityLocker.globalUnlock();
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    /**
+     * Hold counts are restored after waiting, so the third lock escalates
+     */
+    @Test
+    public void testEscalationCountersRestored() {
+        entityLocker = new MultiEntityLocker<>(3);
+        silentLocker = new SilentLocker<>(entityLocker);
+
+        silentLocker.lock(1);
+        silentLocker.lock(1);
+        assertFalse(awaitCondition(1, 0.1));
+        assertFalse(entityLocker.isLockedByCurrentThread(100));
+
+        silentLocker.lock(2);
+        assertTrue(entityLocker.isLockedByCurrentThread(100));
+
+        entityLocker.unlock(2);
+        assertFalse(entityLocker.isLockedByCurrentThread(100));
+        entityLocker.unlock(1);
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testInterruptedWaiting() {
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(1);
+            mainThreadWaiter.countDown();
+            try {
+                entityLocker.awaitCondition(1, TEST_TIMEOUT, TEST_TIME_UNIT);
+                fail();
+            } catch (InterruptedException e) {
+                assertTrue(entityLocker.isLockedByCurrentThread(1));
+            } catch (Exception e) {
+                fail();
+            }
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        sleep(0.2);
+        subThread.interrupt();
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    /**
+     * @param entityId
+     * @param sec
+     * @return result of waiting, test fails on any exception
+     */
+    private boolean awaitCondition(final int entityId, final double sec) {
+        try {
+            return entityLocker.awaitCondition(entityId, (long) (sec * 1000), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package locks;
+
+import deadlockpreventer.DeadlockPreventer;
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.MultiEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class InterruptibleLocking {
+    private MultiEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>(100, false, new DeadlockPreventer<>());
+        silentLocker = new SilentLocker<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testInterruptedWaiterThrows() {
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            try {
+                entityLocker.lockInterruptibly(1);
+                fail();
+            } catch (InterruptedException e) {
+                assertFalse(Thread.currentThread().isInterrupted());
+                assertFalse(entityLocker.isLockedByCurrentThread(1));
+            } catch (DeadlockPreventedException e) {
+                fail();
+            }
+        });
+
+        awaitWaiting(subThread);
+        subThread.interrupt();
+        waitThread(subThread);
+
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testInterruptedWaiterLeavesWaitingThreads() {
+        final CountDownLatch subThreadWaiter = new CountDownLatch(1);
+        silentLocker.lock(2);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(1);
+            subThreadWaiter.countDown();
+            try {
+                entityLocker.lockInterruptibly(2);
+                fail();
+            } catch (InterruptedException e) {
+                assertTrue(entityLocker.isLockedByCurrentThread(1));
+            } catch (DeadlockPreventedException e) {
+                fail();
+            }
+            silentWaiter.await(mainThreadWaiter);
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        awaitWaiting(subThread);
+        subThread.interrupt();
+        while (entityLocker.waitersCount() > 0) {
+            sleep(0.01);
+        }
+
+        //Sub thread doesn't wait entity 2 anymore, so waiting its entity 1 doesn't close a cycle
+        final Thread lockerThread = THREAD_STARTER.startThread(() -> {
+            try {
+                entityLocker.lock(1);
+                entityLocker.unlock(1);
+            } catch (DeadlockPreventedException e) {
+                fail();
+            }
+        });
+
+        awaitWaiting(lockerThread);
+        mainThreadWaiter.countDown();
+        waitThread(lockerThread);
+        waitThread(subThread);
+
+        entityLocker.unlock(2);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testInterruptedGlobalLockIsReleased() {
+        silentLocker.lock(1);
+
+        final Thread globalThread = THREAD_STARTER.startThread(() -> {
+            try {
+                entityLocker.globalLockInterruptibly();
+                fail();
+            } catch (InterruptedException e) {
+                assertFalse(entityLocker.isLockedByCurrentThread(2));
+            } catch (DeadlockPreventedException e) {
+                fail();
+            }
+        });
+
+        awaitWaiting(globalThread);
+        globalThread.interrupt();
+        waitThread(globalThread);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(silentLocker.tryLockWithoutTime(2));
+            entityLocker.unlock(2);
+        });
+
+        waitThread(subThread);
+        entityLocker.unlock(1);
+        assertTrue(silentLocker.tryGlobalLock());
+        entityLocker.globalUnlock();
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testTimedLockKeepsInterruption() {
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertFalse(silentLocker.tryLockWithTime(1, TEST_TIMEOUT, TEST_TIME_UNIT));
+            assertTrue(Thread.interrupted());
+            assertFalse(silentLocker.tryGlobalLock(TEST_TIMEOUT, TEST_TIME_UNIT));
+            assertTrue(Thread.interrupted());
+        });
+
+        awaitWaiting(subThread);
+        subThread.interrupt();
+        while (subThread.isAlive()) {
+            subThread.interrupt();
+            sleep(0.01);
+        }
+        waitThread(subThread);
+
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testInterruptedCallerFailsFast() throws DeadlockPreventedException {
+        Thread.currentThread().interrupt();
+        try {
+            entityLocker.lockInterruptibly(1);
+            fail();
+        } catch (InterruptedException e) {
+            assertFalse(entityLocker.isLockedByCurrentThread(1));
+        }
+
+        Thread.currentThread().interrupt();
+        try {
+            entityLocker.globalLockInterruptibly();
+            fail();
+        } catch (InterruptedException e) {
+            assertTrue(silentLocker.tryLockWithoutTime(1));
+        }
+
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    private static void awaitWaiting(final Thread thread) {
+        while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+            sleep(0.01);
+        }
+    }
+}
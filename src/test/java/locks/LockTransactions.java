@@ -0,0 +1,148 @@
+package locks;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.EntityLocker;
+import entitylocker.LockTransaction;
+import entitylocker.MultiEntityLocker;
+import entitylocker.RetryPolicy;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class LockTransactions {
+    private EntityLocker<Integer> entityLocker;
+    private LockTransaction<Integer> transaction;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>();
+        transaction = new LockTransaction<>(entityLocker, new RetryPolicy(5, 1, 10, TimeUnit.MILLISECONDS));
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testCommitReleasesEntities() throws InterruptedException, DeadlockPreventedException {
+        final int heldCount = transaction.execute(scope -> {
+            scope.lock(1);
+            scope.lock(2);
+            scope.lock(1);
+            assertTrue(scope.tryLock(3, 1, TimeUnit.SECONDS));
+            assertTrue(entityLocker.isLockedByCurrentThread(1));
+            return scope.heldCount();
+        });
+
+        assertEquals(4, heldCount);
+        assertFalse(entityLocker.isLockedByCurrentThread(1));
+        assertEquals(0, entityLocker.currentSize());
+        assertEquals(1, transaction.metrics().commits());
+        assertEquals(1, transaction.metrics().successRate(), 0);
+    }
+
+    @Test
+    public void testExceptionReleasesEntities() throws InterruptedException, DeadlockPreventedException {
+        try {
+            transaction.execute(scope -> {
+                scope.lock(1);
+                throw new IllegalStateException();
+            });
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+
+        assertEquals(0, entityLocker.currentSize());
+        assertEquals(1, transaction.metrics().failures());
+        assertEquals(0, transaction.metrics().retries());
+    }
+
+    @Test
+    public void testDeadlockIsRetried() {
+        final CountDownLatch firstLocks = new CountDownLatch(2);
+
+        final Thread firstThread = THREAD_STARTER.startThread(() -> runCrossLocking(firstLocks, 1, 2));
+        final Thread secondThread = THREAD_STARTER.startThread(() -> runCrossLocking(firstLocks, 2, 1));
+
+        waitThread(firstThread);
+        waitThread(secondThread);
+
+        assertEquals(0, entityLocker.currentSize());
+        assertEquals(2, transaction.metrics().commits());
+        assertEquals(0, transaction.metrics().failures());
+        assertTrue(transaction.metrics().retries() > 0);
+        assertTrue(transaction.metrics().successRate() < 1);
+    }
+
+    @Test
+    public void testRetriesAreLimited() {
+        final AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            transaction.execute(scope -> {
+                attempts.incrementAndGet();
+                scope.lock(1);
+                throw new DeadlockPreventedException("Test deadlock", Thread.currentThread(), null);
+            });
+            fail();
+        } catch (DeadlockPreventedException | InterruptedException ignored) {
+        }
+
+        assertEquals(6, attempts.get());
+        assertEquals(0, entityLocker.currentSize());
+        assertEquals(5, transaction.metrics().retries());
+        assertEquals(1, transaction.metrics().failures());
+        assertEquals(0, transaction.metrics().successRate(), 0);
+    }
+
+    @Test
+    public void testScopeCannotBeUsedAfterFinish() throws InterruptedException, DeadlockPreventedException {
+        final LockTransaction.Scope<Integer> finishedScope = transaction.execute(scope -> scope);
+
+        try {
+            finishedScope.lock(1);
+            fail();
+        } catch (IllegalMonitorStateException ignored) {
+        }
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRetryPolicy() {
+        new RetryPolicy(1, 10, 1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Both threads lock their first entity before the second one, so one of them is aborted at least once.
+     * The latch is passed at once on retry
+     */
+    private void runCrossLocking(final CountDownLatch firstLocks, final int first, final int second) {
+        try {
+            transaction.execute(scope -> {
+                scope.lock(first);
+                firstLocks.countDown();
+                silentWaiter.await(firstLocks);
+                scope.lock(second);
+                return null;
+            });
+        } catch (DeadlockPreventedException | InterruptedException e) {
+            fail();
+        }
+    }
+}
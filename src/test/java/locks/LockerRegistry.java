@@ -0,0 +1,182 @@
+package locks;
+
+import deadlockpreventer.DeadlockPreventer;
+import deadlockpreventer.LockOrderPreventer;
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.EntityLockerRegistry;
+import entitylocker.MultiEntityLocker;
+import entitylocker.WaiterLimits;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class LockerRegistry {
+    private EntityLockerRegistry registry;
+    private MultiEntityLocker<Long> orders;
+    private MultiEntityLocker<String> sessions;
+    private SilentLocker<Long> silentOrders;
+    private SilentLocker<String> silentSessions;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        registry = new EntityLockerRegistry(4, new DeadlockPreventer<>());
+        orders = registry.register("order");
+        sessions = registry.register("session", new EntityLockerRegistry.TypeOptions(true, WaiterLimits.UNBOUNDED, true, 4));
+        silentOrders = new SilentLocker<>(orders);
+        silentSessions = new SilentLocker<>(sessions);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testCrossTypeDeadlockIsPrevented() {
+        silentOrders.lock(1L);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentSessions.lock("a");
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+            sleep(0.2);
+
+            //Main thread waits the session, so waiting the order closes a cycle through both lockers
+            try {
+                orders.lock(1L);
+                fail();
+            } catch (DeadlockPreventedException ignored) {
+            }
+            sessions.unlock("a");
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        mainThreadWaiter.countDown();
+        silentSessions.lock("a");
+
+        sessions.unlock("a");
+        orders.unlock(1L);
+        waitThread(subThread);
+    }
+
+    @Test
+    public void testGlobalLockBlocksAllTypes() {
+        final Thread globalThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(silentOrders.tryGlobalLock(TEST_TIMEOUT, TEST_TIME_UNIT));
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+            orders.globalUnlock();
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        assertFalse(silentSessions.tryLockWithoutTime("a"));
+        assertFalse(sessions.isLockedByCurrentThread("a"));
+        mainThreadWaiter.countDown();
+        waitThread(globalThread);
+
+        //Held session blocks global lock of orders
+        silentSessions.lock("a");
+        final Thread secondGlobalThread = THREAD_STARTER.startThread(() ->
+                assertFalse(silentOrders.tryGlobalLock(100, TimeUnit.MILLISECONDS)));
+        waitThread(secondGlobalThread);
+        sessions.unlock("a");
+    }
+
+    @Test
+    public void testEscalationCountsAllTypes() {
+        silentOrders.lock(1L);
+        silentOrders.lock(2L);
+        silentSessions.lock("a");
+        silentSessions.lock("b");
+
+        assertSame(Thread.currentThread(), orders.snapshot().globalThread());
+        final Thread lockerThread = THREAD_STARTER.startThread(() -> assertFalse(silentSessions.tryLockWithoutTime("c")));
+        waitThread(lockerThread);
+
+        sessions.unlock("b");
+        assertNull(sessions.snapshot().globalThread());
+        final Thread secondLockerThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(silentSessions.tryLockWithoutTime("c"));
+            sessions.unlock("c");
+        });
+        waitThread(secondLockerThread);
+
+        sessions.unlock("a");
+        orders.unlock(2L);
+        orders.unlock(1L);
+    }
+
+    @Test
+    public void testCrossTypeTransferIsAdoptedByGlobalLock() {
+        final Thread mainThread = Thread.currentThread();
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentOrders.lock(1L);
+            assertTrue(orders.transfer(1L, mainThread));
+        });
+        waitThread(subThread);
+
+        //Global lock of sessions waits the transfer of the order, so it must adopt it itself
+        assertTrue(silentSessions.tryGlobalLock(TEST_TIMEOUT, TEST_TIME_UNIT));
+        assertTrue(orders.isLockedByCurrentThread(1L));
+        sessions.globalUnlock();
+
+        orders.unlock(1L);
+        assertEquals(0, orders.currentSize());
+
+        final Thread globalThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(silentOrders.tryGlobalLock(TEST_TIMEOUT, TEST_TIME_UNIT));
+            orders.globalUnlock();
+        });
+        waitThread(globalThread);
+    }
+
+    @Test
+    public void testTypesAreIndependentEntities() {
+        final MultiEntityLocker<Long> customers = registry.register("customer");
+        assertSame(customers, registry.locker("customer"));
+
+        silentOrders.lock(1L);
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(new SilentLocker<>(customers).tryLockWithoutTime(1L));
+            customers.unlock(1L);
+        });
+        waitThread(subThread);
+        orders.unlock(1L);
+
+        try {
+            registry.register("customer");
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            registry.locker("product");
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLockOrderIsRejected() {
+        new EntityLockerRegistry(4, new LockOrderPreventer<>(Comparator.comparing(Object::toString)));
+    }
+}
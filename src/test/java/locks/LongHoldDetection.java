@@ -0,0 +1,118 @@
+package locks;
+
+import entitylocker.LockTableSnapshot;
+import entitylocker.LongHoldWatchdog;
+import entitylocker.MultiEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class LongHoldDetection {
+    private MultiEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>();
+        silentLocker = new SilentLocker<>(entityLocker);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testLongHoldIsReportedOnce() {
+        final List<LockTableSnapshot.Entry<Integer>> reported = new CopyOnWriteArrayList<>();
+        final List<StackTraceElement[]> stacks = new CopyOnWriteArrayList<>();
+        final CountDownLatch reportWaiter = new CountDownLatch(1);
+
+        try (final LongHoldWatchdog<Integer> watchdog = new LongHoldWatchdog<>(entityLocker, 100, TimeUnit.MILLISECONDS,
+                (entry, ownerStack) -> {
+                    reported.add(entry);
+                    stacks.add(ownerStack);
+                    reportWaiter.countDown();
+                })) {
+            final Thread ownerThread = THREAD_STARTER.startThread(() -> {
+                silentLocker.lock(1);
+                subThreadWaiter.countDown();
+                silentWaiter.await(reportWaiter);
+                sleep(0.3);
+                entityLocker.unlock(1);
+            });
+            silentWaiter.await(subThreadWaiter);
+
+            final Thread waiterThread = THREAD_STARTER.startThread(() -> {
+                silentLocker.lock(1);
+                entityLocker.unlock(1);
+            });
+
+            waitThread(ownerThread);
+            waitThread(waiterThread);
+
+            assertEquals(1, watchdog.longHolds());
+            final LockTableSnapshot.Entry<Integer> entry = reported.get(0);
+            assertEquals(Integer.valueOf(1), entry.entityId());
+            assertSame(ownerThread, entry.owner());
+            assertTrue(entry.holdTime(TimeUnit.MILLISECONDS) >= 100);
+            assertTrue(Arrays.stream(stacks.get(0)).anyMatch(element -> element.getClassName().startsWith(LongHoldDetection.class.getName())));
+        }
+    }
+
+    @Test
+    public void testShortHoldsAreNotReported() throws InterruptedException {
+        try (final LongHoldWatchdog<Integer> watchdog = new LongHoldWatchdog<>(entityLocker, 200, TimeUnit.MILLISECONDS,
+                (entry, ownerStack) -> fail())) {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(600);
+            while (System.nanoTime() < deadline) {
+                silentLocker.lock(1);
+                TimeUnit.MILLISECONDS.sleep(10);
+                entityLocker.unlock(1);
+            }
+            assertEquals(0, watchdog.longHolds());
+        }
+    }
+
+    @Test
+    public void testNewHoldOfTheSameEntityIsReportedAgain() {
+        final CountDownLatch reportWaiter = new CountDownLatch(2);
+
+        try (final LongHoldWatchdog<Integer> watchdog = new LongHoldWatchdog<>(entityLocker, 50, TimeUnit.MILLISECONDS,
+                (entry, ownerStack) -> reportWaiter.countDown())) {
+            silentLocker.lock(1);
+            sleep(0.3);
+            entityLocker.unlock(1);
+
+            silentLocker.lock(1);
+            silentWaiter.await(reportWaiter);
+            entityLocker.unlock(1);
+            assertEquals(2, watchdog.longHolds());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreshold() {
+        new LongHoldWatchdog<>(entityLocker, 0, TimeUnit.SECONDS).close();
+    }
+}
@@ -0,0 +1,263 @@
+package locks;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.MappedEntityLocker;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import utils.SilentLocker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class MappedLocking {
+    private static final int CAPACITY = 1024;
+    private static final long LEASE_MILLIS = 300;
+
+    private Path file;
+    private MappedEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        file = temporaryFolder.getRoot().toPath().resolve("locks");
+        entityLocker = createLocker(CAPACITY);
+        silentLocker = new SilentLocker<>(entityLocker);
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        entityLocker.close();
+        checkException();
+    }
+
+    @Test
+    public void testReentrantLocking() {
+        silentLocker.lock(1);
+        silentLocker.lock(1);
+        assertTrue(entityLocker.isLockedByCurrentThread(1));
+        assertEquals(1, entityLocker.currentSize());
+
+        entityLocker.unlock(1);
+        assertTrue(entityLocker.isLockedByCurrentThread(1));
+        entityLocker.unlock(1);
+        assertFalse(entityLocker.isLockedByCurrentThread(1));
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testUnlockErrors() {
+        try {
+            entityLocker.unlock(1);
+            fail();
+        } catch (IllegalMonitorStateException ignored) {
+        }
+
+        silentLocker.lock(1);
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            try {
+                entityLocker.unlock(1);
+                fail();
+            } catch (IllegalAccessError ignored) {
+            }
+        });
+        waitThread(subThread);
+
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testLockersOfOneFileExcludeEachOther() throws IOException {
+        try (final MappedEntityLocker<Integer> otherLocker = createLocker(CAPACITY)) {
+            final SilentLocker<Integer> otherSilentLocker = new SilentLocker<>(otherLocker);
+            silentLocker.lock(1);
+
+            assertFalse(otherSilentLocker.tryLockWithoutTime(1));
+            final long start = System.nanoTime();
+            assertFalse(otherSilentLocker.tryLockWithTime(1, 100, TimeUnit.MILLISECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+            assertTrue(otherSilentLocker.tryLockWithoutTime(2));
+            assertEquals(2, otherLocker.currentSize());
+
+            entityLocker.unlock(1);
+            assertTrue(otherSilentLocker.tryLockWithoutTime(1));
+            otherLocker.unlock(1);
+            otherLocker.unlock(2);
+        }
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testGlobalLockWaitsOtherLocker() throws IOException {
+        try (final MappedEntityLocker<Integer> otherLocker = createLocker(CAPACITY)) {
+            final SilentLocker<Integer> otherSilentLocker = new SilentLocker<>(otherLocker);
+            silentLocker.lock(1);
+
+            assertFalse(otherSilentLocker.tryGlobalLock(100, TimeUnit.MILLISECONDS));
+            assertTrue(silentLocker.tryLockWithoutTime(2));
+            entityLocker.unlock(2);
+            entityLocker.unlock(1);
+
+            otherSilentLocker.globalLock();
+            assertFalse(silentLocker.tryLockWithoutTime(2));
+            assertTrue(otherSilentLocker.tryLockWithoutTime(2));
+            otherLocker.unlock(2);
+            otherLocker.globalUnlock();
+
+            assertTrue(silentLocker.tryLockWithoutTime(2));
+            entityLocker.unlock(2);
+        }
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testFullTableIsCompacted() throws IOException {
+        recreateLocker(2);
+
+        silentLocker.lock(1);
+        entityLocker.unlock(1);
+        silentLocker.lock(2);
+        silentLocker.lock(3);
+        assertEquals(2, entityLocker.currentSize());
+
+        try {
+            silentLocker.lock(4);
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+
+        entityLocker.unlock(3);
+        entityLocker.unlock(2);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testCompactionKeepsHeldEntities() throws IOException {
+        recreateLocker(16);
+        for (int i = 0; i < 16; i++) {
+            silentLocker.lock(i);
+        }
+        for (int i = 0; i < 16; i += 2) {
+            entityLocker.unlock(i);
+        }
+
+        //Keys of held entities are shifted during compaction, other locker must still find them
+        silentLocker.lock(100);
+        try (final MappedEntityLocker<Integer> otherLocker = createLocker(16)) {
+            final SilentLocker<Integer> otherSilentLocker = new SilentLocker<>(otherLocker);
+            for (int i = 1; i < 16; i += 2) {
+                assertFalse(otherSilentLocker.tryLockWithoutTime(i));
+            }
+            assertFalse(otherSilentLocker.tryLockWithoutTime(100));
+
+            //Held entities of both lockers take all slots
+            for (int i = 0; i < 14; i += 2) {
+                assertTrue(otherSilentLocker.tryLockWithoutTime(i));
+            }
+            for (int i = 0; i < 14; i += 2) {
+                otherLocker.unlock(i);
+            }
+        }
+
+        entityLocker.unlock(100);
+        for (int i = 1; i < 16; i += 2) {
+            entityLocker.unlock(i);
+        }
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testLiveLockerIsNotReclaimed() throws IOException {
+        try (final MappedEntityLocker<Integer> otherLocker = createLocker(CAPACITY)) {
+            final SilentLocker<Integer> otherSilentLocker = new SilentLocker<>(otherLocker);
+            silentLocker.lock(1);
+
+            //Heartbeat keeps the lease for many lease periods
+            assertFalse(otherSilentLocker.tryLockWithTime(1, (int) LEASE_MILLIS * 3, TimeUnit.MILLISECONDS));
+            assertTrue(entityLocker.isLockedByCurrentThread(1));
+            entityLocker.unlock(1);
+        }
+    }
+
+    @Test
+    public void testReclaimedEntityIsNotHeld() throws IOException {
+        silentLocker.lock(1);
+        //Closed locker is dead for other processes as a process which was paused longer than lease
+        entityLocker.close();
+
+        try (final MappedEntityLocker<Integer> otherLocker = createLocker(CAPACITY)) {
+            assertTrue(new SilentLocker<>(otherLocker).tryLockWithoutTime(1));
+            assertFalse(entityLocker.isLockedByCurrentThread(1));
+            otherLocker.unlock(1);
+        }
+    }
+
+    @Test
+    public void testLockOfCrashedProcessIsReclaimed() throws IOException, InterruptedException, DeadlockPreventedException {
+        final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        final Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                CrashedProcess.class.getName(), file.toString())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        //Output of the process contains its logs
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            do {
+                line = reader.readLine();
+                assertNotNull(line);
+            } while (!CrashedProcess.LOCKED.equals(line));
+        }
+        assertEquals(0, process.waitFor());
+
+        //Lock is reclaimed when lease of crashed process is elapsed
+        assertTrue(entityLocker.tryLock(1, TEST_TIMEOUT, TEST_TIME_UNIT));
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    private void recreateLocker(final int capacity) throws IOException {
+        entityLocker.close();
+        file = temporaryFolder.getRoot().toPath().resolve("small");
+        entityLocker = createLocker(capacity);
+        silentLocker = new SilentLocker<>(entityLocker);
+    }
+
+    private MappedEntityLocker<Integer> createLocker(final int capacity) throws IOException {
+        return new MappedEntityLocker<>(file, capacity, Integer::longValue, LEASE_MILLIS);
+    }
+
+    /**
+     * Process which locks entity 1 and halts without unlocking
+     */
+    public static class CrashedProcess {
+        static final String LOCKED = "locked";
+
+        public static void main(final String[] args) throws Exception {
+            final MappedEntityLocker<Integer> locker = new MappedEntityLocker<>(new File(args[0]).toPath(), CAPACITY,
+                    Integer::longValue, LEASE_MILLIS);
+            locker.lock(1);
+            System.out.println(LOCKED);
+            System.out.flush();
+            Runtime.getRuntime().halt(0);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package locks;
+
+import deadlockpreventer.DeadlockPreventer;
+import entitylocker.MultiEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.SilentLocker;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class OptimisticReads {
+    private MultiEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>(100, false, new DeadlockPreventer<>());
+        silentLocker = new SilentLocker<>(entityLocker);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testStampOfFreeEntityIsValid() {
+        final long stamp = entityLocker.tryOptimisticRead(1);
+        assertNotEquals(0, stamp);
+        assertTrue(entityLocker.validate(1, stamp));
+        assertFalse(entityLocker.validate(1, 0));
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testLockedEntityHasNoStamp() {
+        silentLocker.lock(1);
+        assertEquals(0, entityLocker.tryOptimisticRead(1));
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> assertEquals(0, entityLocker.tryOptimisticRead(1)));
+        waitThread(subThread);
+
+        entityLocker.unlock(1);
+        assertNotEquals(0, entityLocker.tryOptimisticRead(1));
+    }
+
+    @Test
+    public void testLockInvalidatesStamp() {
+        final long stamp = entityLocker.tryOptimisticRead(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(1);
+            entityLocker.unlock(1);
+        });
+        waitThread(subThread);
+
+        assertFalse(entityLocker.validate(1, stamp));
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testReentrantLockDoesntInvalidateTwice() {
+        silentLocker.lock(1);
+        silentLocker.lock(1);
+        entityLocker.unlock(1);
+        entityLocker.unlock(1);
+
+        final long stamp = entityLocker.tryOptimisticRead(1);
+        assertTrue(entityLocker.validate(1, stamp));
+    }
+
+    @Test
+    public void testGlobalLockInvalidatesAllStamps() {
+        final long[] stamps = new long[10];
+        for (int i = 0; i < stamps.length; i++) {
+            stamps[i] = entityLocker.tryOptimisticRead(i);
+        }
+
+        final Thread globalThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.globalLock();
+            entityLocker.globalUnlock();
+        });
+        waitThread(globalThread);
+
+        for (int i = 0; i < stamps.length; i++) {
+            assertFalse(entityLocker.validate(i, stamps[i]));
+        }
+    }
+
+    @Test
+    public void testNoStampDuringGlobalLock() {
+        silentLocker.globalLock();
+        final Thread subThread = THREAD_STARTER.startThread(() -> assertEquals(0, entityLocker.tryOptimisticRead(1)));
+        waitThread(subThread);
+        entityLocker.globalUnlock();
+
+        assertNotEquals(0, entityLocker.tryOptimisticRead(1));
+    }
+
+    @Test
+    public void testValidatedReadIsConsistent() {
+        //Writer keeps both values equal under the lock of the entity
+        final int[] values = {0, 0};
+        final Thread writerThread = THREAD_STARTER.startThread(() -> {
+            for (int i = 1; i <= 10_000; i++) {
+                silentLocker.lock(1);
+                values[0] = i;
+                values[1] = i;
+                entityLocker.unlock(1);
+            }
+        });
+
+        while (writerThread.isAlive()) {
+            final long stamp = entityLocker.tryOptimisticRead(1);
+            int first = values[0];
+            int second = values[1];
+            if (!entityLocker.validate(1, stamp)) {
+                silentLocker.lock(1);
+                first = values[0];
+                second = values[1];
+                entityLocker.unlock(1);
+            }
+            assertEquals(first, second);
+        }
+        waitThread(writerThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+}
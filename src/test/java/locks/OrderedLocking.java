@@ -0,0 +1,152 @@
+package locks;
+
+import deadlockpreventer.LockOrderPreventer;
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.EntityLocker;
+import entitylocker.MultiEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.SilentLocker;
+
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+/**
+ * Tests run with debug logging, so the order is checked
+ */
+public class OrderedLocking {
+    private EntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>(Comparator.<Integer>naturalOrder(), false);
+        silentLocker = new SilentLocker<>(entityLocker);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testAscendingOrder() {
+        silentLocker.lock(1);
+        silentLocker.lock(2);
+        silentLocker.lock(5);
+        assertEquals(3, entityLocker.currentSize());
+
+        entityLocker.unlock(5);
+        entityLocker.unlock(2);
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test(expected = DeadlockPreventedException.class)
+    public void testOutOfOrderFailsFast() throws DeadlockPreventedException {
+        silentLocker.lock(5);
+        try {
+            entityLocker.lock(3);
+        } finally {
+            assertFalse(entityLocker.isLockedByCurrentThread(3));
+            entityLocker.unlock(5);
+        }
+    }
+
+    @Test
+    public void testReentrantLockOfHeldEntity() {
+        silentLocker.lock(1);
+        silentLocker.lock(5);
+        silentLocker.lock(1);
+
+        entityLocker.unlock(1);
+        entityLocker.unlock(5);
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testOrderAfterUnlock() {
+        silentLocker.lock(1);
+        silentLocker.lock(5);
+        entityLocker.unlock(5);
+
+        silentLocker.lock(3);
+
+        entityLocker.unlock(3);
+        entityLocker.unlock(1);
+    }
+
+    @Test(expected = DeadlockPreventedException.class)
+    public void testGlobalLockAfterEntity() throws DeadlockPreventedException {
+        silentLocker.lock(1);
+        try {
+            entityLocker.globalLock();
+        } finally {
+            entityLocker.unlock(1);
+        }
+    }
+
+    @Test
+    public void testEntityAfterGlobalLock() {
+        silentLocker.globalLock();
+        silentLocker.lock(1);
+
+        entityLocker.unlock(1);
+        entityLocker.globalUnlock();
+    }
+
+    @Test
+    public void testOrderIsNotCheckedWithoutDebugMode() {
+        entityLocker = new MultiEntityLocker<>(100, false,
+                new LockOrderPreventer<>(Comparator.<Integer>naturalOrder(), false));
+        silentLocker = new SilentLocker<>(entityLocker);
+
+        silentLocker.lock(5);
+        silentLocker.lock(3);
+
+        entityLocker.unlock(5);
+        entityLocker.unlock(3);
+    }
+
+    @Test
+    public void testConcurrentAscendingLocking() {
+        final int threads = 4;
+        final int iterations = 500;
+        final CountDownLatch finished = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            final int shift = i;
+            THREAD_STARTER.startThread(() -> {
+                for (int j = 0; j < iterations; j++) {
+                    final int first = (j + shift) % 8;
+                    silentLocker.lock(first);
+                    silentLocker.lock(first + 1);
+                    silentLocker.lock(first + 3);
+
+                    entityLocker.unlock(first + 3);
+                    entityLocker.unlock(first + 1);
+                    entityLocker.unlock(first);
+                }
+                finished.countDown();
+            });
+        }
+
+        try {
+            assertTrue(finished.await(TEST_TIMEOUT, TEST_TIME_UNIT));
+        } catch (InterruptedException e) {
+            fail();
+        }
+        assertEquals(0, entityLocker.currentSize());
+    }
+}
@@ -0,0 +1,213 @@
+package locks;
+
+import deadlockpreventer.DeadlockPreventer;
+import entitylocker.MultiEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class OwnershipTransfer {
+    private DeadlockPreventer<Integer> deadlockPreventer;
+    private MultiEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        createLocker(100);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testTargetUnlocksTransferredEntity() {
+        silentLocker.lock(1);
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentWaiter.await(subThreadWaiter);
+            assertTrue(entityLocker.isLockedByCurrentThread(1));
+
+            entityLocker.unlock(1);
+            assertTrue(entityLocker.isLockedByCurrentThread(1));
+            entityLocker.unlock(1);
+            assertFalse(entityLocker.isLockedByCurrentThread(1));
+        });
+
+        assertTrue(entityLocker.transfer(1, subThread));
+        assertFalse(entityLocker.isLockedByCurrentThread(1));
+        subThreadWaiter.countDown();
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testSourceCannotUnlockTransferredEntity() {
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentWaiter.await(subThreadWaiter);
+            mainThreadWaiter.countDown();
+            silentWaiter.await(subThreadWaiter);
+        });
+
+        assertTrue(entityLocker.transfer(1, subThread));
+        try {
+            entityLocker.unlock(1);
+            fail();
+        } catch (IllegalAccessError e) {
+            subThreadWaiter.countDown();
+        }
+
+        waitThread(subThread);
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void testTransferWithoutLock() {
+        entityLocker.transfer(1, new Thread());
+    }
+
+    @Test
+    public void testDeadlockPreventerKnowsNewOwner() {
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentWaiter.await(subThreadWaiter);
+            silentLocker.lock(2);
+            assertEquals(Thread.currentThread(), deadlockPreventer.lockerThread(1));
+            mainThreadWaiter.countDown();
+
+            entityLocker.unlock(2);
+            entityLocker.unlock(1);
+        });
+
+        assertTrue(entityLocker.transfer(1, subThread));
+        assertNull(deadlockPreventer.lockerThread(1));
+        subThreadWaiter.countDown();
+
+        silentWaiter.await(mainThreadWaiter);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    /**
+     * Transferred holds are moved from escalation counter of caller thread to counter of target thread
+     */
+    @Test
+    public void testEscalationCountersMoved() {
+        createLocker(3);
+        silentLocker.lock(1);
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentWaiter.await(subThreadWaiter);
+            silentLocker.lock(2);
+            assertTrue(entityLocker.isLockedByCurrentThread(100));
+
+            entityLocker.unlock(2);
+            assertFalse(entityLocker.isLockedByCurrentThread(100));
+            entityLocker.unlock(1);
+            entityLocker.unlock(1);
+        });
+
+        assertTrue(entityLocker.transfer(1, subThread));
+        silentLocker.lock(5);
+        assertFalse(entityLocker.isLockedByCurrentThread(100));
+        entityLocker.unlock(5);
+        subThreadWaiter.countDown();
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testGlobalLockWaitsTransferredEntity() {
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentWaiter.await(subThreadWaiter);
+            entityLocker.unlock(1);
+        });
+
+        assertTrue(entityLocker.transfer(1, subThread));
+
+        final Thread globalThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.globalLock();
+            mainThreadWaiter.countDown();
+            entityLocker.globalUnlock();
+        });
+
+        sleep(0.2);
+        assertEquals(1, mainThreadWaiter.getCount());
+
+        subThreadWaiter.countDown();
+        silentWaiter.await(mainThreadWaiter);
+
+        waitThread(subThread);
+        waitThread(globalThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testStagedPipeline() {
+        final int stages = 4;
+        final Thread[] threads = new Thread[stages];
+        final CountDownLatch[] starts = new CountDownLatch[stages];
+        final int[] counter = new int[1];
+
+        for (int i = stages - 1; i >= 0; i--) {
+            final int stage = i;
+            starts[stage] = new CountDownLatch(1);
+            threads[stage] = THREAD_STARTER.startThread(() -> {
+                silentWaiter.await(starts[stage]);
+                assertTrue(entityLocker.isLockedByCurrentThread(1));
+                counter[0]++;
+
+                if (stage == stages - 1) {
+                    entityLocker.unlock(1);
+                } else {
+                    assertTrue(entityLocker.transfer(1, threads[stage + 1]));
+                    starts[stage + 1].countDown();
+                }
+            });
+        }
+
+        silentLocker.lock(1);
+        assertTrue(entityLocker.transfer(1, threads[0]));
+        starts[0].countDown();
+
+        for (final Thread thread : threads) {
+            waitThread(thread);
+        }
+        assertEquals(stages, counter[0]);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    private void createLocker(final int minLocksBeforeGlobal) {
+        deadlockPreventer = new DeadlockPreventer<>();
+        entityLocker = new MultiEntityLocker<>(minLocksBeforeGlobal, false, deadlockPreventer);
+        silentLocker = new SilentLocker<>(entityLocker);
+    }
+}
@@ -0,0 +1,245 @@
+package locks;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.EntityLocker;
+import entitylocker.PathEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class PathLocking {
+    private EntityLocker<String> entityLocker;
+    private SilentLocker<String> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new PathEntityLocker();
+        silentLocker = new SilentLocker<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testNodeExcludesAncestorsAndDescendants() {
+        silentLocker.lock("tenant/project");
+        assertTrue(entityLocker.isLockedByCurrentThread("tenant/project/document"));
+        assertFalse(entityLocker.isLockedByCurrentThread("tenant"));
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertFalse(silentLocker.tryLockWithoutTime("tenant/project"));
+            assertFalse(silentLocker.tryLockWithoutTime("tenant/project/document"));
+            assertFalse(silentLocker.tryLockWithoutTime("tenant"));
+            assertFalse(entityLocker.isLockedByCurrentThread("tenant/project/document"));
+
+            //Siblings and nodes with the same prefix don't conflict
+            assertTrue(silentLocker.tryLockWithoutTime("tenant/other"));
+            assertTrue(silentLocker.tryLockWithoutTime("tenant/project2"));
+            entityLocker.unlock("tenant/project2");
+            entityLocker.unlock("tenant/other");
+        });
+        waitThread(subThread);
+
+        entityLocker.unlock("tenant/project");
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testAncestorWaitsDescendant() {
+        silentLocker.lock("tenant/project/document");
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            subThreadWaiter.countDown();
+            silentLocker.lock("tenant");
+            assertTrue(entityLocker.isLockedByCurrentThread("tenant/project/document"));
+            entityLocker.unlock("tenant");
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        sleep(0.2);
+        assertTrue(subThread.isAlive());
+
+        entityLocker.unlock("tenant/project/document");
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testDescendantWaitsAncestor() {
+        silentLocker.lock("tenant");
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertFalse(silentLocker.tryLockWithTime("tenant/project", 100, TimeUnit.MILLISECONDS));
+            subThreadWaiter.countDown();
+            silentLocker.lock("tenant/project");
+            entityLocker.unlock("tenant/project");
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        sleep(0.2);
+        assertTrue(subThread.isAlive());
+
+        entityLocker.unlock("tenant");
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testOwnDescendantsDontBlockAncestor() {
+        silentLocker.lock("tenant/project/document");
+        silentLocker.lock("tenant/project/other");
+        assertTrue(silentLocker.tryLockWithoutTime("tenant"));
+        assertEquals(3, entityLocker.currentSize());
+
+        entityLocker.unlock("tenant/project/document");
+        entityLocker.unlock("tenant/project/other");
+
+        final Thread subThread = THREAD_STARTER.startThread(() ->
+                assertFalse(silentLocker.tryLockWithoutTime("tenant/project/document")));
+        waitThread(subThread);
+
+        entityLocker.unlock("tenant");
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testReentrantLockingAndErrors() {
+        try {
+            entityLocker.unlock("tenant");
+            fail();
+        } catch (IllegalMonitorStateException ignored) {
+        }
+
+        silentLocker.lock("tenant/project");
+        silentLocker.lock("tenant/project");
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            try {
+                entityLocker.unlock("tenant/project");
+                fail();
+            } catch (IllegalAccessError ignored) {
+            }
+        });
+        waitThread(subThread);
+
+        entityLocker.unlock("tenant/project");
+        assertTrue(entityLocker.isLockedByCurrentThread("tenant/project"));
+        entityLocker.unlock("tenant/project");
+        assertFalse(entityLocker.isLockedByCurrentThread("tenant/project"));
+
+        //Intentions are released with the last hold
+        final Thread lockerThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(silentLocker.tryLockWithoutTime("tenant"));
+            entityLocker.unlock("tenant");
+        });
+        waitThread(lockerThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testHolderOfEntitiesDoesntWaitIntentions() {
+        silentLocker.lock("tenant/project/document");
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock("other");
+            try {
+                entityLocker.lock("tenant");
+                fail();
+            } catch (DeadlockPreventedException e) {
+                assertEquals(Thread.currentThread(), e.failThread());
+            }
+            entityLocker.unlock("other");
+        });
+        waitThread(subThread);
+
+        entityLocker.unlock("tenant/project/document");
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testYoungerHolderDoesntWaitAncestor() {
+        silentLocker.lock("tenant/project");
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock("other");
+            subThreadWaiter.countDown();
+            try {
+                entityLocker.lock("tenant/project/document");
+                fail();
+            } catch (DeadlockPreventedException e) {
+                assertEquals(Thread.currentThread(), e.failThread());
+            }
+            silentWaiter.await(mainThreadWaiter);
+            entityLocker.unlock("other");
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        assertFalse(silentLocker.tryLockWithTime("other", 100, TimeUnit.MILLISECONDS));
+        mainThreadWaiter.countDown();
+        silentLocker.lock("other");
+
+        entityLocker.unlock("other");
+        entityLocker.unlock("tenant/project");
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testGlobalLockWaitsNodes() {
+        silentLocker.lock("tenant/project");
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertFalse(silentLocker.tryGlobalLock(100, TimeUnit.MILLISECONDS));
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+
+            assertTrue(silentLocker.tryGlobalLock(TEST_TIMEOUT, TEST_TIME_UNIT));
+            assertTrue(entityLocker.isLockedByCurrentThread("tenant/project"));
+            entityLocker.globalUnlock();
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        entityLocker.unlock("tenant/project");
+        mainThreadWaiter.countDown();
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testCustomSeparator() {
+        entityLocker = new PathEntityLocker('.');
+        silentLocker = new SilentLocker<>(entityLocker);
+        silentLocker.lock("tenant.project");
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertFalse(silentLocker.tryLockWithoutTime("tenant"));
+            assertTrue(silentLocker.tryLockWithoutTime("tenant/project"));
+            entityLocker.unlock("tenant/project");
+        });
+        waitThread(subThread);
+
+        entityLocker.unlock("tenant.project");
+    }
+}
@@ -0,0 +1,292 @@
+package locks;
+
+import deadlockpreventer.DeadlockPreventer;
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.MultiEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class RangeLocking {
+    private MultiEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>(100, false, new DeadlockPreventer<>());
+        silentLocker = new SilentLocker<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testRangeExcludesEntitiesAndRangesOfOtherThreads() throws DeadlockPreventedException {
+        entityLocker.lockRange(10, 20);
+        assertTrue(entityLocker.isLockedByCurrentThread(15));
+        assertFalse(entityLocker.isLockedByCurrentThread(21));
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertFalse(silentLocker.tryLockWithoutTime(10));
+            assertFalse(silentLocker.tryLockWithoutTime(20));
+            assertFalse(entityLocker.isLockedByCurrentThread(15));
+            assertFalse(tryLockRange(15, 30));
+            assertFalse(tryLockRange(0, 10));
+
+            assertTrue(tryLockRange(21, 30));
+            entityLocker.unlockRange(21, 30);
+            assertTrue(silentLocker.tryLockWithoutTime(9));
+            entityLocker.unlock(9);
+        });
+        waitThread(subThread);
+
+        //Owner of the range locks its entities as usual
+        silentLocker.lock(15);
+        entityLocker.unlock(15);
+        entityLocker.unlockRange(10, 20);
+
+        final Thread lockerThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(silentLocker.tryLockWithoutTime(15));
+            entityLocker.unlock(15);
+        });
+        waitThread(lockerThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testEntityLockerWaitsRange() throws DeadlockPreventedException {
+        entityLocker.lockRange(10, 20);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            subThreadWaiter.countDown();
+            silentLocker.lock(15);
+            assertFalse(entityLocker.isLockedByCurrentThread(16));
+            entityLocker.unlock(15);
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        sleep(0.2);
+        assertTrue(subThread.isAlive());
+
+        entityLocker.unlockRange(10, 20);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testRangeWaitsLockedEntities() throws DeadlockPreventedException {
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(15);
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+            sleep(0.2);
+            entityLocker.unlock(15);
+        });
+        silentWaiter.await(subThreadWaiter);
+
+        assertFalse(tryLockRange(10, 20));
+        assertTrue(tryLockRange(16, 20));
+        entityLocker.unlockRange(16, 20);
+
+        mainThreadWaiter.countDown();
+        entityLocker.lockRange(10, 20);
+        assertFalse(subThread.isAlive());
+        entityLocker.unlockRange(10, 20);
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testHolderOfEntitiesDoesntWaitRange() throws DeadlockPreventedException {
+        entityLocker.lockRange(10, 20);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(1);
+            try {
+                entityLocker.lock(15);
+                fail();
+            } catch (DeadlockPreventedException e) {
+                assertEquals(Thread.currentThread(), e.failThread());
+            }
+            entityLocker.unlock(1);
+        });
+        waitThread(subThread);
+
+        entityLocker.unlockRange(10, 20);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testDeadlockBetweenRangeAndEntityPrevented() {
+        silentLocker.lock(1);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(15);
+            subThreadWaiter.countDown();
+            silentLocker.lock(1);
+            entityLocker.unlock(1);
+            entityLocker.unlock(15);
+        });
+        silentWaiter.await(subThreadWaiter);
+        while (subThread.getState() != Thread.State.WAITING) {
+            sleep(0.01);
+        }
+
+        try {
+            entityLocker.lockRange(10, 20);
+            fail();
+        } catch (DeadlockPreventedException e) {
+            assertEquals(Thread.currentThread(), e.failThread());
+        }
+
+        //Failed range doesn't block its entities
+        entityLocker.unlock(1);
+        waitThread(subThread);
+        assertTrue(silentLocker.tryLockWithoutTime(15));
+        entityLocker.unlock(15);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testGlobalLockWaitsRange() throws DeadlockPreventedException {
+        entityLocker.lockRange(10, 20);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertFalse(silentLocker.tryGlobalLock(100, TimeUnit.MILLISECONDS));
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+
+            assertTrue(silentLocker.tryGlobalLock(TEST_TIMEOUT, TEST_TIME_UNIT));
+            entityLocker.globalUnlock();
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        entityLocker.unlockRange(10, 20);
+        mainThreadWaiter.countDown();
+
+        waitThread(subThread);
+    }
+
+    @Test
+    public void testReentrantRangeAndErrors() throws DeadlockPreventedException {
+        try {
+            entityLocker.lockRange(20, 10);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        try {
+            entityLocker.unlockRange(10, 20);
+            fail();
+        } catch (IllegalMonitorStateException ignored) {
+        }
+
+        entityLocker.lockRange(10, 20);
+        entityLocker.lockRange(10, 20);
+        try {
+            entityLocker.lockRange(15, 25);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            try {
+                entityLocker.unlockRange(10, 20);
+                fail();
+            } catch (IllegalAccessError ignored) {
+            }
+        });
+        waitThread(subThread);
+
+        entityLocker.unlockRange(10, 20);
+        assertTrue(entityLocker.isLockedByCurrentThread(15));
+        entityLocker.unlockRange(10, 20);
+        assertFalse(entityLocker.isLockedByCurrentThread(15));
+    }
+
+    @Test
+    public void testRangeInvalidatesOptimisticReads() throws DeadlockPreventedException {
+        final long stamp = entityLocker.tryOptimisticRead(15);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(tryLockRange(10, 20));
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+            entityLocker.unlockRange(10, 20);
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        assertEquals(0, entityLocker.tryOptimisticRead(15));
+        mainThreadWaiter.countDown();
+        waitThread(subThread);
+
+        assertFalse(entityLocker.validate(15, stamp));
+    }
+
+    /**
+     * The first hold of a range scans the whole table, entities out of the range are skipped without waiting
+     */
+    @Test
+    public void testRangeInLargeTable() throws DeadlockPreventedException {
+        final int entities = 50_000;
+        entityLocker = new MultiEntityLocker<>(Integer.MAX_VALUE, false, new DeadlockPreventer<>());
+        silentLocker = new SilentLocker<>(entityLocker);
+
+        final AtomicBoolean isReleased = new AtomicBoolean();
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            for (int i = 0; i < entities; i++) {
+                silentLocker.lock(i);
+            }
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+            sleep(0.2);
+            isReleased.set(true);
+            assertEquals(entities, entityLocker.unlockAllHeldByCurrentThread().size());
+        });
+        silentWaiter.await(subThreadWaiter);
+
+        assertTrue(tryLockRange(entities, entities * 2));
+        entityLocker.unlockRange(entities, entities * 2);
+        assertFalse(tryLockRange(entities - 10, entities));
+
+        mainThreadWaiter.countDown();
+        entityLocker.lockRange(entities / 2, entities / 2 + 10);
+        assertTrue(isReleased.get());
+        entityLocker.unlockRange(entities / 2, entities / 2 + 10);
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    private boolean tryLockRange(final int from, final int to) {
+        try {
+            return entityLocker.tryLockRange(from, to, 100, TimeUnit.MILLISECONDS);
+        } catch (DeadlockPreventedException e) {
+            fail();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,172 @@
+package locks;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.EntityLocker;
+import entitylocker.ShardedEntityLocker;
+import locks.entity.SimpleEntity;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class Sharding {
+    private EntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 15;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+    private SimpleEntity mainEntity;
+    private SimpleEntity subEntity;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        //Entities 1 and 2 are in different partitions
+        entityLocker = new ShardedEntityLocker<>(2);
+        silentLocker = new SilentLocker<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+        mainEntity = new SimpleEntity(1);
+        subEntity = new SimpleEntity(2);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testEvaluateConcurrentlyDifferentEntities() {
+        final int threadsCount = 100;
+        final CountDownLatch waitThreadsLockEntities = new CountDownLatch(threadsCount);
+        final CountDownLatch threadsUnlockEntities = new CountDownLatch(threadsCount);
+
+        for (int i = 0; i < threadsCount; i++) {
+            final int entityId = i;
+            THREAD_STARTER.startThread(() -> {
+                silentLocker.lock(entityId);
+                waitThreadsLockEntities.countDown();
+
+                silentWaiter.await(mainThreadWaiter);
+
+                entityLocker.unlock(entityId);
+                threadsUnlockEntities.countDown();
+            });
+        }
+        silentWaiter.await(waitThreadsLockEntities);
+        assertEquals(threadsCount, entityLocker.currentSize());
+
+        mainThreadWaiter.countDown();
+        silentWaiter.await(threadsUnlockEntities);
+
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testCrossPartitionDeadlockPrevented() {
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(mainEntity.id);
+
+            silentWaiter.await(subThreadWaiter);
+
+            silentLocker.lock(subEntity.id);
+            entityLocker.unlock(subEntity.id);
+            entityLocker.unlock(mainEntity.id);
+        });
+
+        silentLocker.lock(subEntity.id);
+
+        subThreadWaiter.countDown();
+        sleep(1);
+
+        try {
+            entityLocker.lock(mainEntity.id);
+            fail();
+        } catch (DeadlockPreventedException e) {
+            assertEquals(Thread.currentThread(), e.failThread());
+            assertEquals(subThread, e.lockerThread());
+        }
+
+        entityLocker.unlock(subEntity.id);
+        waitThread(subThread);
+    }
+
+    @Test
+    public void testGlobalLockBlocksAllPartitions() {
+        THREAD_STARTER.startThread(() -> {
+            silentWaiter.await(subThreadWaiter);
+            assertFalse(silentLocker.tryLockWithTime(mainEntity.id, 1, TimeUnit.SECONDS));
+            assertFalse(silentLocker.tryLockWithTime(subEntity.id, 1, TimeUnit.SECONDS));
+            mainThreadWaiter.countDown();
+        });
+
+        silentLocker.globalLock();
+        subThreadWaiter.countDown();
+        silentWaiter.await(mainThreadWaiter);
+
+        assertTrue(entityLocker.isLockedByCurrentThread(mainEntity.id));
+        entityLocker.globalUnlock();
+
+        assertTrue(silentLocker.tryLockWithoutTime(mainEntity.id));
+        entityLocker.unlock(mainEntity.id);
+    }
+
+    @Test
+    public void testGlobalLockWaitsEntityHolders() {
+        final int expected = 3;
+        THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(mainEntity.id);
+            mainThreadWaiter.countDown();
+
+            sleep(1);
+            silentLocker.lock(subEntity.id);
+            mainEntity.value = 2;
+            subEntity.value = 2;
+
+            entityLocker.unlock(subEntity.id);
+            entityLocker.unlock(mainEntity.id);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+
+        silentLocker.globalLock();
+        mainEntity.value = expected;
+        subEntity.value = expected;
+        entityLocker.globalUnlock();
+
+        assertEquals(expected, mainEntity.value);
+        assertEquals(expected, subEntity.value);
+    }
+
+    @Test
+    public void testTryGlobalLockFailsWhileEntityHeld() {
+        THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(mainEntity.id);
+            mainThreadWaiter.countDown();
+            silentWaiter.await(subThreadWaiter);
+            entityLocker.unlock(mainEntity.id);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+
+        assertFalse(silentLocker.tryGlobalLock(100, TimeUnit.MILLISECONDS));
+        assertTrue(silentLocker.tryLockWithoutTime(subEntity.id));
+        entityLocker.unlock(subEntity.id);
+
+        subThreadWaiter.countDown();
+        assertTrue(silentLocker.tryGlobalLock(1, TimeUnit.SECONDS));
+        entityLocker.globalUnlock();
+    }
+}
@@ -0,0 +1,187 @@
+package locks;
+
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.MultiEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class SharedGlobalLocking {
+    private MultiEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>();
+        silentLocker = new SilentLocker<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testSharedHoldersDontBlockEachOther() {
+        entityLocker.globalSharedLock();
+        entityLocker.globalSharedLock();
+
+        final Thread sharedThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(entityLocker.tryGlobalSharedLock(0, TEST_TIME_UNIT));
+            entityLocker.globalSharedUnlock();
+        });
+        waitThread(sharedThread);
+
+        final Thread lockerThread = THREAD_STARTER.startThread(() -> assertFalse(silentLocker.tryLockWithoutTime(1)));
+        waitThread(lockerThread);
+
+        entityLocker.globalSharedUnlock();
+        entityLocker.globalSharedUnlock();
+        silentLocker.lock(1);
+        entityLocker.unlock(1);
+    }
+
+    @Test
+    public void testEntityLockingWaitsSharedHolders() {
+        entityLocker.globalSharedLock();
+
+        final AtomicBoolean isReleased = new AtomicBoolean();
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertFalse(silentLocker.tryLockWithTime(1, 100, TimeUnit.MILLISECONDS));
+            subThreadWaiter.countDown();
+            silentLocker.lock(1);
+            assertTrue(isReleased.get());
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        sleep(0.2);
+        isReleased.set(true);
+        entityLocker.globalSharedUnlock();
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testSharedLockWaitsEntityHolders() {
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(1);
+            silentLocker.lock(2);
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+
+            //The thread holds entities, so it can lock more of them while shared global lock waits it
+            silentLocker.lock(3);
+            assertEquals(3, entityLocker.unlockAllHeldByCurrentThread().size());
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        assertFalse(entityLocker.tryGlobalSharedLock(100, TimeUnit.MILLISECONDS));
+        mainThreadWaiter.countDown();
+        assertTrue(entityLocker.tryGlobalSharedLock(TEST_TIMEOUT, TEST_TIME_UNIT));
+        assertEquals(0, entityLocker.currentSize());
+        entityLocker.globalSharedUnlock();
+        waitThread(subThread);
+    }
+
+    @Test
+    public void testSharedAndExclusiveGlobalLocksExcludeEachOther() {
+        entityLocker.globalSharedLock();
+
+        final Thread globalThread = THREAD_STARTER.startThread(() -> {
+            assertFalse(silentLocker.tryGlobalLock(100, TimeUnit.MILLISECONDS));
+            subThreadWaiter.countDown();
+            assertTrue(silentLocker.tryGlobalLock(TEST_TIMEOUT, TEST_TIME_UNIT));
+            silentWaiter.await(mainThreadWaiter);
+            entityLocker.globalUnlock();
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        entityLocker.globalSharedUnlock();
+        sleep(0.2);
+        assertFalse(entityLocker.tryGlobalSharedLock(100, TimeUnit.MILLISECONDS));
+        mainThreadWaiter.countDown();
+        waitThread(globalThread);
+
+        assertTrue(entityLocker.tryGlobalSharedLock(0, TEST_TIME_UNIT));
+        entityLocker.globalSharedUnlock();
+    }
+
+    @Test
+    public void testGlobalLockWithEntitiesIsPrevented() {
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(1);
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+
+            //Shared global thread waits the entity, so waiting it back would be a deadlock
+            try {
+                entityLocker.globalLock();
+                fail();
+            } catch (DeadlockPreventedException ignored) {
+            }
+            entityLocker.unlock(1);
+        });
+        silentWaiter.await(subThreadWaiter);
+
+        final Thread sharedThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(entityLocker.tryGlobalSharedLock(TEST_TIMEOUT, TEST_TIME_UNIT));
+            entityLocker.globalSharedUnlock();
+        });
+        sleep(0.2);
+        mainThreadWaiter.countDown();
+
+        waitThread(subThread);
+        waitThread(sharedThread);
+    }
+
+    @Test
+    public void testMisuseUnderSharedLock() throws DeadlockPreventedException {
+        entityLocker.globalSharedLock();
+        try {
+            entityLocker.lock(1);
+            fail();
+        } catch (IllegalMonitorStateException ignored) {
+        }
+        try {
+            entityLocker.globalLock();
+            fail();
+        } catch (IllegalMonitorStateException ignored) {
+        }
+        entityLocker.globalSharedUnlock();
+
+        silentLocker.lock(1);
+        try {
+            entityLocker.globalSharedLock();
+            fail();
+        } catch (IllegalMonitorStateException ignored) {
+        }
+        entityLocker.unlock(1);
+
+        try {
+            entityLocker.globalSharedUnlock();
+            fail();
+        } catch (IllegalMonitorStateException ignored) {
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package locks;
+
+import deadlockpreventer.DeadlockPreventer;
+import entitylocker.LockTableSnapshot;
+import entitylocker.MultiEntityLocker;
+import entitylocker.WaiterLimits;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class TableSnapshots {
+    private MultiEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>();
+        silentLocker = new SilentLocker<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testHeldEntitiesAndWaiters() {
+        silentLocker.lock(1);
+        silentLocker.lock(1);
+        silentLocker.lock(2);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            subThreadWaiter.countDown();
+            silentLocker.lock(2);
+            entityLocker.unlock(2);
+        });
+        silentWaiter.await(subThreadWaiter);
+        sleep(0.3);
+
+        final LockTableSnapshot<Integer> snapshot = entityLocker.snapshot();
+        assertNull(snapshot.globalThread());
+        assertNull(snapshot.escalatedThread());
+        assertEquals(3, snapshot.totalHolds());
+        assertEquals(1, snapshot.waiters());
+
+        final Map<Integer, LockTableSnapshot.Entry<Integer>> entries = snapshot.entries()
+                .collect(Collectors.toMap(LockTableSnapshot.Entry::entityId, Function.identity()));
+        assertEquals(2, entries.size());
+
+        final LockTableSnapshot.Entry<Integer> first = entries.get(1);
+        assertSame(Thread.currentThread(), first.owner());
+        assertEquals(2, first.holdCount());
+        assertEquals(0, first.waiters());
+        assertTrue(first.holdTime(TimeUnit.MILLISECONDS) >= 200);
+
+        final LockTableSnapshot.Entry<Integer> second = entries.get(2);
+        assertEquals(1, second.holdCount());
+        assertEquals(1, second.waiters());
+
+        entityLocker.unlock(1);
+        entityLocker.unlock(1);
+        entityLocker.unlock(2);
+        waitThread(subThread);
+        assertEquals(0, snapshot.entries().count());
+    }
+
+    @Test
+    public void testGlobalState() {
+        final Thread globalThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(silentLocker.tryGlobalLock(TEST_TIMEOUT, TEST_TIME_UNIT));
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+            entityLocker.globalUnlock();
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        assertSame(globalThread, entityLocker.snapshot().globalThread());
+        mainThreadWaiter.countDown();
+        waitThread(globalThread);
+
+        entityLocker.globalSharedLock();
+        final LockTableSnapshot<Integer> snapshot = entityLocker.snapshot();
+        assertNull(snapshot.globalThread());
+        assertEquals(1, snapshot.sharedGlobalHolders());
+        entityLocker.globalSharedUnlock();
+    }
+
+    @Test
+    public void testEntriesArePaged() {
+        final MultiEntityLocker<Integer> affinityLocker =
+                new MultiEntityLocker<>(100000, false, new DeadlockPreventer<>(), WaiterLimits.UNBOUNDED, true);
+        final SilentLocker<Integer> affinitySilentLocker = new SilentLocker<>(affinityLocker);
+
+        for (int i = 0; i < 1000; i++) {
+            affinitySilentLocker.lock(i);
+        }
+        //Retained locks of affinity mode are free, so they aren't reported
+        affinityLocker.unlock(0);
+
+        final LockTableSnapshot<Integer> snapshot = affinityLocker.snapshot();
+        assertEquals(999, snapshot.entries().count());
+        assertEquals(9, snapshot.entries().skip(990).limit(100).count());
+        assertFalse(snapshot.entries().anyMatch(entry -> entry.entityId() == 0));
+
+        affinityLocker.unlockAllHeldByCurrentThread();
+        assertFalse(snapshot.iterator().hasNext());
+    }
+}
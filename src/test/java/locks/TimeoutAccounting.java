@@ -0,0 +1,168 @@
+package locks;
+
+import deadlockpreventer.DeadlockPreventer;
+import entitylocker.CompactEntityLocker;
+import entitylocker.EntityLocker;
+import entitylocker.MultiEntityLocker;
+import entitylocker.ShardedEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.SilentLocker;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class TimeoutAccounting {
+    private EntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final static int LOCK_TIMEOUT_MILLIS = 500;
+
+    /**
+     * Scheduling jitter which is allowed above requested timeout,
+     * it's less than any wait of the global gate, so waiting both with full timeout fails the tests
+     */
+    private final static long JITTER_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        createLocker(100);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testGlobalGateAndEntityShareTimeout() {
+        silentLocker.lock(1);
+        silentLocker.lock(2);
+
+        //Global thread holds global write lock while it waits completion of main thread
+        final Thread globalThread = THREAD_STARTER.startThread(() ->
+                assertFalse(silentLocker.tryGlobalLock(LOCK_TIMEOUT_MILLIS - 100, TimeUnit.MILLISECONDS)));
+        awaitWaiting(globalThread);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            final long start = System.nanoTime();
+            assertFalse(silentLocker.tryLockWithTime(1, LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertWaitedTimeout(System.nanoTime() - start);
+        });
+
+        waitThread(subThread);
+        waitThread(globalThread);
+
+        entityLocker.unlock(1);
+        entityLocker.unlock(2);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testEscalationSharesTimeout() {
+        createLocker(2);
+        assertEscalationSharesTimeout();
+    }
+
+    @Test
+    public void testShardedEscalationSharesTimeout() {
+        //Escalation is counted per partition, so all entities are in one partition
+        entityLocker = new ShardedEntityLocker<>(1, 2);
+        silentLocker = new SilentLocker<>(entityLocker);
+        assertEscalationSharesTimeout();
+    }
+
+    @Test
+    public void testCompactEscalationSharesTimeout() {
+        entityLocker = new CompactEntityLocker<>(1, 2);
+        silentLocker = new SilentLocker<>(entityLocker);
+        assertEscalationSharesTimeout();
+    }
+
+    @Test
+    public void testMaxWaitDoesntExceedTimeout() {
+        final int attempts = 5;
+        final int timeoutMillis = 200;
+        silentLocker.lock(1);
+        silentLocker.lock(2);
+
+        final Thread globalThread = THREAD_STARTER.startThread(() -> {
+            for (int i = 0; i < attempts; i++) {
+                assertFalse(silentLocker.tryGlobalLock(timeoutMillis, TimeUnit.MILLISECONDS));
+            }
+        });
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            long maxWait = 0;
+            for (int i = 0; i < attempts; i++) {
+                final long start = System.nanoTime();
+                assertFalse(silentLocker.tryLockWithTime(i % 2 + 1, timeoutMillis, TimeUnit.MILLISECONDS));
+                maxWait = Math.max(maxWait, System.nanoTime() - start);
+            }
+            assertTrue(maxWait < TimeUnit.MILLISECONDS.toNanos(timeoutMillis) + JITTER_NANOS);
+        });
+
+        waitThread(subThread);
+        waitThread(globalThread);
+
+        entityLocker.unlock(1);
+        entityLocker.unlock(2);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    /**
+     * Main thread holds an entity, so escalation of the sub thread waits its completion until the deadline
+     */
+    private void assertEscalationSharesTimeout() {
+        silentLocker.lock(100);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(silentLocker.tryLockWithTime(1, LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+            //Second entity escalates, global lock can't be acquired because main thread holds an entity
+            final long start = System.nanoTime();
+            assertTrue(silentLocker.tryLockWithTime(2, LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertWaitedTimeout(System.nanoTime() - start);
+
+            entityLocker.unlock(2);
+            entityLocker.unlock(1);
+        });
+
+        waitThread(subThread);
+
+        //Cancelled escalation didn't leave global lock
+        final Thread lockerThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(silentLocker.tryLockWithoutTime(3));
+            entityLocker.unlock(3);
+        });
+        waitThread(lockerThread);
+
+        entityLocker.unlock(100);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    private static void assertWaitedTimeout(final long waitNanos) {
+        final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(LOCK_TIMEOUT_MILLIS);
+        assertTrue(waitNanos >= timeoutNanos);
+        assertTrue(waitNanos < timeoutNanos + JITTER_NANOS);
+    }
+
+    private static void awaitWaiting(final Thread thread) {
+        while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+            sleep(0.01);
+        }
+    }
+
+    private void createLocker(final int minLocksBeforeGlobal) {
+        entityLocker = new MultiEntityLocker<>(minLocksBeforeGlobal, false, new DeadlockPreventer<>());
+        silentLocker = new SilentLocker<>(entityLocker);
+    }
+}
@@ -0,0 +1,258 @@
+package locks;
+
+import deadlockpreventer.TimestampDeadlockPreventer;
+import deadlockpreventer.TimestampDeadlockPreventer.Scheme;
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.EntityLocker;
+import entitylocker.MultiEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+/**
+ * In all tests main thread locks its first entity before sub thread, so main thread is older
+ */
+public class TimestampPrevention {
+    private EntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    private volatile DeadlockPreventedException subThreadException;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+        subThreadException = null;
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testWaitDieYoungerDies() {
+        createLocker(Scheme.WAIT_DIE);
+        silentLocker.lock(0);
+
+        final Thread subThread = startSubThread(() -> {
+            silentLocker.lock(1);
+            try {
+                entityLocker.lock(0);
+                fail();
+            } catch (DeadlockPreventedException e) {
+                subThreadException = e;
+            }
+            entityLocker.unlock(1);
+        });
+
+        waitThread(subThread);
+        assertNotNull(subThreadException);
+        assertEquals(subThread, subThreadException.failThread());
+        assertEquals(Thread.currentThread(), subThreadException.lockerThread());
+
+        entityLocker.unlock(0);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testWaitDieOlderWaits() {
+        createLocker(Scheme.WAIT_DIE);
+        silentLocker.lock(0);
+
+        final Thread subThread = startSubThread(() -> {
+            silentLocker.lock(1);
+            mainThreadWaiter.countDown();
+            sleep(0.5);
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        silentLocker.lock(1);
+
+        entityLocker.unlock(1);
+        entityLocker.unlock(0);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testWaitDieBreaksDeadlock() {
+        createLocker(Scheme.WAIT_DIE);
+        silentLocker.lock(0);
+
+        final Thread subThread = startSubThread(() -> {
+            silentLocker.lock(1);
+            mainThreadWaiter.countDown();
+            silentWaiter.await(subThreadWaiter);
+
+            try {
+                entityLocker.lock(0);
+                fail();
+            } catch (DeadlockPreventedException e) {
+                subThreadException = e;
+            }
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        subThreadWaiter.countDown();
+        silentLocker.lock(1);
+
+        waitThread(subThread);
+        assertNotNull(subThreadException);
+
+        entityLocker.unlock(1);
+        entityLocker.unlock(0);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testWoundWaitYoungerWaits() {
+        createLocker(Scheme.WOUND_WAIT);
+        silentLocker.lock(0);
+
+        final Thread subThread = startSubThread(() -> {
+            silentLocker.lock(1);
+            mainThreadWaiter.countDown();
+            silentLocker.lock(0);
+            entityLocker.unlock(0);
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        sleep(0.5);
+
+        entityLocker.unlock(0);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testWoundWaitOlderWoundsOwner() throws DeadlockPreventedException {
+        createLocker(Scheme.WOUND_WAIT);
+        silentLocker.lock(0);
+
+        final Thread subThread = startSubThread(() -> {
+            silentLocker.lock(1);
+            mainThreadWaiter.countDown();
+
+            try {
+                entityLocker.lock(0);
+                fail();
+            } catch (DeadlockPreventedException e) {
+                subThreadException = e;
+            }
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        sleep(0.5);
+
+        entityLocker.lock(1);
+
+        waitThread(subThread);
+        assertNotNull(subThreadException);
+        assertEquals(subThread, subThreadException.failThread());
+        assertEquals(Thread.currentThread(), subThreadException.lockerThread());
+        assertFalse(Thread.currentThread().isInterrupted());
+
+        entityLocker.unlock(1);
+        entityLocker.unlock(0);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testWoundedOwnerIsInterruptedOnlyWhileWaiting() throws DeadlockPreventedException {
+        createLocker(Scheme.WOUND_WAIT);
+        silentLocker.lock(0);
+
+        final Thread subThread = startSubThread(() -> {
+            silentLocker.lock(1);
+            mainThreadWaiter.countDown();
+            silentWaiter.await(subThreadWaiter);
+            sleep(0.2);
+
+            //Wounded thread didn't wait, so nothing interrupted it and it's aborted on the next waiting
+            assertFalse(Thread.currentThread().isInterrupted());
+            try {
+                entityLocker.lock(0);
+                fail();
+            } catch (DeadlockPreventedException e) {
+                subThreadException = e;
+            }
+            assertFalse(Thread.currentThread().isInterrupted());
+            entityLocker.unlock(1);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        subThreadWaiter.countDown();
+        entityLocker.lock(1);
+
+        waitThread(subThread);
+        assertNotNull(subThreadException);
+        assertEquals(subThread, subThreadException.failThread());
+
+        entityLocker.unlock(1);
+        entityLocker.unlock(0);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testGlobalLockWithWaiterOnOwnEntity() {
+        createLocker(Scheme.WAIT_DIE);
+        silentLocker.lock(0);
+
+        final Thread subThread = startSubThread(() -> {
+            mainThreadWaiter.countDown();
+            silentLocker.lock(0);
+            entityLocker.unlock(0);
+        });
+
+        silentWaiter.await(mainThreadWaiter);
+        sleep(0.5);
+
+        try {
+            entityLocker.globalLock();
+            fail();
+        } catch (DeadlockPreventedException e) {
+            assertEquals(Thread.currentThread(), e.failThread());
+        }
+
+        entityLocker.unlock(0);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    private void createLocker(final Scheme scheme) {
+        entityLocker = new MultiEntityLocker<>(100, false, new TimestampDeadlockPreventer<>(scheme));
+        silentLocker = new SilentLocker<>(entityLocker);
+    }
+
+    /**
+     * Timestamps are taken by {@link System#nanoTime()}, so sub thread sleeps a bit to be surely younger
+     */
+    private Thread startSubThread(final Runnable runnable) {
+        return THREAD_STARTER.startThread(() -> {
+            sleep(0.05);
+            runnable.run();
+        });
+    }
+}
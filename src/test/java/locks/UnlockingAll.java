@@ -0,0 +1,156 @@
+package locks;
+
+import entitylocker.MultiEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class UnlockingAll {
+    private MultiEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new MultiEntityLocker<>(5);
+        silentLocker = new SilentLocker<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testAllHoldsAreReleased() {
+        assertTrue(entityLocker.unlockAllHeldByCurrentThread().isEmpty());
+
+        silentLocker.lock(1);
+        silentLocker.lock(1);
+        silentLocker.lock(2);
+        silentLocker.lock(3);
+
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(4);
+            subThreadWaiter.countDown();
+            silentWaiter.await(mainThreadWaiter);
+            assertEquals(new HashSet<>(Arrays.asList(4)), new HashSet<>(entityLocker.unlockAllHeldByCurrentThread()));
+        });
+        silentWaiter.await(subThreadWaiter);
+
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), new HashSet<>(entityLocker.unlockAllHeldByCurrentThread()));
+        assertFalse(entityLocker.isLockedByCurrentThread(1));
+        assertEquals(1, entityLocker.currentSize());
+
+        mainThreadWaiter.countDown();
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+
+        try {
+            entityLocker.unlock(1);
+            fail();
+        } catch (IllegalMonitorStateException ignored) {
+        }
+    }
+
+    @Test
+    public void testWaitersAndGlobalLockAreReleased() {
+        silentLocker.lock(1);
+        silentLocker.lock(2);
+
+        final Thread lockerThread = THREAD_STARTER.startThread(() -> {
+            subThreadWaiter.countDown();
+            silentLocker.lock(2);
+            entityLocker.unlock(2);
+        });
+        final Thread globalThread = THREAD_STARTER.startThread(() -> {
+            silentWaiter.await(mainThreadWaiter);
+            assertTrue(silentLocker.tryGlobalLock(TEST_TIMEOUT, TEST_TIME_UNIT));
+            entityLocker.globalUnlock();
+        });
+
+        silentWaiter.await(subThreadWaiter);
+        mainThreadWaiter.countDown();
+        sleep(0.2);
+
+        assertEquals(2, entityLocker.unlockAllHeldByCurrentThread().size());
+        waitThread(lockerThread);
+        waitThread(globalThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testEscalationIsCancelled() {
+        for (int i = 0; i < 5; i++) {
+            silentLocker.lock(i);
+        }
+
+        final Thread subThread = THREAD_STARTER.startThread(() ->
+                assertFalse(silentLocker.tryLockWithTime(10, 100, TimeUnit.MILLISECONDS)));
+        waitThread(subThread);
+
+        assertEquals(5, entityLocker.unlockAllHeldByCurrentThread().size());
+
+        final Thread lockerThread = THREAD_STARTER.startThread(() -> {
+            assertTrue(silentLocker.tryLockWithoutTime(10));
+            entityLocker.unlock(10);
+        });
+        waitThread(lockerThread);
+    }
+
+    @Test
+    public void testOnlyOwnHoldsAreReleased() {
+        final Thread mainThread = Thread.currentThread();
+        final Thread subThread = THREAD_STARTER.startThread(() -> {
+            silentLocker.lock(3);
+            silentLocker.lock(4);
+            assertTrue(entityLocker.transfer(3, mainThread));
+            assertEquals(Arrays.asList(4), entityLocker.unlockAllHeldByCurrentThread());
+        });
+        waitThread(subThread);
+
+        silentLocker.lock(1);
+        silentLocker.lock(2);
+        entityLocker.unlock(2);
+
+        assertEquals(new HashSet<>(Arrays.asList(1, 3)), new HashSet<>(entityLocker.unlockAllHeldByCurrentThread()));
+        assertTrue(entityLocker.unlockAllHeldByCurrentThread().isEmpty());
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testRangesStayHeld() {
+        silentLocker.lock(1);
+        try {
+            entityLocker.lockRange(10, 20);
+        } catch (Exception e) {
+            fail();
+        }
+
+        assertEquals(Arrays.asList(1), entityLocker.unlockAllHeldByCurrentThread());
+        assertTrue(entityLocker.isLockedByCurrentThread(15));
+
+        entityLocker.unlockRange(10, 20);
+        assertFalse(entityLocker.isLockedByCurrentThread(15));
+    }
+}
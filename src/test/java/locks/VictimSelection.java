@@ -0,0 +1,184 @@
+package locks;
+
+import deadlockpreventer.DeadlockPreventer;
+import deadlockpreventer.VictimPolicy;
+import deadlockpreventer.exceptions.DeadlockPreventedException;
+import entitylocker.EntityLocker;
+import entitylocker.MultiEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.CountDownLatchSilentWaiter;
+import utils.SilentLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+public class VictimSelection {
+    private EntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final CountDownLatchSilentWaiter silentWaiter = new CountDownLatchSilentWaiter(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    private volatile DeadlockPreventedException subThreadException;
+    private volatile boolean isSubThreadInterrupted;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+        subThreadException = null;
+        isSubThreadInterrupted = false;
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testFewestLocksAbortsOtherThread() throws DeadlockPreventedException {
+        createLocker(new DeadlockPreventer<>(VictimPolicy.fewestLocks()));
+
+        final Thread subThread = startSubThread(1);
+        silentWaiter.await(mainThreadWaiter);
+
+        lockEntities(10, 3);
+        subThreadWaiter.countDown();
+        sleep(0.5);
+
+        entityLocker.lock(0);
+
+        waitThread(subThread);
+        assertNotNull(subThreadException);
+        assertEquals(subThread, subThreadException.failThread());
+        assertEquals(Thread.currentThread(), subThreadException.lockerThread());
+        assertFalse(isSubThreadInterrupted);
+
+        entityLocker.unlock(0);
+        unlockEntities(10, 3);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testFewestLocksAbortsCallerThread() {
+        createLocker(new DeadlockPreventer<>(VictimPolicy.fewestLocks()));
+
+        final Thread subThread = startSubThread(3);
+        silentWaiter.await(mainThreadWaiter);
+
+        lockEntities(10, 1);
+        subThreadWaiter.countDown();
+        sleep(0.5);
+
+        try {
+            entityLocker.lock(0);
+            fail();
+        } catch (DeadlockPreventedException e) {
+            assertEquals(Thread.currentThread(), e.failThread());
+        }
+
+        unlockEntities(10, 1);
+        waitThread(subThread);
+        assertNull(subThreadException);
+    }
+
+    @Test
+    public void testOwnInterruptionOfVictimIsKept() throws DeadlockPreventedException {
+        createLocker(new DeadlockPreventer<>(VictimPolicy.fewestLocks()));
+
+        final Thread subThread = startSubThread(1, true);
+        silentWaiter.await(mainThreadWaiter);
+
+        lockEntities(10, 3);
+        subThreadWaiter.countDown();
+        sleep(0.5);
+
+        entityLocker.lock(0);
+
+        waitThread(subThread);
+        assertNotNull(subThreadException);
+        assertTrue(isSubThreadInterrupted);
+
+        entityLocker.unlock(0);
+        unlockEntities(10, 3);
+    }
+
+    @Test
+    public void testBackgroundDetectorUsesPolicy() throws DeadlockPreventedException {
+        createLocker(new DeadlockPreventer<>(10, TimeUnit.MILLISECONDS, VictimPolicy.fewestLocks()));
+
+        final Thread subThread = startSubThread(1);
+        silentWaiter.await(mainThreadWaiter);
+
+        lockEntities(10, 3);
+        subThreadWaiter.countDown();
+        sleep(0.5);
+
+        entityLocker.lock(0);
+
+        waitThread(subThread);
+        assertNotNull(subThreadException);
+
+        entityLocker.unlock(0);
+        unlockEntities(10, 3);
+    }
+
+    private void createLocker(final DeadlockPreventer<Integer> deadlockPreventer) {
+        entityLocker = new MultiEntityLocker<>(100, false, deadlockPreventer);
+        silentLocker = new SilentLocker<>(entityLocker);
+    }
+
+    private Thread startSubThread(final int entities) {
+        return startSubThread(entities, false);
+    }
+
+    /**
+     * Sub thread locks entities from 0 and then waits entity 10 which main thread locks
+     *
+     * @param isInterrupted - sub thread interrupts itself before waiting, e.g. it's cancelled by its owner
+     */
+    private Thread startSubThread(final int entities, final boolean isInterrupted) {
+        return THREAD_STARTER.startThread(() -> {
+            lockEntities(0, entities);
+
+            mainThreadWaiter.countDown();
+            silentWaiter.await(subThreadWaiter);
+
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                entityLocker.lock(10);
+                entityLocker.unlock(10);
+            } catch (DeadlockPreventedException e) {
+                subThreadException = e;
+            }
+            isSubThreadInterrupted = Thread.interrupted();
+
+            unlockEntities(0, entities);
+        });
+    }
+
+    private void lockEntities(final int start, final int count) {
+        for (int i = start; i < start + count; i++) {
+            silentLocker.lock(i);
+        }
+    }
+
+    private void unlockEntities(final int start, final int count) {
+        for (int i = start; i < start + count; i++) {
+            entityLocker.unlock(i);
+        }
+    }
+}
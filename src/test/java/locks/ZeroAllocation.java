@@ -0,0 +1,265 @@
+package locks;
+
+import deadlockpreventer.DeadlockPreventer;
+import deadlockpreventer.DeadlockPreventionStrategy;
+import deadlockpreventer.TimestampDeadlockPreventer;
+import entitylocker.EntityLocker;
+import entitylocker.EntityLockerRegistry;
+import entitylocker.MultiEntityLocker;
+import entitylocker.WaiterLimits;
+import log.utils.LogUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import utils.SilentLocker;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static utils.ThreadUtils.*;
+
+/**
+ * Steady-state paths of public {@link EntityLocker} methods mustn't allocate: reentrant locking of an entity or
+ * global lock and queries. Allocated bytes are measured per thread, so other threads don't affect them.
+ * <p>
+ * First locking of an entity creates its lock, so it isn't a steady-state path, except affinity mode where
+ * the lock is retained after unlock. {@link MultiEntityLocker#awaitCondition}
+ * isn't checked too, because a condition of {@link java.util.concurrent.locks.AbstractQueuedSynchronizer}
+ * allocates a node for every waiting.
+ * <p>
+ * Debug logging builds messages, so it's disabled during the tests as in production configuration
+ */
+public class ZeroAllocation {
+    private static final Integer HELD_ENTITY = 1;
+    private static final Integer FREE_ENTITY = 2;
+
+    private static final int WARM_UP_OPERATIONS = 20_000;
+    private static final int OPERATIONS = 10_000;
+
+    /**
+     * Entity lock with its synchronizer and a node of the lock table take more than it
+     */
+    private static final int MIN_LOCK_BYTES = 64;
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private MultiEntityLocker<Integer> entityLocker;
+    private SilentLocker<Integer> silentLocker;
+
+    private final static int TEST_TIMEOUT = 30;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        Logger.getLogger(LogUtils.class).setLevel(Level.INFO);
+
+        createLocker(new DeadlockPreventer<>());
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        Logger.getLogger(LogUtils.class).setLevel(null);
+        checkException();
+    }
+
+    @Test
+    public void testReentrantLocking() {
+        silentLocker.lock(HELD_ENTITY);
+
+        assertNoAllocation("lock", () -> {
+            entityLocker.lock(HELD_ENTITY);
+            entityLocker.unlock(HELD_ENTITY);
+        });
+        assertNoAllocation("tryLock", () -> {
+            assertTrue(entityLocker.tryLock(HELD_ENTITY));
+            entityLocker.unlock(HELD_ENTITY);
+        });
+        assertNoAllocation("timed tryLock", () -> {
+            assertTrue(entityLocker.tryLock(HELD_ENTITY, 1, TimeUnit.SECONDS));
+            entityLocker.unlock(HELD_ENTITY);
+        });
+        assertNoAllocation("lockInterruptibly", () -> {
+            entityLocker.lockInterruptibly(HELD_ENTITY);
+            entityLocker.unlock(HELD_ENTITY);
+        });
+
+        entityLocker.unlock(HELD_ENTITY);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testReentrantLockingWithAbortingPreventer() {
+        createLocker(new TimestampDeadlockPreventer<>(TimestampDeadlockPreventer.Scheme.WOUND_WAIT));
+        silentLocker.lock(HELD_ENTITY);
+
+        assertNoAllocation("lock", () -> {
+            entityLocker.lock(HELD_ENTITY);
+            entityLocker.unlock(HELD_ENTITY);
+        });
+
+        entityLocker.unlock(HELD_ENTITY);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    /**
+     * Typed lockers pass entities to the shared strategy with their type, a typed key of a held entity is reused
+     */
+    @Test
+    public void testReentrantLockingOfRegistry() {
+        entityLocker = new EntityLockerRegistry(100, new DeadlockPreventer<>()).register("order");
+        silentLocker = new SilentLocker<>(entityLocker);
+        silentLocker.lock(HELD_ENTITY);
+
+        assertNoAllocation("lock", () -> {
+            entityLocker.lock(HELD_ENTITY);
+            entityLocker.unlock(HELD_ENTITY);
+        });
+        assertNoAllocation("timed tryLock", () -> {
+            assertTrue(entityLocker.tryLock(HELD_ENTITY, 1, TimeUnit.SECONDS));
+            entityLocker.unlock(HELD_ENTITY);
+        });
+
+        entityLocker.unlock(HELD_ENTITY);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testReentrantGlobalLocking() {
+        silentLocker.globalLock();
+
+        assertNoAllocation("globalLock", () -> {
+            entityLocker.globalLock();
+            entityLocker.globalUnlock();
+        });
+        assertNoAllocation("tryGlobalLock", () -> {
+            assertTrue(entityLocker.tryGlobalLock());
+            entityLocker.globalUnlock();
+        });
+        assertNoAllocation("timed tryGlobalLock", () -> {
+            assertTrue(entityLocker.tryGlobalLock(1, TimeUnit.SECONDS));
+            entityLocker.globalUnlock();
+        });
+        assertNoAllocation("globalLockInterruptibly", () -> {
+            entityLocker.globalLockInterruptibly();
+            entityLocker.globalUnlock();
+        });
+
+        entityLocker.globalUnlock();
+        assertTrue(silentLocker.tryLockWithoutTime(HELD_ENTITY));
+        entityLocker.unlock(HELD_ENTITY);
+    }
+
+    /**
+     * Deadlock preventers register every first hold in their maps, so locking of a free entity allocates anyway,
+     * but in affinity mode it doesn't create a lock, its synchronizer and a node of the lock table
+     */
+    @Test
+    public void testAffinityLocking() {
+        silentLocker.lock(HELD_ENTITY);
+        final long usualBytes = allocatedBytes("usual lock of free entity", () -> {
+            entityLocker.lock(FREE_ENTITY);
+            entityLocker.unlock(FREE_ENTITY);
+        });
+        entityLocker.unlock(HELD_ENTITY);
+
+        entityLocker = new MultiEntityLocker<>(100, false, new DeadlockPreventer<>(), WaiterLimits.UNBOUNDED, true);
+        silentLocker = new SilentLocker<>(entityLocker);
+        silentLocker.lock(HELD_ENTITY);
+        final long affinityBytes = allocatedBytes("lock of retained entity", () -> {
+            entityLocker.lock(FREE_ENTITY);
+            entityLocker.unlock(FREE_ENTITY);
+        });
+        entityLocker.unlock(HELD_ENTITY);
+
+        assertTrue("affinity mode allocated " + affinityBytes + " bytes, usual mode " + usualBytes,
+                usualBytes - affinityBytes >= MIN_LOCK_BYTES * OPERATIONS);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testQueries() {
+        silentLocker.lock(HELD_ENTITY);
+
+        assertNoAllocation("isLockedByCurrentThread", () -> {
+            assertTrue(entityLocker.isLockedByCurrentThread(HELD_ENTITY));
+            assertFalse(entityLocker.isLockedByCurrentThread(FREE_ENTITY));
+        });
+        assertNoAllocation("currentSize", () -> assertEquals(1, entityLocker.currentSize()));
+        assertNoAllocation("waitersCount", () -> {
+            assertEquals(0, entityLocker.waitersCount(HELD_ENTITY));
+            assertEquals(0, entityLocker.waitersCount(FREE_ENTITY));
+            assertEquals(0, entityLocker.waitersCount());
+        });
+        assertNoAllocation("optimistic read", () -> {
+            final long stamp = entityLocker.tryOptimisticRead(FREE_ENTITY);
+            assertTrue(entityLocker.validate(FREE_ENTITY, stamp));
+            assertEquals(0, entityLocker.tryOptimisticRead(HELD_ENTITY));
+        });
+        assertNoAllocation("signal", () -> {
+            entityLocker.signal(HELD_ENTITY);
+            entityLocker.signalAll(HELD_ENTITY);
+        });
+        assertNoAllocation("transfer to itself", () -> assertTrue(entityLocker.transfer(HELD_ENTITY, Thread.currentThread())));
+
+        entityLocker.unlock(HELD_ENTITY);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    /**
+     * Average allocation must be less than one byte per operation, so any allocated object fails the check,
+     * but the measurement itself doesn't
+     *
+     * @param name
+     * @param operation
+     */
+    private void assertNoAllocation(final String name, final LockerOperation operation) {
+        final long allocated = allocatedBytes(name, operation);
+        assertTrue(name + " allocated " + allocated + " bytes in " + OPERATIONS + " operations", allocated < OPERATIONS);
+    }
+
+    /**
+     * @param name
+     * @param operation
+     * @return bytes allocated by {@link #OPERATIONS} runs of the operation after warm-up
+     */
+    private long allocatedBytes(final String name, final LockerOperation operation) {
+        try {
+            for (int i = 0; i < WARM_UP_OPERATIONS; i++) {
+                operation.run();
+            }
+
+            final long measurementStart = allocatedBytes();
+            final long measurementBytes = allocatedBytes() - measurementStart;
+
+            final long start = allocatedBytes();
+            for (int i = 0; i < OPERATIONS; i++) {
+                operation.run();
+            }
+            return allocatedBytes() - start - measurementBytes;
+        } catch (Exception e) {
+            throw new AssertionError(name + " failed", e);
+        }
+    }
+
+    private long allocatedBytes() {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void createLocker(final DeadlockPreventionStrategy<Integer> deadlockPreventer) {
+        entityLocker = new MultiEntityLocker<>(100, false, deadlockPreventer);
+        silentLocker = new SilentLocker<>(entityLocker);
+    }
+
+    @FunctionalInterface
+    private interface LockerOperation {
+        void run() throws Exception;
+    }
+}